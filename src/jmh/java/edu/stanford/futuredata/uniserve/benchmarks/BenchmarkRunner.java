@@ -0,0 +1,20 @@
+package edu.stanford.futuredata.uniserve.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks matching args[0] (default all) at 1, 2, 4, ..., 64 threads.
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options opt = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
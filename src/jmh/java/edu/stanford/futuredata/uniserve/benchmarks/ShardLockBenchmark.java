@@ -0,0 +1,42 @@
+package edu.stanford.futuredata.uniserve.benchmarks;
+
+import edu.stanford.futuredata.uniserve.datastore.ShardLock;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Read-lock throughput on one hot shard, with reader counts striped per thread or kept in the StampedLock.
+ * BenchmarkRunner repeats it at 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardLockBenchmark {
+
+    @Param({"true", "false"})
+    public boolean stripedReaders;
+
+    // Work done while holding the lock, in JMH tokens; a real read holds it far longer.
+    @Param({"0", "100"})
+    public long readTokens;
+
+    private ShardLock shardLock;
+
+    @Setup
+    public void setup() {
+        ShardLock.stripedReaders = stripedReaders;
+        shardLock = new ShardLock();
+    }
+
+    @Benchmark
+    public void read() {
+        shardLock.readerLockLock();
+        Blackhole.consumeCPU(readTokens);
+        shardLock.readerLockUnlock();
+    }
+}
@@ -1,19 +1,27 @@
 package edu.stanford.futuredata.uniserve.awscloud;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.transfer.*;
 import edu.stanford.futuredata.uniserve.datastore.DataStoreCloud;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AWSDataStoreCloud implements DataStoreCloud {
     private static final Logger logger = LoggerFactory.getLogger(AWSDataStoreCloud.class);
 
     private final String bucket;
+    // Manifest of the last version of each shard uploaded or downloaded here.  Uploads only send files changed since.
+    private final Map<String, ShardManifest> lastManifests = new ConcurrentHashMap<>();
 
     public AWSDataStoreCloud(String bucket) {
         // TODO:  Currently assuming bucket already exists.
@@ -23,19 +31,31 @@ public class AWSDataStoreCloud implements DataStoreCloud {
     @Override
     public Optional<String> uploadShardToCloud(Path shardDirectory, String shardName, int versionNumber) {
         TransferManager tx = TransferManagerBuilder.standard().build();
-        File dirFile = shardDirectory.toFile();
         String shardCloudName = String.format("%s_%d", shardName, versionNumber);
         try {
-            MultipleFileUpload mfu = tx.uploadDirectory(bucket, shardCloudName, dirFile, true);
-            for (Upload upload : mfu.getSubTransfers()) {
+            ShardManifest manifest = ShardManifest.scan(shardDirectory, shardCloudName, lastManifests.get(shardName));
+            List<Upload> uploads = new ArrayList<>();
+            for (ShardManifest.Entry e: manifest.newEntries(shardCloudName)) {
+                uploads.add(tx.upload(bucket, e.objectKey, shardDirectory.resolve(e.relativePath).toFile()));
+            }
+            for (Upload upload : uploads) {
                 upload.waitForUploadResult();
             }
+            // The manifest goes last so a version is never visible before all its objects are.
+            tx.getAmazonS3Client().putObject(bucket, ShardManifest.manifestKey(shardCloudName), manifest.serialize());
+            lastManifests.put(shardName, manifest);
+            logger.info("Shard {} uploaded {} of {} files", shardCloudName, uploads.size(), manifest.entries.size());
         } catch (AmazonServiceException e) {
             logger.warn("Shard upload failed: {}, {}", e.getErrorCode(), e.getErrorMessage());
             return Optional.empty();
         } catch (InterruptedException e) {
             logger.warn("Shard upload interrupted");
             return Optional.empty();
+        } catch (IOException e) {
+            logger.warn("Shard upload failed: {}", e.getMessage());
+            return Optional.empty();
+        } finally {
+            tx.shutdownNow(false);
         }
         return Optional.of(shardCloudName);
     }
@@ -46,12 +66,42 @@ public class AWSDataStoreCloud implements DataStoreCloud {
         TransferManager tx = TransferManagerBuilder.standard().build();
         File dirFile = shardDirectory.toFile();
         try {
-            MultipleFileDownload mfd = tx.downloadDirectory(bucket, shardCloudName, dirFile);
-            mfd.waitForCompletion();
-        } catch (AmazonServiceException | InterruptedException e) {
+            String serializedManifest;
+            try {
+                serializedManifest = tx.getAmazonS3Client().getObjectAsString(bucket, ShardManifest.manifestKey(shardCloudName));
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                // Uploaded before manifests existed.
+                MultipleFileDownload mfd = tx.downloadDirectory(bucket, shardCloudName, dirFile);
+                mfd.waitForCompletion();
+                return 0;
+            }
+            ShardManifest manifest = ShardManifest.deserialize(serializedManifest);
+            Path targetDirectory = Path.of(shardDirectory.toString(), shardCloudName);
+            List<Download> downloads = new ArrayList<>();
+            for (ShardManifest.Entry e: manifest.entries.values()) {
+                downloads.add(tx.download(bucket, e.objectKey, targetDirectory.resolve(e.relativePath).toFile()));
+            }
+            for (Download download: downloads) {
+                download.waitForCompletion();
+            }
+            int separator = shardCloudName.lastIndexOf('_');
+            if (separator > 0) {
+                lastManifests.put(shardCloudName.substring(0, separator), manifest.withLocalTimes(targetDirectory));
+            }
+        } catch (AmazonServiceException | InterruptedException | IOException e) {
             logger.warn("Shard download failed: {}", e.getMessage());
             return 1;
+        } finally {
+            tx.shutdownNow(false);
         }
         return 0;
     }
+
+    @Override
+    public void forgetShard(String shardName) {
+        lastManifests.remove(shardName);
+    }
 }
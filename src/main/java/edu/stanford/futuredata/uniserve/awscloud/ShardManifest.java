@@ -0,0 +1,147 @@
+package edu.stanford.futuredata.uniserve.awscloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * The files making up one uploaded shard version.  Each entry points at the object holding the file's contents,
+ * which may have been uploaded by an earlier version if the file has not changed since.
+ *
+ * Serialized as one header line holding the scan time followed by one tab-separated line per file:
+ * relative path, size, mtime, SHA-256, object key.
+ */
+class ShardManifest {
+
+    static class Entry {
+        final String relativePath;
+        final long size;
+        final long lastModified;
+        final String checksum;
+        final String objectKey;
+
+        Entry(String relativePath, long size, long lastModified, String checksum, String objectKey) {
+            this.relativePath = relativePath;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.objectKey = objectKey;
+        }
+    }
+
+    // When the shard directory was scanned.  A file modified at or after this may have changed without its
+    // size or mtime changing, so it must be rehashed on the next scan.
+    final long scanTime;
+    final Map<String, Entry> entries;
+
+    ShardManifest(long scanTime, Map<String, Entry> entries) {
+        this.scanTime = scanTime;
+        this.entries = entries;
+    }
+
+    /** Object key for a file in a shard version uploaded under shardCloudName. **/
+    static String objectKey(String shardCloudName, String relativePath) {
+        return String.format("%s/%s", shardCloudName, relativePath);
+    }
+
+    /** Key of the manifest of the shard version uploaded under shardCloudName. **/
+    static String manifestKey(String shardCloudName) {
+        return String.format("%s.manifest", shardCloudName);
+    }
+
+    /**
+     * Scan a shard directory against the manifest of the previous upload.  Files whose contents match a previous entry
+     * reuse its object; all others are assigned a new object under shardCloudName.
+     */
+    static ShardManifest scan(Path shardDirectory, String shardCloudName, ShardManifest previous) throws IOException {
+        long scanTime = System.currentTimeMillis();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(shardDirectory)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        Map<String, Entry> entries = new HashMap<>();
+        for (Path file: files) {
+            String relativePath = shardDirectory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            long size = Files.size(file);
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            Entry old = previous == null ? null : previous.entries.get(relativePath);
+            if (old != null && old.size == size && old.lastModified == lastModified && lastModified < previous.scanTime) {
+                entries.put(relativePath, old);
+                continue;
+            }
+            String checksum = checksum(file);
+            if (old != null && old.size == size && old.checksum.equals(checksum)) {
+                entries.put(relativePath, new Entry(relativePath, size, lastModified, checksum, old.objectKey));
+            } else {
+                entries.put(relativePath, new Entry(relativePath, size, lastModified, checksum, objectKey(shardCloudName, relativePath)));
+            }
+        }
+        return new ShardManifest(scanTime, entries);
+    }
+
+    /** Entries whose objects must be uploaded as part of shardCloudName. **/
+    List<Entry> newEntries(String shardCloudName) {
+        String prefix = shardCloudName + "/";
+        return entries.values().stream().filter(e -> e.objectKey.startsWith(prefix)).collect(Collectors.toList());
+    }
+
+    /** The same manifest with mtimes taken from the files downloaded into shardDirectory. **/
+    ShardManifest withLocalTimes(Path shardDirectory) throws IOException {
+        Map<String, Entry> localEntries = new HashMap<>();
+        for (Entry e: entries.values()) {
+            long lastModified = Files.getLastModifiedTime(shardDirectory.resolve(e.relativePath)).toMillis();
+            localEntries.put(e.relativePath, new Entry(e.relativePath, e.size, lastModified, e.checksum, e.objectKey));
+        }
+        return new ShardManifest(System.currentTimeMillis(), localEntries);
+    }
+
+    String serialize() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(scanTime).append('\n');
+        for (Entry e: entries.values()) {
+            sb.append(String.join("\t", e.relativePath, Long.toString(e.size), Long.toString(e.lastModified),
+                    e.checksum, e.objectKey)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static ShardManifest deserialize(String serialized) {
+        String[] lines = serialized.split("\n");
+        long scanTime = Long.parseLong(lines[0]);
+        Map<String, Entry> entries = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isEmpty()) {
+                continue;
+            }
+            String[] fields = lines[i].split("\t");
+            entries.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], fields[4]));
+        }
+        return new ShardManifest(scanTime, entries);
+    }
+
+    static String checksum(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+}
@@ -6,8 +6,14 @@ import edu.stanford.futuredata.uniserve.datastore.DataStore;
 import edu.stanford.futuredata.uniserve.interfaces.*;
 import edu.stanford.futuredata.uniserve.utilities.ConsistentHash;
 import edu.stanford.futuredata.uniserve.utilities.DataStoreDescription;
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+import edu.stanford.futuredata.uniserve.utilities.MetricsRegistry;
+import edu.stanford.futuredata.uniserve.utilities.MetricsServer;
+import edu.stanford.futuredata.uniserve.utilities.QueryTrace;
+import edu.stanford.futuredata.uniserve.utilities.ShippedPlans;
 import edu.stanford.futuredata.uniserve.utilities.TableInfo;
 import edu.stanford.futuredata.uniserve.utilities.Utilities;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
@@ -15,11 +21,15 @@ import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -46,21 +56,74 @@ public class Broker {
     public boolean runQueryStatisticsDaemon = true;
     public static int queryStatisticsDaemonSleepDurationMillis = 10000;
 
-    public final Collection<Long> remoteExecutionTimes = new ConcurrentLinkedQueue<>();
-    public final Collection<Long> aggregationTimes = new ConcurrentLinkedQueue<>();
+    public final LatencyHistogram remoteExecutionTimes = new LatencyHistogram();
+    public final LatencyHistogram aggregationTimes = new LatencyHistogram();
+
+    // Operational metrics, served in Prometheus text format by startMetricsServer.  Times are in microseconds.
+    public final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsServer metricsServer = null;
+    private final LatencyHistogram readFanout = metrics.histogram("uniserve_broker_read_fanout",
+            "Datastore RPCs issued per read query.");
+    private final LatencyHistogram writeFanout = metrics.histogram("uniserve_broker_write_fanout",
+            "Shards written per write query.");
+    private final LatencyHistogram writeTimes = metrics.histogram("uniserve_broker_write_microseconds",
+            "Time to run write queries, including two-phase commit.");
+    private final LongAdder readRetries = metrics.counter("uniserve_broker_read_retries_total",
+            "Read RPCs resent to another datastore after a failure or a retry response.");
+    private final LongAdder writeRetries = metrics.counter("uniserve_broker_write_retries_total",
+            "Shard writes restarted because the datastore asked for a retry.");
+    private final LongAdder coalescedReads = metrics.counter("uniserve_broker_coalesced_reads_total",
+            "Read queries answered with the responses of an identical read already in flight.");
 
     public static final int QUERY_SUCCESS = 0;
     public static final int QUERY_FAILURE = 1;
     public static final int QUERY_RETRY = 2;
+    public static final int QUERY_PLAN_MISSING = 3;
 
     public static final int SHARDS_PER_TABLE = 1000000;
 
     public ConcurrentHashMap<Set<Integer>, Integer> queryStatistics = new ConcurrentHashMap<>();
 
-    ExecutorService readQueryThreadPool = Executors.newFixedThreadPool(256);  //TODO:  Replace with async calls.
+    // Map from read plan hashes to the datastores known to hold those plans.
+    public static int shippedPlanCacheCapacity = 1024;
+    private final ShippedPlans shippedPlans = new ShippedPlans(shippedPlanCacheCapacity);
+
+    // Recent datastore responses to cacheable read plans, combined again while none of the shards they read change.
+    // Other brokers' writes may go unseen for up to the TTL, so the cache is off unless the TTL is set.
+    private final ResultCache resultCache;
+    public static long resultCacheCapacityBytes = 64L * 1024 * 1024;
+    public static long resultCacheTTLMillis = 0;
+
+    // Map from serialized read plans, with the version they read at, to the responses of the read of each in flight.
+    // Identical reads arriving while one is in flight wait for its responses instead of sending their own.
+    private final Map<Pair<ByteString, Long>, CompletableFuture<List<ByteString>>> inFlightReads = new ConcurrentHashMap<>();
+    public static boolean coalesceReads = true;
+
+    // How many times a read a datastore failed to execute is resent before the query fails.
+    public static int maxReadFailureRetries = 3;
+
+    // Takes and releases the cluster write lock and decides writes, for one write at a time.  Writes queue behind
+    // lastWrite instead of each holding a thread while waiting for the lock.
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "broker-write");
+        t.setDaemon(true);
+        return t;
+    });
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    // Runs the stages of read queries after their first, e.g. subquery dispatch and combine, off gRPC threads.
+    private final ExecutorService queryExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "broker-query-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     AtomicLong txIDs = new AtomicLong(0); // TODO:  Put in ZooKeeper.
-    long lastCommittedVersion = 0; // TODO:  Put in ZooKeeper.
+    volatile long lastCommittedVersion = 0; // TODO:  Put in ZooKeeper.
 
 
     /*
@@ -86,6 +149,24 @@ public class Broker {
         shardMapUpdateDaemon.start();
         queryStatisticsDaemon = new QueryStatisticsDaemon();
         queryStatisticsDaemon.start();
+        metrics.register("uniserve_broker_remote_execution_microseconds", "Time from sending a read query to datastores until all replied.", remoteExecutionTimes);
+        metrics.register("uniserve_broker_aggregation_microseconds", "Time to combine the datastores' read query results.", aggregationTimes);
+        resultCache = new ResultCache(resultCacheCapacityBytes, resultCacheTTLMillis,
+                metrics.counter("uniserve_broker_result_cache_hits_total", "Read queries answered from the result cache."),
+                metrics.counter("uniserve_broker_result_cache_misses_total", "Cacheable read queries that missed the result cache."));
+        metrics.gauge("uniserve_broker_result_cache_bytes", "Datastore responses held in the result cache.", resultCache::sizeBytes);
+    }
+
+    /** Serve metrics at http://host:port/metrics. **/
+    public boolean startMetricsServer(int port) {
+        try {
+            metricsServer = new MetricsServer(port, metrics);
+        } catch (IOException e) {
+            logger.warn("Broker metrics server startup failed: {}", e.getMessage());
+            return false;
+        }
+        metricsServer.start();
+        return true;
     }
 
     public void shutdown() {
@@ -101,30 +182,83 @@ public class Broker {
         for (ManagedChannel c: dsIDToChannelMap.values()) {
             c.shutdownNow();
         }
-        int numQueries = remoteExecutionTimes.size();
+        LatencyHistogram.Snapshot remoteTimes = remoteExecutionTimes.snapshot();
+        LatencyHistogram.Snapshot aggTimes = aggregationTimes.snapshot();
+        long numQueries = remoteTimes.count();
         if (numQueries > 0) {
-            long p50RE = remoteExecutionTimes.stream().mapToLong(i -> i).sorted().toArray()[remoteExecutionTimes.size() / 2];
-            long p99RE = remoteExecutionTimes.stream().mapToLong(i -> i).sorted().toArray()[remoteExecutionTimes.size() * 99 / 100];
-            long p50agg = aggregationTimes.stream().mapToLong(i -> i).sorted().toArray()[aggregationTimes.size() / 2];
-            long p99agg = aggregationTimes.stream().mapToLong(i -> i).sorted().toArray()[aggregationTimes.size() * 99 / 100];
-            logger.info("Queries: {} p50 Remote: {}μs p99 Remote: {}μs  p50 Aggregation: {}μs p99 Aggregation: {}μs", numQueries, p50RE, p99RE, p50agg, p99agg);
+            logger.info("Queries: {} p50 Remote: {}μs p99 Remote: {}μs  p50 Aggregation: {}μs p99 Aggregation: {}μs", numQueries,
+                    remoteTimes.percentile(0.5), remoteTimes.percentile(0.99),
+                    aggTimes.percentile(0.5), aggTimes.percentile(0.99));
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
         }
         zkCurator.close();
-        readQueryThreadPool.shutdown();
+        writeExecutor.shutdown();
+        queryExecutor.shutdown();
     }
 
     /*
      * PUBLIC FUNCTIONS
      */
 
+    /** Create a table whose rows are shipped using Java serialization.  Pass a RowCodec for a compact encoding. **/
     public boolean createTable(String tableName, int numShards) {
         CreateTableMessage m = CreateTableMessage.newBuilder().setTableName(tableName).setNumShards(numShards).build();
         CreateTableResponse r = coordinatorBlockingStub.createTable(m);
         return r.getReturnCode() == QUERY_SUCCESS;
     }
 
+    /** Create a table whose rows are shipped using rowCodec instead of Java serialization. **/
+    public <R extends Row> boolean createTable(String tableName, int numShards, RowCodec<R> rowCodec) {
+        CreateTableMessage m = CreateTableMessage.newBuilder().setTableName(tableName).setNumShards(numShards)
+                .setRowCodec(Utilities.objectToByteString(rowCodec)).build();
+        CreateTableResponse r = coordinatorBlockingStub.createTable(m);
+        return r.getReturnCode() == QUERY_SUCCESS;
+    }
+
     public <R extends Row, S extends Shard> boolean writeQuery(WriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
-        zkCurator.acquireWriteLock(); // TODO: Maybe acquire later?
+        return writeQueryAsync(writeQueryPlan, rows).join();
+    }
+
+    /** Write rows without tying up a thread while the write is in flight.  Writes through this broker hold the cluster
+     * write lock one at a time, in the order they were issued. **/
+    public <R extends Row, S extends Shard> CompletableFuture<Boolean> writeQueryAsync(WriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        CompletableFuture<Void> previousWrite;
+        synchronized (writeExecutor) {
+            previousWrite = lastWrite;
+            lastWrite = result.handle((r, e) -> null);
+        }
+        // The lock is bound to the thread taking it, so it is taken and released on writeExecutor.
+        previousWrite.thenRunAsync(() -> {
+            zkCurator.acquireWriteLock(); // TODO: Maybe acquire later?
+            CompletableFuture<Boolean> write;
+            try {
+                write = twoPhaseWrite(writeQueryPlan, rows);
+            } catch (RuntimeException | Error e) {
+                write = CompletableFuture.failedFuture(e);
+            }
+            write.whenCompleteAsync((success, e) -> {
+                zkCurator.releaseWriteLock();
+                if (e == null) {
+                    result.complete(success);
+                } else {
+                    result.completeExceptionally(e);
+                }
+            }, writeExecutor).exceptionally(e -> {
+                // E.g. rejected by writeExecutor after shutdown.
+                result.completeExceptionally(e);
+                return null;
+            });
+        }, writeExecutor).exceptionally(e -> {
+            result.completeExceptionally(e);
+            return null;
+        });
+        return result;
+    }
+
+    private <R extends Row, S extends Shard> CompletableFuture<Boolean> twoPhaseWrite(WriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
         long tStart = System.currentTimeMillis();
         Map<Integer, List<R>> shardRowListMap = new HashMap<>();
         TableInfo tableInfo = getTableInfo(writeQueryPlan.getQueriedTable());
@@ -136,34 +270,43 @@ public class Broker {
         }
         Map<Integer, R[]> shardRowArrayMap = shardRowListMap.entrySet().stream().
                 collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().toArray((R[]) new Row[0])));
-        List<WriteQueryThread<R, S>> writeQueryThreads = new ArrayList<>();
+        RowCodec<R> rowCodec = (RowCodec<R>) tableInfo.getRowCodec();
+        ByteString serializedQuery = Utilities.objectToByteString(writeQueryPlan);
+        ByteString planHash = Utilities.planHash(serializedQuery);
         long txID = txIDs.getAndIncrement();
-        CountDownLatch queryLatch = new CountDownLatch(shardRowArrayMap.size());
-        AtomicInteger queryStatus = new AtomicInteger(QUERY_SUCCESS);
-        AtomicBoolean statusWritten = new AtomicBoolean(false);
-        for (Integer shardNum: shardRowArrayMap.keySet()) {
-            R[] rowArray = shardRowArrayMap.get(shardNum);
-            WriteQueryThread<R, S> t = new WriteQueryThread<>(shardNum, writeQueryPlan, rowArray, txID, queryLatch, queryStatus, statusWritten);
-            t.start();
-            writeQueryThreads.add(t);
-        }
-        for (WriteQueryThread<R, S> t: writeQueryThreads) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                logger.error("Write query interrupted: {}", e.getMessage());
-                assert(false);
+        resultCache.startWrite(shardRowArrayMap.keySet());
+        List<ShardWrite<R>> shardWrites = shardRowArrayMap.entrySet().stream()
+                .map(e -> new ShardWrite<>(e.getKey(), serializedQuery, planHash, e.getValue(), rowCodec, txID, false))
+                .collect(Collectors.toList());
+        List<CompletableFuture<Integer>> votes = shardWrites.stream().map(ShardWrite::prepare).collect(Collectors.toList());
+        return CompletableFuture.allOf(votes.toArray(new CompletableFuture[0])).thenComposeAsync(v -> {
+            int queryStatus = votes.stream().allMatch(vote -> vote.join() == QUERY_SUCCESS) ? QUERY_SUCCESS : QUERY_FAILURE;
+            if (queryStatus == QUERY_SUCCESS && !shardWrites.isEmpty()) {
+                // Written before any commit is sent, so datastores losing the broker can still learn the outcome.
+                zkCurator.writeTransactionStatus(txID, DataStore.COMMIT);
             }
-        }
-        lastCommittedVersion = txID;
-        logger.info("Write completed. Rows: {}. Version: {} Time: {}ms", rows.size(), lastCommittedVersion,
-                System.currentTimeMillis() - tStart);
-        assert (queryStatus.get() != QUERY_RETRY);
-        zkCurator.releaseWriteLock();
-        return queryStatus.get() == QUERY_SUCCESS;
+            int writeState = queryStatus == QUERY_SUCCESS ? DataStore.COMMIT : DataStore.ABORT;
+            List<CompletableFuture<Void>> finished = shardWrites.stream().map(w -> w.finish(writeState)).collect(Collectors.toList());
+            return CompletableFuture.allOf(finished.toArray(new CompletableFuture[0])).thenApply(f -> queryStatus);
+        }, writeExecutor).whenComplete((queryStatus, t) -> resultCache.finishWrite(shardRowArrayMap.keySet()))
+                .thenApply(queryStatus -> {
+            if (queryStatus == QUERY_SUCCESS) {
+                lastCommittedVersion = txID;
+            }
+            writeFanout.record(shardRowArrayMap.size());
+            writeTimes.record((System.currentTimeMillis() - tStart) * 1000L);
+            logger.info("Write completed. Rows: {}. Version: {} Time: {}ms", rows.size(), txID,
+                    System.currentTimeMillis() - tStart);
+            return queryStatus == QUERY_SUCCESS;
+        });
     }
 
     public <R extends Row, S extends Shard> boolean simpleWriteQuery(SimpleWriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
+        return simpleWriteQueryAsync(writeQueryPlan, rows).join();
+    }
+
+    /** Write rows without tying up a thread while the write is in flight. **/
+    public <R extends Row, S extends Shard> CompletableFuture<Boolean> simpleWriteQueryAsync(SimpleWriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
         long tStart = System.currentTimeMillis();
         Map<Integer, List<R>> shardRowListMap = new HashMap<>();
         TableInfo tableInfo = getTableInfo(writeQueryPlan.getQueriedTable());
@@ -175,33 +318,48 @@ public class Broker {
         }
         Map<Integer, R[]> shardRowArrayMap = shardRowListMap.entrySet().stream().
                 collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().toArray((R[]) new Row[0])));
-        List<SimpleWriteQueryThread<R, S>> writeQueryThreads = new ArrayList<>();
+        RowCodec<R> rowCodec = (RowCodec<R>) tableInfo.getRowCodec();
+        ByteString serializedQuery = Utilities.objectToByteString(writeQueryPlan);
+        ByteString planHash = Utilities.planHash(serializedQuery);
         long txID = txIDs.getAndIncrement();
-        AtomicInteger queryStatus = new AtomicInteger(QUERY_SUCCESS);
-        AtomicBoolean statusWritten = new AtomicBoolean(false);
-        for (Integer shardNum: shardRowArrayMap.keySet()) {
-            R[] rowArray = shardRowArrayMap.get(shardNum);
-            SimpleWriteQueryThread<R, S> t = new SimpleWriteQueryThread<>(shardNum, writeQueryPlan, rowArray, txID, queryStatus, statusWritten);
-            t.start();
-            writeQueryThreads.add(t);
-        }
-        for (SimpleWriteQueryThread<R, S> t: writeQueryThreads) {
-            try {
-                t.join();
-            } catch (InterruptedException e) {
-                logger.error("SimpleWrite query interrupted: {}", e.getMessage());
-                assert(false);
+        resultCache.startWrite(shardRowArrayMap.keySet());
+        List<CompletableFuture<Boolean>> shardResults = shardRowArrayMap.entrySet().stream()
+                .map(e -> new ShardWrite<>(e.getKey(), serializedQuery, planHash, e.getValue(), rowCodec, txID, true))
+                .map(w -> w.prepare().thenCompose(vote -> w.finish(vote).thenApply(f -> vote == QUERY_SUCCESS)))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(shardResults.toArray(new CompletableFuture[0]))
+                .whenComplete((v, t) -> resultCache.finishWrite(shardRowArrayMap.keySet())).thenApply(v -> {
+            boolean committed = shardResults.stream().allMatch(CompletableFuture::join);
+            if (committed) {
+                lastCommittedVersion = txID;
             }
-        }
-        lastCommittedVersion = txID;
-        logger.info("SimpleWrite completed. Rows: {}. Version: {} Time: {}ms", rows.size(), lastCommittedVersion,
-                System.currentTimeMillis() - tStart);
-        assert (queryStatus.get() != QUERY_RETRY);
-        return queryStatus.get() == QUERY_SUCCESS;
+            logger.info("SimpleWrite completed. Rows: {}. Version: {} Time: {}ms", rows.size(), txID,
+                    System.currentTimeMillis() - tStart);
+            return committed;
+        });
     }
 
     public <S extends Shard, V> V anchoredReadQuery(AnchoredReadQueryPlan<S, V> plan) {
+        return anchoredReadQueryAsync(plan).join();
+    }
+
+    /** Run a read query without tying up a thread while datastores execute it.  Completes exceptionally if a
+     * datastore keeps failing to execute its part. **/
+    public <S extends Shard, V> CompletableFuture<V> anchoredReadQueryAsync(AnchoredReadQueryPlan<S, V> plan) {
+        return anchoredReadQueryAsync(plan, txIDs.getAndIncrement());
+    }
+
+    /** Run a read query, also returning the time it spent in each stage on the broker and on every datastore. **/
+    public <S extends Shard, V> Pair<V, QueryTrace> profileAnchoredReadQuery(AnchoredReadQueryPlan<S, V> plan) {
         long txID = txIDs.getAndIncrement();
+        QueryTrace trace = new QueryTrace(txID, "broker");
+        V ret = trace.call(() -> anchoredReadQueryAsync(plan, txID)).join();
+        return new Pair<>(ret, trace);
+    }
+
+    private <S extends Shard, V> CompletableFuture<V> anchoredReadQueryAsync(AnchoredReadQueryPlan<S, V> plan, long txID) {
+        // Later stages run on the broker's query threads, so they restore the query's trace.
+        Executor traced = Context.current().fixedContextExecutor(queryExecutor);
         Map<String, List<Integer>> partitionKeys = plan.keysForQuery();
         HashMap<String, List<Integer>> targetShards = new HashMap<>();
         for(Map.Entry<String, List<Integer>> entry: partitionKeys.entrySet()) {
@@ -221,169 +379,420 @@ public class Broker {
             }
             targetShards.put(tableName, shardNums);
         }
+        recordQueryStatistics(targetShards);
         HashMap<String, Map<Integer, Integer>> intermediateShards = new HashMap<>();
+        // Subqueries run one after another, each once the one before has returned.
+        CompletableFuture<Void> subQueries = CompletableFuture.completedFuture(null);
         for(AnchoredReadQueryPlan<S, Map<String, Map<Integer, Integer>>> p: plan.getSubQueries()) {
-            Map<String, Map<Integer, Integer>> subQueryShards = anchoredReadQuery(p);
-            intermediateShards.putAll(subQueryShards);
-            subQueryShards.forEach((k, v) -> targetShards.put(k, new ArrayList<>(v.keySet())));
+            subQueries = subQueries.thenComposeAsync(v -> anchoredReadQueryAsync(p), traced).thenAccept(subQueryShards -> {
+                intermediateShards.putAll(subQueryShards);
+                subQueryShards.forEach((k, v) -> targetShards.put(k, new ArrayList<>(v.keySet())));
+            });
         }
+        return subQueries.thenComposeAsync(v -> anchoredReadRemote(plan, txID, targetShards, intermediateShards, traced), traced);
+    }
+
+    /** Send an anchored read whose subqueries have returned, and combine the responses. **/
+    private <S extends Shard, V> CompletableFuture<V> anchoredReadRemote(AnchoredReadQueryPlan<S, V> plan, long txID,
+                                                                         HashMap<String, List<Integer>> targetShards,
+                                                                         HashMap<String, Map<Integer, Integer>> intermediateShards,
+                                                                         Executor traced) {
+        long serializeStart = System.nanoTime();
         ByteString serializedTargetShards = Utilities.objectToByteString(targetShards);
         ByteString serializedIntermediateShards = Utilities.objectToByteString(intermediateShards);
         ByteString serializedQuery = Utilities.objectToByteString(plan);
+        ByteString planHash = Utilities.planHash(serializedQuery);
+        QueryTrace.record("serialize plan", -1, serializeStart);
+        boolean cacheable = resultCache.enabled() && plan.isCacheable() && plan.getSubQueries().isEmpty()
+                && plan.returnTableName().isEmpty();
+        if (cacheable) {
+            Optional<V> cachedResult = cachedResult(planHash, plan::combine);
+            if (cachedResult.isPresent()) {
+                return CompletableFuture.completedFuture(cachedResult.get());
+            }
+        }
+        long readEpoch = resultCache.startRead();
+        // Map from shard number to the version the datastores read it at.
+        Map<Integer, Integer> readVersions = new ConcurrentHashMap<>();
+        AtomicBoolean versionsConsistent = new AtomicBoolean(true);
         String anchorTable = plan.getAnchorTable();
         List<Integer> anchorTableShards = targetShards.get(anchorTable);
         int numRepartitions = anchorTableShards.size();
-        List<ByteString> intermediates = new CopyOnWriteArrayList<>();
-        CountDownLatch latch = new CountDownLatch(numRepartitions);
         long lcv = lastCommittedVersion;
+        // Datastores known to hold the plan only receive its hash.
+        AnchoredReadQueryMessage template = AnchoredReadQueryMessage.newBuilder()
+                .setPlanHash(planHash).setNumRepartitions(numRepartitions)
+                .setTxID(txID).setLastCommittedVersion(lcv).setTargetShards(serializedTargetShards)
+                .setIntermediateShards(serializedIntermediateShards).build();
+        // Queries creating intermediate shards cannot share them.
+        Pair<ByteString, Long> inFlightKey = coalesceReads && plan.getSubQueries().isEmpty() && plan.returnTableName().isEmpty() ?
+                new Pair<>(serializedQuery, lcv) : null;
+        long remoteStart = System.nanoTime();
+        return coalesce(inFlightKey, () -> anchoredReadFanout(template, serializedQuery, anchorTableShards, readVersions, versionsConsistent), traced)
+                .thenApplyAsync(intermediates -> {
+            long aggStart = System.nanoTime();
+            QueryTrace.record("remote execution", -1, remoteStart);
+            V ret;
+            if (plan.returnTableName().isEmpty()) {
+                // Before combining, which may modify the responses.
+                cacheResponses(cacheable, planHash, intermediates, targetShards, readVersions, versionsConsistent.get(), readEpoch);
+                ret = plan.combine(intermediates);
+            } else {
+                List<Map<Integer, Integer>> shardLocations = intermediates.stream()
+                        .map(i -> (Map<Integer, Integer>) Utilities.byteStringToObject(i))
+                        .collect(Collectors.toList());
+                Map<Integer, Integer> combinedShardLocations = new HashMap<>();
+                shardLocations.forEach(i -> i.forEach(combinedShardLocations::put));
+                Map<String, Map<Integer, Integer>> s = Map.of(plan.returnTableName().get(), combinedShardLocations);
+                intermediateShards.putAll(s);
+                ret = (V) intermediateShards;
+            }
+            long aggEnd = System.nanoTime();
+            QueryTrace.record("combine", -1, aggStart);
+            remoteExecutionTimes.record((aggStart - remoteStart) / 1000L);
+            aggregationTimes.record((aggEnd - aggStart) / 1000L);
+            return ret;
+        }, traced);
+    }
+
+    public <S extends Shard, V> V shuffleReadQuery(ShuffleReadQueryPlan<S, V> plan) {
+        return shuffleReadQueryAsync(plan).join();
+    }
+
+    /** Run a shuffle query without tying up a thread while datastores execute it.  Completes exceptionally if a
+     * datastore keeps failing to execute its part. **/
+    public <S extends Shard, V> CompletableFuture<V> shuffleReadQueryAsync(ShuffleReadQueryPlan<S, V> plan) {
+        return shuffleReadQueryAsync(plan, txIDs.getAndIncrement());
+    }
+
+    /** Run a shuffle query, also returning the time it spent in each stage on the broker and on every datastore. **/
+    public <S extends Shard, V> Pair<V, QueryTrace> profileShuffleReadQuery(ShuffleReadQueryPlan<S, V> plan) {
+        long txID = txIDs.getAndIncrement();
+        QueryTrace trace = new QueryTrace(txID, "broker");
+        V ret = trace.call(() -> shuffleReadQueryAsync(plan, txID)).join();
+        return new Pair<>(ret, trace);
+    }
+
+    private <S extends Shard, V> CompletableFuture<V> shuffleReadQueryAsync(ShuffleReadQueryPlan<S, V> plan, long txID) {
+        Executor traced = Context.current().fixedContextExecutor(queryExecutor);
+        Map<String, List<Integer>> partitionKeys = plan.keysForQuery();
+        HashMap<String, List<Integer>> targetShards = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : partitionKeys.entrySet()) {
+            String tableName = entry.getKey();
+            List<Integer> tablePartitionKeys = entry.getValue();
+            TableInfo tableInfo = getTableInfo(tableName);
+            int tableID = tableInfo.id;
+            int numShards = tableInfo.numShards;
+            List<Integer> shardNums;
+            if (tablePartitionKeys.contains(-1)) {
+                // -1 is a wildcard--run on all shards.
+                shardNums = IntStream.range(tableID * SHARDS_PER_TABLE, tableID * SHARDS_PER_TABLE + numShards)
+                        .boxed().collect(Collectors.toList());
+            } else {
+                shardNums = tablePartitionKeys.stream().map(i -> keyToShard(tableID, numShards, i))
+                        .distinct().collect(Collectors.toList());
+            }
+            targetShards.put(tableName, shardNums);
+        }
+        recordQueryStatistics(targetShards);
+        long serializeStart = System.nanoTime();
+        ByteString serializedTargetShards = Utilities.objectToByteString(targetShards);
+        ByteString serializedQuery = Utilities.objectToByteString(plan);
+        ByteString planHash = Utilities.planHash(serializedQuery);
+        QueryTrace.record("serialize plan", -1, serializeStart);
+        boolean cacheable = resultCache.enabled() && plan.isCacheable();
+        if (cacheable) {
+            Optional<V> cachedResult = cachedResult(planHash, plan::combine);
+            if (cachedResult.isPresent()) {
+                return CompletableFuture.completedFuture(cachedResult.get());
+            }
+        }
+        long readEpoch = resultCache.startRead();
+        // Map from shard number to the version the datastores read it at.
+        Map<Integer, Integer> readVersions = new ConcurrentHashMap<>();
+        AtomicBoolean versionsConsistent = new AtomicBoolean(true);
+        // Datastores known to hold the plan only receive its hash.
+        ShuffleReadQueryMessage template = ShuffleReadQueryMessage.newBuilder()
+                .setPlanHash(planHash).setTxID(txID).setTargetShards(serializedTargetShards).build();
+        Pair<ByteString, Long> inFlightKey = coalesceReads ? new Pair<>(serializedQuery, lastCommittedVersion) : null;
+        long remoteStart = System.nanoTime();
+        return coalesce(inFlightKey, () -> shuffleReadFanout(template, serializedQuery, readVersions, versionsConsistent), traced)
+                .thenApplyAsync(intermediates -> {
+            long aggStart = System.nanoTime();
+            QueryTrace.record("remote execution", -1, remoteStart);
+            // Before combining, which may modify the responses.
+            cacheResponses(cacheable, planHash, intermediates, targetShards, readVersions, versionsConsistent.get(), readEpoch);
+            V ret = plan.combine(intermediates);
+            long aggEnd = System.nanoTime();
+            QueryTrace.record("combine", -1, aggStart);
+            remoteExecutionTimes.record((aggStart - remoteStart) / 1000L);
+            aggregationTimes.record((aggEnd - aggStart) / 1000L);
+            return ret;
+        }, traced);
+    }
+
+    /*
+     * PRIVATE FUNCTIONS
+     */
+
+    private TableInfo getTableInfo(String tableName) {
+        if (tableInfoMap.containsKey(tableName)) {
+            return tableInfoMap.get(tableName);
+        } else {
+            TableInfoResponse r = coordinatorBlockingStub.
+                    tableInfo(TableInfoMessage.newBuilder().setTableName(tableName).build());
+            assert(r.getReturnCode() == QUERY_SUCCESS);
+            TableInfo t = new TableInfo(tableName, r.getId(), r.getNumShards(), r.getRowCodec());
+            tableInfoMap.put(tableName, t);
+            return t;
+        }
+    }
+
+    /** Send a read to the datastore holding each anchor shard.  Completes with all their responses. **/
+    private CompletableFuture<List<ByteString>> anchoredReadFanout(AnchoredReadQueryMessage template, ByteString serializedQuery,
+                                                                   List<Integer> anchorTableShards, Map<Integer, Integer> readVersions,
+                                                                   AtomicBoolean versionsConsistent) {
+        ByteString planHash = template.getPlanHash();
+        readFanout.record(anchorTableShards.size());
+        List<ByteString> intermediates = new CopyOnWriteArrayList<>();
+        CompletableFuture<List<ByteString>> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(anchorTableShards.size());
+        if (anchorTableShards.isEmpty()) {
+            result.complete(intermediates);
+        }
         for (int anchorShardNum: anchorTableShards) {
             int dsID = consistentHash.getRandomBucket(anchorShardNum);
             ManagedChannel channel = dsIDToChannelMap.get(dsID);
             BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(channel);
-            AnchoredReadQueryMessage m = AnchoredReadQueryMessage.newBuilder().
-                    setTargetShard(anchorShardNum).setSerializedQuery(serializedQuery).setNumRepartitions(numRepartitions)
-                    .setTxID(txID).setLastCommittedVersion(lcv).setTargetShards(serializedTargetShards)
-                    .setIntermediateShards(serializedIntermediateShards).build();
+            AnchoredReadQueryMessage m = template.toBuilder().setTargetShard(anchorShardNum).build();
+            AnchoredReadQueryMessage mWithPlan = m.toBuilder().setSerializedQuery(serializedQuery).build();
             StreamObserver<AnchoredReadQueryResponse> responseObserver = new StreamObserver<>() {
+                int currentDSID = dsID;
+                boolean succeeded = false;
+                int failures = 0;
+
+                private void send(boolean includePlan) {
+                    ManagedChannel channel = dsIDToChannelMap.get(currentDSID);
+                    BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(channel);
+                    stub.anchoredReadQuery(includePlan || !shippedPlans.contains(planHash, currentDSID) ? mWithPlan : m, this);
+                }
 
                 private void retry() {
+                    readRetries.increment();
                     shardMapUpdateDaemon.updateMap();
-                    int newDSID = consistentHash.getRandomBucket(anchorShardNum);
-                    ManagedChannel channel = dsIDToChannelMap.get(newDSID);
-                    BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(channel);
-                    stub.anchoredReadQuery(m, this);
+                    currentDSID = consistentHash.getRandomBucket(anchorShardNum);
+                    send(false);
                 }
 
                 @Override
-                public void onNext(AnchoredReadQueryResponse r) {
-                    if (r.getReturnCode() == QUERY_RETRY) {
-                        logger.warn("Got QUERY_RETRY from DS{}", dsID);
+                public synchronized void onNext(AnchoredReadQueryResponse r) {
+                    if (r.getReturnCode() == QUERY_PLAN_MISSING) {
+                        shippedPlans.remove(planHash, currentDSID);
+                        send(true);
+                    } else if (r.getReturnCode() == QUERY_RETRY) {
+                        logger.warn("Got QUERY_RETRY from DS{}", currentDSID);
                         retry();
+                    } else if (r.getReturnCode() == QUERY_FAILURE) {
+                        logger.warn("Got QUERY_FAILURE from DS{} for shard {}", currentDSID, anchorShardNum);
+                        if (++failures > maxReadFailureRetries) {
+                            result.completeExceptionally(new IllegalStateException(String.format("Read of shard %d failed", anchorShardNum)));
+                        } else {
+                            retry();
+                        }
                     } else {
                         assert (r.getReturnCode() == QUERY_SUCCESS);
+                        shippedPlans.add(planHash, currentDSID);
                         intermediates.add(r.getResponse());
-                        latch.countDown();
+                        mergeVersions(r.getShardNumsList(), r.getVersionNumbersList(), readVersions, versionsConsistent);
+                        succeeded = true;
                     }
                 }
 
                 @Override
                 public void onError(Throwable throwable) {
-                    logger.warn("Read Query Error on DS{}: {}", dsID, throwable.getMessage());
+                    logger.warn("Read Query Error on DS{}: {}", currentDSID, throwable.getMessage());
                     retry();
                 }
 
                 @Override
-                public void onCompleted() {
+                public synchronized void onCompleted() {
+                    // Not on success itself:  a traced call's spans arrive just before it completes.
+                    if (succeeded) {
+                        succeeded = false;
+                        if (remaining.decrementAndGet() == 0) {
+                            result.complete(intermediates);
+                        }
+                    }
                 }
             };
-            stub.anchoredReadQuery(m, responseObserver);
+            stub.anchoredReadQuery(shippedPlans.contains(planHash, dsID) ? m : mWithPlan, responseObserver);
         }
-        try {
-            latch.await();
-        } catch (InterruptedException ignored) { }
-        long aggStart = System.nanoTime();
-        V ret;
-        if (plan.returnTableName().isEmpty()) {
-            ret = plan.combine(intermediates);
-        } else {
-            List<Map<Integer, Integer>> shardLocations = intermediates.stream()
-                    .map(i -> (Map<Integer, Integer>) Utilities.byteStringToObject(i))
-                    .collect(Collectors.toList());
-            Map<Integer, Integer> combinedShardLocations = new HashMap<>();
-            shardLocations.forEach(i -> i.forEach(combinedShardLocations::put));
-            Map<String, Map<Integer, Integer>> s = Map.of(plan.returnTableName().get(), combinedShardLocations);
-            intermediateShards.putAll(s);
-            ret = (V) intermediateShards;
-        }
-        long aggEnd = System.nanoTime();
-        aggregationTimes.add((aggEnd - aggStart) / 1000L);
-        return ret;
+        return result;
     }
 
-    public <S extends Shard, V> V shuffleReadQuery(ShuffleReadQueryPlan<S, V> plan) {
-        long txID = txIDs.getAndIncrement();
-        Map<String, List<Integer>> partitionKeys = plan.keysForQuery();
-        HashMap<String, List<Integer>> targetShards = new HashMap<>();
-        for (Map.Entry<String, List<Integer>> entry : partitionKeys.entrySet()) {
-            String tableName = entry.getKey();
-            List<Integer> tablePartitionKeys = entry.getValue();
-            TableInfo tableInfo = getTableInfo(tableName);
-            int tableID = tableInfo.id;
-            int numShards = tableInfo.numShards;
-            List<Integer> shardNums;
-            if (tablePartitionKeys.contains(-1)) {
-                // -1 is a wildcard--run on all shards.
-                shardNums = IntStream.range(tableID * SHARDS_PER_TABLE, tableID * SHARDS_PER_TABLE + numShards)
-                        .boxed().collect(Collectors.toList());
-            } else {
-                shardNums = tablePartitionKeys.stream().map(i -> keyToShard(tableID, numShards, i))
-                        .distinct().collect(Collectors.toList());
-            }
-            targetShards.put(tableName, shardNums);
-        }
-        ByteString serializedTargetShards = Utilities.objectToByteString(targetShards);
-        ByteString serializedQuery = Utilities.objectToByteString(plan);
+    /** Send a read to every datastore, each gathering one repartition.  Completes with all their responses. **/
+    private CompletableFuture<List<ByteString>> shuffleReadFanout(ShuffleReadQueryMessage template, ByteString serializedQuery,
+                                                                  Map<Integer, Integer> readVersions, AtomicBoolean versionsConsistent) {
+        ByteString planHash = template.getPlanHash();
         Set<Integer> dsIDs = dsIDToChannelMap.keySet();
         int numReducers = dsIDs.size();
+        readFanout.record(numReducers);
         List<ByteString> intermediates = new CopyOnWriteArrayList<>();
-        CountDownLatch latch = new CountDownLatch(numReducers);
+        CompletableFuture<List<ByteString>> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(numReducers);
+        if (numReducers == 0) {
+            result.complete(intermediates);
+        }
         int reducerNum = 0;
         for (int dsID : dsIDs) {
             ManagedChannel channel = dsIDToChannelMap.get(dsID);
             BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(channel);
-            ShuffleReadQueryMessage m = ShuffleReadQueryMessage.newBuilder().
-                    setRepartitionNum(reducerNum).setSerializedQuery(serializedQuery).setNumRepartitions(numReducers)
-                    .setTxID(txID).setTargetShards(serializedTargetShards).build();
+            ShuffleReadQueryMessage m = template.toBuilder().setRepartitionNum(reducerNum).setNumRepartitions(numReducers).build();
+            ShuffleReadQueryMessage mWithPlan = m.toBuilder().setSerializedQuery(serializedQuery).build();
             reducerNum++;
             StreamObserver<ShuffleReadQueryResponse> responseObserver = new StreamObserver<>() {
+                int currentDSID = dsID;
+                boolean planMissing = false;
+                boolean failed = false;
+                int failures = 0;
+
+                private void send(boolean includePlan) {
+                    ManagedChannel channel = dsIDToChannelMap.get(currentDSID);
+                    BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(channel);
+                    stub.shuffleReadQuery(includePlan || !shippedPlans.contains(planHash, currentDSID) ? mWithPlan : m, this);
+                }
+
                 @Override
                 public void onNext(ShuffleReadQueryResponse r) {
-                    assert (r.getReturnCode() == Broker.QUERY_SUCCESS);
-                    intermediates.add(r.getResponse());
+                    if (r.getReturnCode() == QUERY_PLAN_MISSING) {
+                        planMissing = true;
+                    } else if (r.getReturnCode() == QUERY_FAILURE) {
+                        logger.warn("Got QUERY_FAILURE from DS{} for repartition {}", currentDSID, m.getRepartitionNum());
+                        failed = true;
+                    } else {
+                        assert (r.getReturnCode() == Broker.QUERY_SUCCESS);
+                        intermediates.add(r.getResponse());
+                        mergeVersions(r.getShardNumsList(), r.getVersionNumbersList(), readVersions, versionsConsistent);
+                    }
                 }
 
                 @Override
                 public void onError(Throwable throwable) {
-                    logger.warn("Read Query Error on DS{}: {}", dsID, throwable.getMessage());
+                    logger.warn("Read Query Error on DS{}: {}", currentDSID, throwable.getMessage());
+                    readRetries.increment();
                     int numDSIDs = dsIDToChannelMap.keySet().size();
-                    Integer newDSID = dsIDToChannelMap.keySet().stream().skip(new Random().nextInt(numDSIDs)).findFirst().orElse(null);
-                    ManagedChannel channel = dsIDToChannelMap.get(newDSID);
-                    BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(channel);
-                    stub.shuffleReadQuery(m, this);
+                    currentDSID = dsIDToChannelMap.keySet().stream().skip(new Random().nextInt(numDSIDs)).findFirst().orElse(null);
+                    send(false);
                 }
 
                 @Override
                 public void onCompleted() {
-                    latch.countDown();
+                    if (planMissing) {
+                        planMissing = false;
+                        shippedPlans.remove(planHash, currentDSID);
+                        send(true);
+                    } else if (failed) {
+                        failed = false;
+                        if (++failures > maxReadFailureRetries) {
+                            result.completeExceptionally(new IllegalStateException(String.format("Shuffle repartition %d failed", m.getRepartitionNum())));
+                        } else {
+                            readRetries.increment();
+                            send(false);
+                        }
+                    } else {
+                        shippedPlans.add(planHash, currentDSID);
+                        if (remaining.decrementAndGet() == 0) {
+                            result.complete(intermediates);
+                        }
+                    }
                 }
             };
-            stub.shuffleReadQuery(m, responseObserver);
+            stub.shuffleReadQuery(shippedPlans.contains(planHash, dsID) ? m : mWithPlan, responseObserver);
         }
+        return result;
+    }
+
+    /** Run fanout, unless an identical read is in flight:  then share its responses instead.  key identifies
+     * identical reads, or is null if the read may not be shared.  Followers continue on traced. **/
+    private CompletableFuture<List<ByteString>> coalesce(Pair<ByteString, Long> key, Supplier<CompletableFuture<List<ByteString>>> fanout,
+                                                         Executor traced) {
+        if (key == null) {
+            return fanout.get();
+        }
+        CompletableFuture<List<ByteString>> read = new CompletableFuture<>();
+        CompletableFuture<List<ByteString>> inFlight = inFlightReads.putIfAbsent(key, read);
+        if (inFlight != null) {
+            long waitStart = System.nanoTime();
+            return inFlight.handleAsync((responses, e) -> {
+                if (e != null) {
+                    return fanout.get();
+                }
+                coalescedReads.increment();
+                QueryTrace.record("coalesced wait", -1, waitStart);
+                // Every query combines its own copy.
+                return CompletableFuture.completedFuture((List<ByteString>) new ArrayList<>(responses));
+            }, traced).thenCompose(f -> f);
+        }
+        CompletableFuture<List<ByteString>> responses;
         try {
-            latch.await();
-        } catch (InterruptedException ignored) {
+            responses = fanout.get();
+        } catch (RuntimeException | Error e) {
+            inFlightReads.remove(key, read);
+            read.completeExceptionally(e);
+            throw e;
+        }
+        return responses.whenComplete((r, e) -> {
+            // Reads starting from now on may follow a newer write, so they must not join this one.
+            inFlightReads.remove(key, read);
+            if (e == null) {
+                read.complete(List.copyOf(r));
+            } else {
+                read.completeExceptionally(e);
+            }
+        });
+    }
+
+    /** Combine the cached responses to a plan, if it has any. **/
+    private <V> Optional<V> cachedResult(ByteString planHash, Function<List<ByteString>, V> combine) {
+        long lookupStart = System.nanoTime();
+        List<ByteString> responses = resultCache.get(planHash);
+        if (responses == null) {
+            return Optional.empty();
         }
+        QueryTrace.record("result cache hit", -1, lookupStart);
         long aggStart = System.nanoTime();
-        V ret = plan.combine(intermediates);
-        long aggEnd = System.nanoTime();
-        aggregationTimes.add((aggEnd - aggStart) / 1000L);
-        return ret;
+        V ret = combine.apply(new ArrayList<>(responses));
+        QueryTrace.record("combine", -1, aggStart);
+        aggregationTimes.record((System.nanoTime() - aggStart) / 1000L);
+        return Optional.ofNullable(ret);
     }
 
-    /*
-     * PRIVATE FUNCTIONS
-     */
+    /** Add the shard versions one response was computed from to those of its query. **/
+    private static void mergeVersions(List<Integer> shardNums, List<Integer> versionNumbers,
+                                      Map<Integer, Integer> readVersions, AtomicBoolean versionsConsistent) {
+        for (int i = 0; i < shardNums.size(); i++) {
+            Integer previous = readVersions.putIfAbsent(shardNums.get(i), versionNumbers.get(i));
+            if (previous != null && !previous.equals(versionNumbers.get(i))) {
+                // Datastores read the shard at different versions, so a write overlapped the query.
+                versionsConsistent.set(false);
+            }
+        }
+    }
 
-    private TableInfo getTableInfo(String tableName) {
-        if (tableInfoMap.containsKey(tableName)) {
-            return tableInfoMap.get(tableName);
+    /** Learn the shard versions a query read, and cache its responses if they were computed from committed versions
+     * of every shard it targets. **/
+    private void cacheResponses(boolean cacheable, ByteString planHash, List<ByteString> responses,
+                                Map<String, List<Integer>> targetShards, Map<Integer, Integer> readVersions,
+                                boolean versionsConsistent, long readEpoch) {
+        if (!resultCache.enabled() || !versionsConsistent) {
+            return;
+        }
+        // A shard a datastore sent no data from reports no version.
+        boolean complete = targetShards.values().stream().flatMap(List::stream).allMatch(readVersions::containsKey);
+        if (cacheable && complete) {
+            resultCache.put(planHash, responses, readVersions, readEpoch);
         } else {
-            TableInfoResponse r = coordinatorBlockingStub.
-                    tableInfo(TableInfoMessage.newBuilder().setTableName(tableName).build());
-            assert(r.getReturnCode() == QUERY_SUCCESS);
-            TableInfo t = new TableInfo(tableName, r.getId(), r.getNumShards());
-            tableInfoMap.put(tableName, t);
-            return t;
+            resultCache.observe(readVersions, readEpoch);
         }
     }
 
@@ -398,6 +807,12 @@ public class Broker {
         return BrokerDataStoreGrpc.newBlockingStub(channel);
     }
 
+    /** Count the set of shards a query touches, so the coordinator can prefetch shards queried together **/
+    private void recordQueryStatistics(Map<String, List<Integer>> targetShards) {
+        Set<Integer> shards = targetShards.values().stream().flatMap(List::stream).collect(Collectors.toSet());
+        queryStatistics.merge(shards, 1, Integer::sum);
+    }
+
     public void sendStatisticsToCoordinator() {
         ByteString queryStatisticsSer = Utilities.objectToByteString(queryStatistics);
         QueryStatisticsMessage m = QueryStatisticsMessage.newBuilder().setQueryStatistics(queryStatisticsSer).build();
@@ -432,7 +847,9 @@ public class Broker {
                 } else if (d.status.get() == DataStoreDescription.ALIVE) {
                     ManagedChannel channel = Broker.this.dsIDToChannelMap.containsKey(dsID) ?
                             Broker.this.dsIDToChannelMap.get(dsID) :
-                            ManagedChannelBuilder.forAddress(d.host, d.port).usePlaintext().build();
+                            ManagedChannelBuilder.forAddress(d.host, d.port).usePlaintext()
+                                    .maxInboundMetadataSize(QueryTrace.maxTrailerBytes)
+                                    .intercept(QueryTrace.clientInterceptor()).build();
                     dsIDToChannelMap.put(dsID, channel);
                 } else if (d.status.get() == DataStoreDescription.DEAD) {
                     if (Broker.this.dsIDToChannelMap.containsKey(dsID)) {
@@ -464,226 +881,101 @@ public class Broker {
         }
     }
 
-    private class WriteQueryThread<R extends Row, S extends Shard> extends Thread {
+    // One shard's part of a write, streamed to the datastore holding the shard.
+    private class ShardWrite<R extends Row> {
         private final int shardNum;
-        private final WriteQueryPlan<R, S> writeQueryPlan;
+        private final ByteString serializedQuery;
+        private final ByteString planHash;
         private final R[] rowArray;
+        private final RowCodec<R> rowCodec;
         private final long txID;
-        private CountDownLatch queryLatch;
-        private AtomicInteger queryStatus;
-        private AtomicBoolean statusWritten;
-
-        WriteQueryThread(int shardNum, WriteQueryPlan<R, S> writeQueryPlan, R[] rowArray, long txID,
-                         CountDownLatch queryLatch, AtomicInteger queryStatus, AtomicBoolean statusWritten) {
+        // Simple writes are applied as soon as they are prepared.
+        private final boolean simple;
+        // The stream of the latest attempt, and a future completed when it closes.
+        private volatile StreamObserver<WriteQueryMessage> observer;
+        private volatile CompletableFuture<Void> finished;
+
+        ShardWrite(int shardNum, ByteString serializedQuery, ByteString planHash, R[] rowArray, RowCodec<R> rowCodec,
+                   long txID, boolean simple) {
             this.shardNum = shardNum;
-            this.writeQueryPlan = writeQueryPlan;
+            this.serializedQuery = serializedQuery;
+            this.planHash = planHash;
             this.rowArray = rowArray;
+            this.rowCodec = rowCodec;
             this.txID = txID;
-            this.queryLatch = queryLatch;
-            this.queryStatus = queryStatus;
-            this.statusWritten = statusWritten;
+            this.simple = simple;
         }
 
-        @Override
-        public void run() { writeQuery(); }
-
-        private void writeQuery() {
-            AtomicInteger subQueryStatus = new AtomicInteger(QUERY_RETRY);
-            while (subQueryStatus.get() == QUERY_RETRY) {
-                BrokerDataStoreGrpc.BrokerDataStoreBlockingStub blockingStub = getStubForShard(shardNum);
-                BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(blockingStub.getChannel());
-                final CountDownLatch prepareLatch = new CountDownLatch(1);
-                final CountDownLatch finishLatch = new CountDownLatch(1);
-                StreamObserver<WriteQueryMessage> observer =
-                        stub.writeQuery(new StreamObserver<>() {
-                            @Override
-                            public void onNext(WriteQueryResponse writeQueryResponse) {
-                                subQueryStatus.set(writeQueryResponse.getReturnCode());
-                                prepareLatch.countDown();
-                            }
-
-                            @Override
-                            public void onError(Throwable th) {
-                                logger.warn("Write query RPC failed for shard {}", shardNum);
-                                subQueryStatus.set(QUERY_FAILURE);
-                                prepareLatch.countDown();
-                                finishLatch.countDown();
-                            }
-
-                            @Override
-                            public void onCompleted() {
-                                finishLatch.countDown();
-                            }
-                        });
-                final int STEPSIZE = 1000;
-                for (int i = 0; i < rowArray.length; i += STEPSIZE) {
-                    ByteString serializedQuery = Utilities.objectToByteString(writeQueryPlan);
-                    R[] rowSlice = Arrays.copyOfRange(rowArray, i, Math.min(rowArray.length, i + STEPSIZE));
-                    ByteString rowData = Utilities.objectToByteString(rowSlice);
-                    WriteQueryMessage rowMessage = WriteQueryMessage.newBuilder()
-                            .setShard(shardNum).
-                            setSerializedQuery(serializedQuery)
-                            .setRowData(rowData)
-                            .setTxID(txID)
-                            .setWriteState(DataStore.COLLECT)
-                            .build();
-                    observer.onNext(rowMessage);
-                }
-                WriteQueryMessage prepare = WriteQueryMessage.newBuilder()
-                        .setWriteState(DataStore.PREPARE)
-                        .build();
-                observer.onNext(prepare);
-                try {
-                    prepareLatch.await();
-                } catch (InterruptedException e) {
-                    logger.error("Write Interrupted: {}", e.getMessage());
-                    assert (false);
-                }
-                if (subQueryStatus.get() == QUERY_RETRY) {
-                    try {
-                        observer.onCompleted();
-                        Thread.sleep(shardMapDaemonSleepDurationMillis);
-                        continue;
-                    } catch (InterruptedException e) {
-                        logger.error("Write Interrupted: {}", e.getMessage());
-                        assert (false);
-                    }
+        /** Send the rows and ask the datastore to prepare them.  Completes with its vote, once it votes anything but
+         * QUERY_RETRY; retries wait shardMapDaemonSleepDurationMillis without holding a thread. **/
+        CompletableFuture<Integer> prepare() {
+            BrokerDataStoreGrpc.BrokerDataStoreBlockingStub blockingStub = getStubForShard(shardNum);
+            BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(blockingStub.getChannel());
+            CompletableFuture<Integer> vote = new CompletableFuture<>();
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            StreamObserver<WriteQueryResponse> responseObserver = new StreamObserver<>() {
+                @Override
+                public void onNext(WriteQueryResponse writeQueryResponse) {
+                    vote.complete(writeQueryResponse.getReturnCode());
                 }
-                assert(subQueryStatus.get() != QUERY_RETRY);
-                if (subQueryStatus.get() == QUERY_FAILURE) {
-                    queryStatus.set(QUERY_FAILURE);
+
+                @Override
+                public void onError(Throwable th) {
+                    logger.warn("{} query RPC failed for shard {}", simple ? "SimpleWrite" : "Write", shardNum);
+                    vote.complete(QUERY_FAILURE);
+                    finished.complete(null);
                 }
-                queryLatch.countDown();
-                try {
-                    queryLatch.await();
-                } catch (InterruptedException e) {
-                    logger.error("Write Interrupted: {}", e.getMessage());
-                    assert (false);
+
+                @Override
+                public void onCompleted() {
+                    finished.complete(null);
                 }
-                assert(queryStatus.get() != QUERY_RETRY);
-                if (queryStatus.get() == QUERY_SUCCESS) {
-                    // TODO:  This must finish before any commit message is sent.
-                    if (statusWritten.compareAndSet(false, true)) {
-                        zkCurator.writeTransactionStatus(txID, DataStore.COMMIT);
-                    }
-                    WriteQueryMessage commit = WriteQueryMessage.newBuilder()
-                            .setWriteState(DataStore.COMMIT)
-                            .build();
-                    observer.onNext(commit);
-                } else if (queryStatus.get() == QUERY_FAILURE) {
-                    WriteQueryMessage abort = WriteQueryMessage.newBuilder()
-                            .setWriteState(DataStore.ABORT)
-                            .build();
-                    observer.onNext(abort);
+            };
+            StreamObserver<WriteQueryMessage> observer = simple ?
+                    stub.simpleWriteQuery(responseObserver) : stub.writeQuery(responseObserver);
+            this.observer = observer;
+            this.finished = finished;
+            final int STEPSIZE = 1000;
+            for (int i = 0; i < rowArray.length; i += STEPSIZE) {
+                R[] rowSlice = Arrays.copyOfRange(rowArray, i, Math.min(rowArray.length, i + STEPSIZE));
+                ByteString rowData = Utilities.rowsToByteString(rowSlice, rowCodec);
+                // Only the first chunk carries the plan; later chunks refer to it by hash.
+                WriteQueryMessage rowMessage = WriteQueryMessage.newBuilder()
+                        .setShard(shardNum)
+                        .setSerializedQuery(i == 0 ? serializedQuery : ByteString.EMPTY)
+                        .setPlanHash(planHash)
+                        .setRowData(rowData)
+                        .setTxID(txID)
+                        .setWriteState(DataStore.COLLECT)
+                        .build();
+                observer.onNext(rowMessage);
+            }
+            WriteQueryMessage prepare = WriteQueryMessage.newBuilder()
+                    .setWriteState(DataStore.PREPARE)
+                    .build();
+            observer.onNext(prepare);
+            return vote.thenCompose(status -> {
+                if (status != QUERY_RETRY) {
+                    return CompletableFuture.completedFuture(status);
                 }
+                writeRetries.increment();
                 observer.onCompleted();
-                try {
-                    finishLatch.await();
-                } catch (InterruptedException e) {
-                    logger.error("Write Interrupted: {}", e.getMessage());
-                    assert (false);
-                }
-            }
-        }
-    }
-
-    private class SimpleWriteQueryThread<R extends Row, S extends Shard> extends Thread {
-        private final int shardNum;
-        private final SimpleWriteQueryPlan<R, S> writeQueryPlan;
-        private final R[] rowArray;
-        private final long txID;
-        private AtomicInteger queryStatus;
-        private AtomicBoolean statusWritten;
-
-        SimpleWriteQueryThread(int shardNum, SimpleWriteQueryPlan<R, S> writeQueryPlan, R[] rowArray, long txID,
-                         AtomicInteger queryStatus, AtomicBoolean statusWritten) {
-            this.shardNum = shardNum;
-            this.writeQueryPlan = writeQueryPlan;
-            this.rowArray = rowArray;
-            this.txID = txID;
-            this.queryStatus = queryStatus;
-            this.statusWritten = statusWritten;
+                Executor later = CompletableFuture.delayedExecutor(shardMapDaemonSleepDurationMillis, TimeUnit.MILLISECONDS);
+                return CompletableFuture.supplyAsync(this::prepare, later).thenCompose(f -> f);
+            });
         }
 
-        @Override
-        public void run() { writeQuery(); }
-
-        private void writeQuery() {
-            AtomicInteger subQueryStatus = new AtomicInteger(QUERY_RETRY);
-            while (subQueryStatus.get() == QUERY_RETRY) {
-                BrokerDataStoreGrpc.BrokerDataStoreBlockingStub blockingStub = getStubForShard(shardNum);
-                BrokerDataStoreGrpc.BrokerDataStoreStub stub = BrokerDataStoreGrpc.newStub(blockingStub.getChannel());
-                final CountDownLatch prepareLatch = new CountDownLatch(1);
-                final CountDownLatch finishLatch = new CountDownLatch(1);
-                StreamObserver<WriteQueryMessage> observer =
-                        stub.simpleWriteQuery(new StreamObserver<>() {
-                            @Override
-                            public void onNext(WriteQueryResponse writeQueryResponse) {
-                                subQueryStatus.set(writeQueryResponse.getReturnCode());
-                                prepareLatch.countDown();
-                            }
-
-                            @Override
-                            public void onError(Throwable th) {
-                                logger.warn("SimpleWrite query RPC failed for shard {}", shardNum);
-                                subQueryStatus.set(QUERY_FAILURE);
-                                prepareLatch.countDown();
-                                finishLatch.countDown();
-                            }
-
-                            @Override
-                            public void onCompleted() {
-                                finishLatch.countDown();
-                            }
-                        });
-                final int STEPSIZE = 1000;
-                for (int i = 0; i < rowArray.length; i += STEPSIZE) {
-                    ByteString serializedQuery = Utilities.objectToByteString(writeQueryPlan);
-                    R[] rowSlice = Arrays.copyOfRange(rowArray, i, Math.min(rowArray.length, i + STEPSIZE));
-                    ByteString rowData = Utilities.objectToByteString(rowSlice);
-                    WriteQueryMessage rowMessage = WriteQueryMessage.newBuilder()
-                            .setShard(shardNum).
-                            setSerializedQuery(serializedQuery)
-                            .setRowData(rowData)
-                            .setTxID(txID)
-                            .setWriteState(DataStore.COLLECT)
-                            .build();
-                    observer.onNext(rowMessage);
-                }
-                WriteQueryMessage prepare = WriteQueryMessage.newBuilder()
-                        .setWriteState(DataStore.PREPARE)
+        /** Send the outcome of a prepared write, which simple writes do not wait for, and close the stream.  Completes
+         * once the datastore has closed it too. **/
+        CompletableFuture<Void> finish(int writeState) {
+            if (!simple) {
+                WriteQueryMessage m = WriteQueryMessage.newBuilder()
+                        .setWriteState(writeState)
                         .build();
-                observer.onNext(prepare);
-                try {
-                    prepareLatch.await();
-                } catch (InterruptedException e) {
-                    logger.error("SimpleWrite Interrupted: {}", e.getMessage());
-                    assert (false);
-                }
-                if (subQueryStatus.get() == QUERY_RETRY) {
-                    try {
-                        observer.onCompleted();
-                        Thread.sleep(shardMapDaemonSleepDurationMillis);
-                        continue;
-                    } catch (InterruptedException e) {
-                        logger.error("SimpleWrite Interrupted: {}", e.getMessage());
-                        assert (false);
-                    }
-                }
-                assert(subQueryStatus.get() != QUERY_RETRY);
-                if (subQueryStatus.get() == QUERY_FAILURE) {
-                    queryStatus.set(QUERY_FAILURE);
-                }
-                assert(queryStatus.get() != QUERY_RETRY);
-                observer.onCompleted();
-                try {
-                    finishLatch.await();
-                } catch (InterruptedException e) {
-                    logger.error("SimpleWrite Interrupted: {}", e.getMessage());
-                    assert (false);
-                }
+                observer.onNext(m);
             }
+            observer.onCompleted();
+            return finished;
         }
     }
 }
-
@@ -0,0 +1,144 @@
+package edu.stanford.futuredata.uniserve.broker;
+
+import com.google.protobuf.ByteString;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Datastore responses to cacheable read plans, keyed by plan hash, so a repeated query is combined without contacting
+ * the cluster.  Each entry records the version of every shard its responses were computed from.  The broker learns
+ * shard versions from the responses to all its reads and forgets those of shards it writes; an entry is only hit while
+ * every version it records is the newest the broker knows of, and for at most ttlMillis.  Writes through this broker
+ * therefore invalidate entries at once, and writes through other brokers once they are observed or the entries expire.
+ * Bounded by the size of the cached responses, evicting least-recently-used first.
+ */
+class ResultCache {
+
+    private static class Entry {
+        final List<ByteString> responses;
+        final Map<Integer, Integer> shardVersions;
+        final long createdTime;
+        final long sizeBytes;
+
+        Entry(List<ByteString> responses, Map<Integer, Integer> shardVersions, long createdTime) {
+            this.responses = responses;
+            this.shardVersions = shardVersions;
+            this.createdTime = createdTime;
+            this.sizeBytes = responses.stream().mapToLong(ByteString::size).sum();
+        }
+    }
+
+    private final Map<ByteString, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Map from shard number to the newest version a response has reported.
+    private final Map<Integer, Integer> knownVersions = new HashMap<>();
+    private final long capacityBytes;
+    private final long ttlMillis;
+    private long sizeBytes = 0;
+    // Incremented when a write starts and when one finishes.  A read overlapping a write may report versions from
+    // before it, so it is neither learned from nor cached.
+    private long writeEpoch = 0;
+    private int writesInProgress = 0;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    ResultCache(long capacityBytes, long ttlMillis, LongAdder hits, LongAdder misses) {
+        this.capacityBytes = capacityBytes;
+        this.ttlMillis = ttlMillis;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    boolean enabled() {
+        return capacityBytes > 0 && ttlMillis > 0;
+    }
+
+    /** Call before sending a read; pass the value returned to observe or put. **/
+    synchronized long startRead() {
+        return writesInProgress > 0 ? -1 : writeEpoch;
+    }
+
+    /** The cached responses for planHash, or null. **/
+    synchronized List<ByteString> get(ByteString planHash) {
+        Entry entry = entries.get(planHash);
+        if (entry != null && !valid(entry)) {
+            remove(planHash);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.responses;
+    }
+
+    /** Learn the shard versions reported by a read started at readEpoch. **/
+    synchronized void observe(Map<Integer, Integer> shardVersions, long readEpoch) {
+        if (readEpoch < 0 || readEpoch != writeEpoch || writesInProgress > 0) {
+            return;
+        }
+        shardVersions.forEach((shardNum, versionNumber) -> {
+            if (versionNumber >= 0) {
+                knownVersions.merge(shardNum, versionNumber, Math::max);
+            }
+        });
+    }
+
+    /** Cache the responses to planHash computed from shardVersions by a read started at readEpoch. **/
+    synchronized void put(ByteString planHash, List<ByteString> responses, Map<Integer, Integer> shardVersions, long readEpoch) {
+        observe(shardVersions, readEpoch);
+        if (readEpoch < 0 || readEpoch != writeEpoch || writesInProgress > 0 || shardVersions.containsValue(-1)) {
+            return;
+        }
+        Entry entry = new Entry(List.copyOf(responses), Map.copyOf(shardVersions), System.currentTimeMillis());
+        if (entry.sizeBytes > capacityBytes || !valid(entry)) {
+            return;
+        }
+        remove(planHash);
+        entries.put(planHash, entry);
+        sizeBytes += entry.sizeBytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (sizeBytes > capacityBytes) {
+            sizeBytes -= it.next().sizeBytes;
+            it.remove();
+        }
+    }
+
+    /** Call before writing shardNums; entries that read them are no longer hit. **/
+    synchronized void startWrite(Collection<Integer> shardNums) {
+        writeEpoch++;
+        writesInProgress++;
+        knownVersions.keySet().removeAll(shardNums);
+    }
+
+    /** Call once a write started by startWrite has committed or aborted. **/
+    synchronized void finishWrite(Collection<Integer> shardNums) {
+        writeEpoch++;
+        writesInProgress--;
+        knownVersions.keySet().removeAll(shardNums);
+    }
+
+    synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    private boolean valid(Entry entry) {
+        if (System.currentTimeMillis() - entry.createdTime >= ttlMillis) {
+            return false;
+        }
+        for (Map.Entry<Integer, Integer> e: entry.shardVersions.entrySet()) {
+            if (!e.getValue().equals(knownVersions.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void remove(ByteString planHash) {
+        Entry entry = entries.remove(planHash);
+        if (entry != null) {
+            sizeBytes -= entry.sizeBytes;
+        }
+    }
+}
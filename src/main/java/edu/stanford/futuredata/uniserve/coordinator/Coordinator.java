@@ -5,8 +5,12 @@ import edu.stanford.futuredata.uniserve.*;
 import edu.stanford.futuredata.uniserve.broker.Broker;
 import edu.stanford.futuredata.uniserve.utilities.ConsistentHash;
 import edu.stanford.futuredata.uniserve.utilities.DataStoreDescription;
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+import edu.stanford.futuredata.uniserve.utilities.MetricsRegistry;
+import edu.stanford.futuredata.uniserve.utilities.MetricsServer;
 import edu.stanford.futuredata.uniserve.utilities.TableInfo;
 import edu.stanford.futuredata.uniserve.utilities.Utilities;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
@@ -16,6 +20,7 @@ import org.javatuples.Triplet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -57,6 +62,9 @@ public class Coordinator {
     public Map<Set<Integer>, Integer> queryStatistics = new ConcurrentHashMap<>();
     // Lock on the queryStatistics map.
     final Lock statisticsLock = new ReentrantLock();
+    // Shard sets queried at least this often since statistics were last aged are prefetched, most frequent first.
+    public static int prefetchMinFrequency = 2;
+    public static int prefetchMaxSets = 32;
     // Maps from DSIDs to the cloud IDs uniquely assigned by the autoscaler to new datastores.
     public Map<Integer, Integer> dsIDToCloudID = new ConcurrentHashMap<>();
 
@@ -70,6 +78,15 @@ public class Coordinator {
     // the operation, lock, retrieve the local copies, set the ZK mirrors to the local copies, unlock.
     public final Lock shardMapLock = new ReentrantLock();
 
+    // Operational metrics, served in Prometheus text format by startMetricsServer.  Times are in microseconds.
+    public final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsServer metricsServer = null;
+    // The load most recently collected by the load balancer.
+    private volatile Triplet<Map<Integer, Integer>, Map<Integer, Integer>, Map<Integer, Double>> lastCollectedLoad =
+            new Triplet<>(Map.of(), Map.of(), Map.of());
+    private final LatencyHistogram loadBalancerTimes = metrics.histogram("uniserve_coordinator_load_balancer_microseconds",
+            "Time to collect load and rebalance shards.");
+
     public Coordinator(CoordinatorCloud cCloud, LoadBalancer loadBalancer, AutoScaler autoScaler, String zkHost, int zkPort, String coordinatorHost, int coordinatorPort) {
         this.coordinatorHost = coordinatorHost;
         this.coordinatorPort = coordinatorPort;
@@ -82,6 +99,26 @@ public class Coordinator {
                 .build();
         this.loadBalancerDaemon = new LoadBalancerDaemon();
         this.cCloud = cCloud;
+        metrics.gauge("uniserve_coordinator_shard_queries", "Read queries on each shard over the last load collection interval.",
+                "shard", () -> lastCollectedLoad.getValue0());
+        metrics.gauge("uniserve_coordinator_shard_memory_kilobytes", "Memory used by each shard at the last load collection.",
+                "shard", () -> lastCollectedLoad.getValue1());
+        metrics.gauge("uniserve_coordinator_datastore_cpu_usage", "CPU usage of each datastore at the last load collection.",
+                "datastore", () -> lastCollectedLoad.getValue2());
+        metrics.gauge("uniserve_coordinator_datastores_alive", "Datastores currently alive.",
+                () -> dataStoresMap.values().stream().filter(i -> i.status.get() == DataStoreDescription.ALIVE).count());
+    }
+
+    /** Serve metrics at http://host:port/metrics. **/
+    public boolean startMetricsServer(int port) {
+        try {
+            metricsServer = new MetricsServer(port, metrics);
+        } catch (IOException e) {
+            logger.warn("Coordinator metrics server startup failed: {}", e.getMessage());
+            return false;
+        }
+        metricsServer.start();
+        return true;
     }
 
     /** Start serving requests. */
@@ -113,6 +150,9 @@ public class Coordinator {
         if (server != null) {
             server.shutdown();
         }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
         for(ManagedChannel channel: dataStoreChannelsMap.values()) {
             channel.shutdown();
         }
@@ -200,6 +240,49 @@ public class Coordinator {
         }
     }
 
+    /** Ask datastores to load the shards of the most frequently co-accessed sets before those are next queried. **/
+    public void sendPrefetchHints() {
+        statisticsLock.lock();
+        List<Set<Integer>> hotSets = queryStatistics.entrySet().stream()
+                .filter(e -> e.getValue() >= prefetchMinFrequency)
+                .sorted(Map.Entry.<Set<Integer>, Integer>comparingByValue().reversed())
+                .limit(prefetchMaxSets)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        // Age the statistics so hints follow the current workload.
+        queryStatistics.replaceAll((s, v) -> v / 2);
+        queryStatistics.values().removeIf(v -> v == 0);
+        statisticsLock.unlock();
+        Map<Integer, LinkedHashSet<Integer>> dsIDToShards = new HashMap<>();
+        for (Set<Integer> hotSet: hotSets) {
+            for (int shardNum: hotSet) {
+                for (int dsID: consistentHash.getBuckets(shardNum)) {
+                    dsIDToShards.computeIfAbsent(dsID, k -> new LinkedHashSet<>()).add(shardNum);
+                }
+            }
+        }
+        for (Map.Entry<Integer, LinkedHashSet<Integer>> e: dsIDToShards.entrySet()) {
+            ManagedChannel channel = dataStoreChannelsMap.get(e.getKey());
+            if (channel == null || dataStoresMap.get(e.getKey()).status.get() != DataStoreDescription.ALIVE) {
+                continue;
+            }
+            PrefetchShardsMessage m = PrefetchShardsMessage.newBuilder().addAllShards(e.getValue()).build();
+            // Hints are sent while handling a broker's RPC; detach them so they are not cancelled when it returns.
+            Context.current().fork().run(() -> CoordinatorDataStoreGrpc.newStub(channel).prefetchShards(m, new StreamObserver<>() {
+                @Override
+                public void onNext(PrefetchShardsResponse r) {}
+
+                @Override
+                public void onError(Throwable throwable) {
+                    logger.info("DS{} prefetch hint failed: {}", e.getKey(), throwable.getMessage());
+                }
+
+                @Override
+                public void onCompleted() {}
+            }));
+        }
+    }
+
     /** Construct three load maps:
      * 1.  Shard number to shard QPS.
      * 2.  Shard number to shard memory usage.
@@ -354,7 +437,9 @@ public class Coordinator {
                 } catch (InterruptedException e) {
                     return;
                 }
+                long loadBalancerStart = System.nanoTime();
                 Triplet<Map<Integer, Integer>, Map<Integer, Integer>, Map<Integer, Double>> load = collectLoad();
+                lastCollectedLoad = load;
                 Map<Integer, Integer> qpsLoad = load.getValue0();
                 Map<Integer, Integer> memoryUsages = load.getValue1();
                 logger.info("Collected QPS Load: {}", qpsLoad);
@@ -376,6 +461,7 @@ public class Coordinator {
                     }
                     consistentHashLock.unlock();
                 }
+                loadBalancerTimes.record((System.nanoTime() - loadBalancerStart) / 1000L);
             }
         }
     }
@@ -32,6 +32,7 @@ class ServiceBrokerCoordinator extends BrokerCoordinatorGrpc.BrokerCoordinatorIm
         coordinator.statisticsLock.lock();
         queryStatistics.forEach((s, v) -> coordinator.queryStatistics.merge(s, v, Integer::sum));
         coordinator.statisticsLock.unlock();
+        coordinator.sendPrefetchHints();
         return QueryStatisticsResponse.newBuilder().build();
     }
 
@@ -45,7 +46,7 @@ class ServiceBrokerCoordinator extends BrokerCoordinatorGrpc.BrokerCoordinatorIm
         String tableName = m.getTableName();
         int numShards = m.getNumShards();
         int tableID = coordinator.tableNumber.getAndIncrement();
-        TableInfo t = new TableInfo(tableName, tableID, numShards);
+        TableInfo t = new TableInfo(tableName, tableID, numShards, m.getRowCodec());
         if (coordinator.tableInfoMap.putIfAbsent(tableName, t) != null) {
             return CreateTableResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
         } else {
@@ -66,7 +67,8 @@ class ServiceBrokerCoordinator extends BrokerCoordinatorGrpc.BrokerCoordinatorIm
             TableInfo t = coordinator.tableInfoMap.get(tableName);
             return TableInfoResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS)
                     .setId(t.id)
-                    .setNumShards(t.numShards).build();
+                    .setNumShards(t.numShards)
+                    .setRowCodec(t.serializedRowCodec).build();
         } else {
             return TableInfoResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
         }
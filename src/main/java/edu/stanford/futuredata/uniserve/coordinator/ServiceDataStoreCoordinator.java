@@ -39,6 +39,14 @@ class ServiceDataStoreCoordinator extends DataStoreCoordinatorGrpc.DataStoreCoor
         int port = m.getPort();
         int cloudID = m.getCloudID();
         coordinator.consistentHashLock.lock();
+        // A DataStore registering at the address of a live one has restarted, so its previous incarnation is gone.
+        for (DataStoreDescription d: coordinator.dataStoresMap.values()) {
+            if (d.host.equals(host) && d.port == port && d.status.compareAndSet(DataStoreDescription.ALIVE, DataStoreDescription.DEAD)) {
+                logger.warn("DS{} replaced by restarted DataStore", d.dsID);
+                coordinator.zkCurator.setDSDescription(d);
+                coordinator.consistentHash.removeBucket(d.dsID);
+            }
+        }
         Integer dsID = coordinator.dataStoreNumber.getAndIncrement();
         if (cloudID != -1) {
             assert(cloudID >= 0);
@@ -109,7 +117,8 @@ class ServiceDataStoreCoordinator extends DataStoreCoordinatorGrpc.DataStoreCoor
             TableInfo t = coordinator.tableInfoMap.get(tableName);
             return DTableInfoResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS)
                     .setId(t.id)
-                    .setNumShards(t.numShards).build();
+                    .setNumShards(t.numShards)
+                    .setRowCodec(t.serializedRowCodec).build();
         } else {
             return DTableInfoResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
         }
@@ -1,16 +1,27 @@
 package edu.stanford.futuredata.uniserve.datastore;
 
+import com.google.protobuf.ByteString;
 import edu.stanford.futuredata.uniserve.*;
 import edu.stanford.futuredata.uniserve.broker.Broker;
 import edu.stanford.futuredata.uniserve.interfaces.Row;
+import edu.stanford.futuredata.uniserve.interfaces.RowCodec;
 import edu.stanford.futuredata.uniserve.interfaces.Shard;
 import edu.stanford.futuredata.uniserve.interfaces.ShardFactory;
+import edu.stanford.futuredata.uniserve.interfaces.SimpleWriteQueryPlan;
 import edu.stanford.futuredata.uniserve.interfaces.WriteQueryPlan;
 import edu.stanford.futuredata.uniserve.utilities.ConsistentHash;
 import edu.stanford.futuredata.uniserve.utilities.DataStoreDescription;
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+import edu.stanford.futuredata.uniserve.utilities.MetricsRegistry;
+import edu.stanford.futuredata.uniserve.utilities.MetricsServer;
+import edu.stanford.futuredata.uniserve.utilities.QPSCounter;
+import edu.stanford.futuredata.uniserve.utilities.QueryTrace;
+import edu.stanford.futuredata.uniserve.utilities.ShippedPlans;
 import edu.stanford.futuredata.uniserve.utilities.TableInfo;
+import edu.stanford.futuredata.uniserve.utilities.Utilities;
 import edu.stanford.futuredata.uniserve.utilities.ZKShardDescription;
 import io.grpc.*;
+import org.apache.commons.io.FileUtils;
 import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,9 +30,12 @@ import java.io.*;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 public class DataStore<R extends Row, S extends Shard> {
 
@@ -30,32 +44,81 @@ public class DataStore<R extends Row, S extends Shard> {
     // Datastore metadata
     public int dsID = -1;
     private int cloudID;
-    private final String dsHost;
-    private final int dsPort;
+    final String dsHost;
+    final int dsPort;
     final boolean readWriteAtomicity;
     public boolean serving = false;
-    public boolean useReflink = false;
+    // Log commits to a local write-ahead log and checkpoint shards to the cloud in the background, instead of
+    // uploading every shard after every write.  Must be set before startServing.
+    public boolean useWriteAheadLog = false;
 
     // Map from shard number to shard data structure.
     public final Map<Integer, S> shardMap = new ConcurrentHashMap<>(); // Public for testing.
-    // Map from shard number to old versions.  TODO:  Delete older versions.
+    // Map from shard number to the uncommitted copies being written by in-flight transactions, by txID.
     final Map<Integer, Map<Long, S>> multiVersionShardMap = new ConcurrentHashMap<>();
+    // Map from shard number to committed versions still visible to snapshot reads.
+    final Map<Integer, ShardVersions<S>> committedVersionMap = new ConcurrentHashMap<>();
+    // How long a superseded version stays readable by snapshots older than its successor.
+    public static long shardVersionRetentionMillis = 1000;
+    // Shards this datastore is responsible for but has evicted from memory; reloaded on demand.
+    final Set<Integer> evictedShards = ConcurrentHashMap.newKeySet();
+    // Map from shard number to the last time (in nanoseconds) it was accessed.
+    final Map<Integer, Long> shardAccessTimes = new ConcurrentHashMap<>();
+    // Memory (as reported by Shard.getMemoryUsage) resident shards may use before cold ones are evicted.
+    public static long shardMemoryBudgetKB = Long.MAX_VALUE;
+    // Loads shards the coordinator expects to be queried soon, one at a time.
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
     // Map from shard number to shard version number.
     final Map<Integer, Integer> shardVersionMap = new ConcurrentHashMap<>();
     // Map from shard number to access lock.
     final Map<Integer, ShardLock> shardLockMap = new ConcurrentHashMap<>();
-    // Map from shard number to maps from version number to write query and data.  TODO:  Clean older entries.
-    final Map<Integer, Map<Integer, Pair<WriteQueryPlan<R, S>, List<R>>>> writeLog = new ConcurrentHashMap<>();
+    // Writes to each shard since its last cloud checkpoint, used to bootstrap replicas.
+    final WriteLog writeLog;
+    public static long writeLogMemoryBudgetBytes = 64L * 1024 * 1024;
+    // Target size of each chunk of writes streamed to a bootstrapping replica.
+    public static int bootstrapChunkSizeBytes = 1024 * 1024;
+    // Map from shard number to the version each replica bootstrapping from here has been sent, by replica dsID.
+    final Map<Integer, Map<Integer, Integer>> bootstrapVersionMap = new ConcurrentHashMap<>();
+    // How many times a replica restarts its bootstrap from a newer checkpoint before giving up.
+    public static int maxBootstrapRestarts = 3;
+    // Size of each chunk of file data streamed when copying a shard to another datastore.
+    public static int shardTransferChunkSizeBytes = 1024 * 1024;
+    // Scattered shuffle data waiting for its repartitions to fetch it, spilled to disk past the memory budget.
+    final ShuffleBuffer shuffleBuffer;
+    public static long shuffleMemoryBudgetBytes = 256L * 1024 * 1024;
+    // How long a shuffle may wait for all its repartitions before its data and bookkeeping are discarded.
+    public static long shuffleTimeoutMillis = 60000;
+    // Recent scatter results, reused by shuffles of the same plan on the same shard version.
+    final ScatterCache scatterCache;
+    public static long scatterCacheCapacityBytes = 64L * 1024 * 1024;
+    // Recent gather results of cacheable anchored read plans, reused while none of the shards they read change.
+    final GatherCache gatherCache;
+    public static long gatherCacheCapacityBytes = 64L * 1024 * 1024;
     // Map from primary shard number to list of replica descriptions for that shard.
     final Map<Integer, List<ReplicaDescription>> replicaDescriptionsMap = new ConcurrentHashMap<>();
     // Map from primary shard number to last timestamp known for the shard.
     final Map<Integer, Long> shardTimestampMap = new ConcurrentHashMap<>();
     // Map from Unix second timestamp to number of read queries made during that timestamp, per shard.
-    final Map<Integer, Map<Long, Integer>> QPSMap = new ConcurrentHashMap<>();
+    final Map<Integer, QPSCounter> QPSMap = new ConcurrentHashMap<>();
     // Map from table names to tableInfos.
     private final Map<String, TableInfo> tableInfoMap = new ConcurrentHashMap<>();
     // Map from dsID to a ManagedChannel.
     private final Map<Integer, ManagedChannel> dsIDToChannelMap = new ConcurrentHashMap<>();
+    // Map from shard number to the version of its latest cloud checkpoint.
+    final Map<Integer, Integer> checkpointVersionMap = new ConcurrentHashMap<>();
+    // Deserialized query plans, keyed by the hash of their serialized bytes.
+    public static int planRegistryCapacity = 1024;
+    final QueryPlanRegistry planRegistry = new QueryPlanRegistry(planRegistryCapacity);
+    // Map from read plan hashes to the other datastores known to hold those plans, so shuffles ship each plan once.
+    public static int shippedPlanCacheCapacity = 1024;
+    final ShippedPlans shippedPlans = new ShippedPlans(shippedPlanCacheCapacity);
+    // Threads serving each gRPC service.  When all are busy, calls queue by priority class; see RpcExecutor.
+    public static int brokerServiceThreads = 256;
+    public static int dataStoreServiceThreads = 256;
+    public static int coordinatorServiceThreads = 64;
+    private final List<RpcExecutor> rpcExecutors;
+    // Also called in-process to shuffle shards this datastore holds.
+    final ServiceDataStoreDataStore<R, S> dataStoreService;
 
     private final Server server;
     final DataStoreCurator zkCurator;
@@ -73,16 +136,53 @@ public class DataStore<R extends Row, S extends Shard> {
     public final static int pingDaemonSleepDurationMillis = 100;
     private final static int pingDaemonRefreshInterval = 10;
 
+    final WriteAheadLog writeAheadLog;
+    public boolean runCheckpointDaemon = true; // Public for testing
+    private final CheckpointDaemon checkpointDaemon;
+    public static int checkpointDaemonSleepDurationMillis = 10000;
+
     // Collect execution times of all read queries.
-    public final Collection<Long> readQueryExecuteTimes = new ConcurrentLinkedQueue<>();
-    public final Collection<Long> readQueryFullTimes = new ConcurrentLinkedQueue<>();
+    public final LatencyHistogram readQueryExecuteTimes = new LatencyHistogram();
+    public final LatencyHistogram readQueryFullTimes = new LatencyHistogram();
+
+    // Operational metrics, served in Prometheus text format by startMetricsServer.  Times are in microseconds.
+    public final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsServer metricsServer = null;
+    // Map from shard number to latencies of read queries anchored on it.
+    final Map<Integer, LatencyHistogram> shardReadTimes = new ConcurrentHashMap<>();
+    // Time spent blocked acquiring shard locks, by mode.
+    final Map<String, LatencyHistogram> shardLockWaitTimes =
+            Map.of("system", new LatencyHistogram(), "write", new LatencyHistogram(), "read", new LatencyHistogram());
+    // Duration of each phase of two-phase-commit writes.
+    final Map<String, LatencyHistogram> writePhaseTimes =
+            Map.of("prepare", new LatencyHistogram(), "commit", new LatencyHistogram(), "abort", new LatencyHistogram());
+    final LatencyHistogram shardUploadTimes = metrics.histogram("uniserve_shard_upload_microseconds",
+            "Time to checkpoint a shard to the cloud.");
+    final LatencyHistogram shardDownloadTimes = metrics.histogram("uniserve_shard_download_microseconds",
+            "Time to download a shard checkpoint from the cloud.");
+    final LatencyHistogram shardTransferTimes = metrics.histogram("uniserve_shard_transfer_microseconds",
+            "Time to copy a shard from another datastore.");
+    final LongAdder shardTransferBytes = metrics.counter("uniserve_shard_transfer_bytes_total",
+            "Bytes of shard data received from other datastores.");
+    final LongAdder shuffleBytesSent = metrics.counter("uniserve_shuffle_sent_bytes_total",
+            "Bytes of scattered data sent to other datastores during shuffles.");
+    final LongAdder localShuffleFetches = metrics.counter("uniserve_shuffle_local_fetches_total",
+            "Shuffle fetches served in-process because this datastore holds the shard.");
+    final LongAdder shufflePlansSent = metrics.counter("uniserve_shuffle_plans_sent_total",
+            "Shuffle fetches that carried their query plan to another datastore.");
 
     public static final int COLLECT = 0;
     public static final int PREPARE = 1;
     public static final int COMMIT = 2;
     public static final int ABORT = 3;
+    // Cloud name recorded in ZooKeeper for a shard with no checkpoint yet.
+    static final String NO_CHECKPOINT = "";
 
     ConsistentHash consistentHash;
+    // The consistent hash before the last reshuffle.  Its owners of a shard may still hold it after it moved here.
+    volatile ConsistentHash previousConsistentHash;
+    // Held while loading a shard, so concurrent readers load it only once.
+    private final Map<Integer, Object> shardLoadLocks = new ConcurrentHashMap<>();
 
     public DataStore(DataStoreCloud dsCloud, ShardFactory<S> shardFactory, Path baseDirectory, String zkHost, int zkPort, String dsHost, int dsPort, int cloudID, boolean readWriteAtomicity) {
         this.dsHost = dsHost;
@@ -91,14 +191,86 @@ public class DataStore<R extends Row, S extends Shard> {
         this.readWriteAtomicity = readWriteAtomicity;
         this.shardFactory = shardFactory;
         this.baseDirectory = baseDirectory;
+        // Queries traced by their broker are traced here too, and the spans returned with the response.
+        ServerInterceptor tracing = QueryTrace.serverInterceptor(() -> "DS" + dsID);
+        RpcExecutor brokerExecutor = new RpcExecutor("broker", brokerServiceThreads, RpcExecutor.Priority.INTERACTIVE, Map.of(
+                BrokerDataStoreGrpc.getWriteQueryMethod().getFullMethodName(), RpcExecutor.Priority.CRITICAL,
+                BrokerDataStoreGrpc.getSimpleWriteQueryMethod().getFullMethodName(), RpcExecutor.Priority.CRITICAL,
+                BrokerDataStoreGrpc.getShuffleReadQueryMethod().getFullMethodName(), RpcExecutor.Priority.BATCH));
+        RpcExecutor dataStoreExecutor = new RpcExecutor("datastore", dataStoreServiceThreads, RpcExecutor.Priority.CRITICAL, Map.of(
+                DataStoreDataStoreGrpc.getAnchoredShuffleMethod().getFullMethodName(), RpcExecutor.Priority.INTERACTIVE,
+                DataStoreDataStoreGrpc.getShuffleMethod().getFullMethodName(), RpcExecutor.Priority.BATCH,
+                DataStoreDataStoreGrpc.getShardVersionsMethod().getFullMethodName(), RpcExecutor.Priority.INTERACTIVE,
+                DataStoreDataStoreGrpc.getBootstrapReplicaMethod().getFullMethodName(), RpcExecutor.Priority.BACKGROUND,
+                DataStoreDataStoreGrpc.getTransferShardMethod().getFullMethodName(), RpcExecutor.Priority.BACKGROUND));
+        RpcExecutor coordinatorExecutor = new RpcExecutor("coordinator", coordinatorServiceThreads, RpcExecutor.Priority.CRITICAL, Map.of(
+                CoordinatorDataStoreGrpc.getLoadShardReplicaMethod().getFullMethodName(), RpcExecutor.Priority.BACKGROUND,
+                CoordinatorDataStoreGrpc.getExecuteReshuffleAddMethod().getFullMethodName(), RpcExecutor.Priority.BACKGROUND,
+                CoordinatorDataStoreGrpc.getExecuteReshuffleRemoveMethod().getFullMethodName(), RpcExecutor.Priority.BACKGROUND,
+                CoordinatorDataStoreGrpc.getPrefetchShardsMethod().getFullMethodName(), RpcExecutor.Priority.BACKGROUND));
+        this.rpcExecutors = List.of(brokerExecutor, dataStoreExecutor, coordinatorExecutor);
+        this.dataStoreService = new ServiceDataStoreDataStore<>(this);
+        // Handlers run on their service's executor; transport threads only hand calls over.
         this.server = ServerBuilder.forPort(dsPort)
-                .addService(new ServiceBrokerDataStore<>(this))
-                .addService(new ServiceCoordinatorDataStore<>(this))
-                .addService(new ServiceDataStoreDataStore<>(this))
+                .directExecutor()
+                .addService(ServerInterceptors.intercept(new ServiceBrokerDataStore<>(this), tracing, brokerExecutor))
+                .addService(ServerInterceptors.intercept(new ServiceCoordinatorDataStore<>(this), coordinatorExecutor))
+                .addService(ServerInterceptors.intercept(dataStoreService, tracing, dataStoreExecutor))
                 .build();
         this.zkCurator = new DataStoreCurator(zkHost, zkPort);
         this.cloudID = cloudID;
         pingDaemon = new PingDaemon();
+        // Keyed by port so servers sharing a base directory keep separate logs, and a restarted server finds its own.
+        writeAheadLog = new WriteAheadLog(Path.of(baseDirectory.toString(), "wal", Integer.toString(dsPort)));
+        writeLog = new WriteLog(Path.of(baseDirectory.toString(), "writelog", Integer.toString(dsPort)), writeLogMemoryBudgetBytes);
+        shuffleBuffer = new ShuffleBuffer(Path.of(baseDirectory.toString(), "shuffle", Integer.toString(dsPort)), shuffleMemoryBudgetBytes,
+                metrics.counter("uniserve_shuffle_spilled_bytes_total", "Bytes of scattered shuffle data spilled to disk."));
+        scatterCache = new ScatterCache(scatterCacheCapacityBytes,
+                metrics.counter("uniserve_scatter_cache_hits_total", "Scatters answered from the scatter cache."),
+                metrics.counter("uniserve_scatter_cache_misses_total", "Scatters computed after missing the scatter cache."));
+        gatherCache = new GatherCache(gatherCacheCapacityBytes,
+                metrics.counter("uniserve_gather_cache_hits_total", "Anchored reads answered from the gather cache."),
+                metrics.counter("uniserve_gather_cache_misses_total", "Cacheable anchored reads that missed the gather cache."));
+        checkpointDaemon = new CheckpointDaemon();
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        metrics.gauge("uniserve_shard_queries", "Read queries on each shard over the last QPS report interval.", "shard",
+                () -> QPSMap.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().count(qpsReportTimeInterval))));
+        metrics.gauge("uniserve_shard_memory_kilobytes", "Memory used by each resident shard.", "shard",
+                () -> shardMap.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().getMemoryUsage())));
+        metrics.gauge("uniserve_shards_evicted", "Shards evicted to stay within the memory budget.", evictedShards::size);
+        metrics.register("uniserve_read_query_execute_microseconds", "Time to execute read queries once their inputs arrived.", readQueryExecuteTimes);
+        metrics.register("uniserve_read_query_full_microseconds", "Time to serve read queries, including shuffles.", readQueryFullTimes);
+        metrics.register("uniserve_shard_read_microseconds", "Time to serve read queries anchored on each shard.", "shard", () -> shardReadTimes);
+        metrics.register("uniserve_shard_lock_wait_microseconds", "Time blocked acquiring a contended shard lock.", "mode", () -> shardLockWaitTimes);
+        metrics.register("uniserve_write_phase_microseconds", "Duration of each phase of two-phase-commit writes.", "phase", () -> writePhaseTimes);
+        metrics.gauge("uniserve_shuffle_buffered_bytes", "Scattered shuffle data waiting to be fetched.", "location",
+                () -> Map.of("memory", shuffleBuffer.memoryBytes(), "disk", shuffleBuffer.spilledBytes()));
+        metrics.gauge("uniserve_scatter_cache_bytes", "Scattered data held in the scatter cache.", scatterCache::sizeBytes);
+        metrics.gauge("uniserve_gather_cache_bytes", "Gather results held in the gather cache.", gatherCache::sizeBytes);
+        metrics.gauge("uniserve_rpc_queue_depth", "Calls waiting for a thread, by service and priority class.", "queue",
+                () -> rpcExecutors.stream().flatMap(e -> e.queueDepths().entrySet().stream())
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        metrics.register("uniserve_rpc_queue_wait_microseconds", "Time calls waited for a thread, by service and priority class.", "queue",
+                () -> rpcExecutors.stream().flatMap(e -> e.queueWaitTimes().entrySet().stream())
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        metrics.gauge("uniserve_rpc_active_threads", "Threads running calls, by service.", "service",
+                () -> Map.of("broker", rpcExecutors.get(0).activeThreads(), "datastore", rpcExecutors.get(1).activeThreads(),
+                        "coordinator", rpcExecutors.get(2).activeThreads()));
+    }
+
+    /** Serve metrics at http://host:port/metrics. **/
+    public boolean startMetricsServer(int port) {
+        try {
+            metricsServer = new MetricsServer(port, metrics);
+        } catch (IOException e) {
+            logger.warn("DS{} metrics server startup failed: {}", dsID, e.getMessage());
+            return false;
+        }
+        metricsServer.start();
+        return true;
     }
 
     /** Start serving requests.
@@ -148,6 +320,9 @@ public class DataStore<R extends Row, S extends Shard> {
             return false;
         }
         pingDaemon.start();
+        if (useWriteAheadLog && dsCloud != null && runCheckpointDaemon) {
+            checkpointDaemon.start();
+        }
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -164,10 +339,22 @@ public class DataStore<R extends Row, S extends Shard> {
         }
         serving = false;
         server.shutdown();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
         runPingDaemon = false;
+        runCheckpointDaemon = false;
         try {
             pingDaemon.join();
+            checkpointDaemon.interrupt();
+            if (checkpointDaemon.isAlive()) {
+                checkpointDaemon.join();
+            }
         } catch (InterruptedException ignored) {}
+        prefetchExecutor.shutdownNow();
+        writeAheadLog.close();
+        writeLog.close();
+        shuffleBuffer.close();
         for (List<ReplicaDescription> replicaDescriptions: replicaDescriptionsMap.values()) {
             for (ReplicaDescription rd: replicaDescriptions) {
                 rd.channel.shutdownNow();
@@ -182,15 +369,13 @@ public class DataStore<R extends Row, S extends Shard> {
             c.shutdownNow();
         }
         zkCurator.close();
-        int numQueries = readQueryExecuteTimes.size();
-        OptionalDouble averageExecuteTime = readQueryExecuteTimes.stream().mapToLong(i -> i).average();
-        OptionalDouble averageFullTime = readQueryFullTimes.stream().mapToLong(i -> i).average();
-        if (averageExecuteTime.isPresent() && averageFullTime.isPresent()) {
-            long p50Exec = readQueryExecuteTimes.stream().mapToLong(i -> i).sorted().toArray()[readQueryExecuteTimes.size() / 2];
-            long p99Exec = readQueryExecuteTimes.stream().mapToLong(i -> i).sorted().toArray()[readQueryExecuteTimes.size() * 99 / 100];
-            long p50Full = readQueryFullTimes.stream().mapToLong(i -> i).sorted().toArray()[readQueryFullTimes.size() / 2];
-            long p99Full = readQueryFullTimes.stream().mapToLong(i -> i).sorted().toArray()[readQueryFullTimes.size() * 99 / 100];
-            logger.info("Queries: {} p50 Exec: {}μs p99 Exec: {}μs p50 Full: {}μs p99 Full: {}μs", numQueries, p50Exec, p99Exec, p50Full, p99Full);
+        LatencyHistogram.Snapshot execTimes = readQueryExecuteTimes.snapshot();
+        LatencyHistogram.Snapshot fullTimes = readQueryFullTimes.snapshot();
+        long numQueries = execTimes.count();
+        if (numQueries > 0) {
+            logger.info("Queries: {} p50 Exec: {}μs p99 Exec: {}μs p50 Full: {}μs p99 Full: {}μs", numQueries,
+                    execTimes.percentile(0.5), execTimes.percentile(0.99),
+                    fullTimes.percentile(0.5), fullTimes.percentile(0.99));
         }
     }
 
@@ -212,7 +397,7 @@ public class DataStore<R extends Row, S extends Shard> {
         if (shardLockMap.containsKey(shardNum)) {
             return true;
         }
-        ShardLock shardLock = new ShardLock();
+        ShardLock shardLock = new ShardLock(shardLockWaitTimes.get("system"), shardLockWaitTimes.get("write"), shardLockWaitTimes.get("read"));
         shardLock.systemLockLock();
         if (shardLockMap.putIfAbsent(shardNum, shardLock) == null) {
             assert (!shardMap.containsKey(shardNum));
@@ -224,56 +409,321 @@ public class DataStore<R extends Row, S extends Shard> {
                     shardLock.systemLockUnlock();
                     return false;
                 }
+                QPSMap.put(shardNum, new QPSCounter(qpsReportTimeInterval));
                 shardMap.put(shardNum, shard.get());
                 shardVersionMap.put(shardNum, 0);
+                checkpointVersionMap.put(shardNum, 0);
+                if (useWriteAheadLog) {
+                    // A log left for a shard ZooKeeper does not know belongs to an earlier deployment.
+                    writeAheadLog.delete(shardNum);
+                    // Record the shard so a restart rebuilds it from its log even before its first checkpoint.
+                    zkCurator.setZKShardDescription(shardNum, NO_CHECKPOINT, 0);
+                }
                 logger.info("DS{} Created new primary shard {}", dsID, shardNum);
             } else {
+                QPSMap.put(shardNum, new QPSCounter(qpsReportTimeInterval));
                 shardVersionMap.put(shardNum, zkShardDescription.versionNumber);
+                checkpointVersionMap.put(shardNum, zkShardDescription.versionNumber);
             }
-            QPSMap.put(shardNum, new ConcurrentHashMap<>());
-            writeLog.put(shardNum, new ConcurrentHashMap<>());
             replicaDescriptionsMap.put(shardNum, new ArrayList<>());
             multiVersionShardMap.put(shardNum, new ConcurrentHashMap<>());
+            committedVersionMap.put(shardNum, new ShardVersions<>(shardVersionRetentionMillis));
         }
         shardLock.systemLockUnlock();
         return true;
     }
 
-    /** Downloads the shard if not already present, evicting if necessary **/
+    /** Install a transaction's copy of a shard as its newest version, keeping the old one for snapshot reads **/
+    void commitShardVersion(int shardNum, long txID, S shard) {
+        scatterCache.invalidate(shardNum);
+        S previous = shardMap.put(shardNum, shard);
+        if (readWriteAtomicity) {
+            committedVersionMap.get(shardNum).commit(txID, shard, previous);
+        }
+    }
+
+    /** The committed version of a shard held here, or -1 if it is not held here or a write to it is in progress. **/
+    int committedShardVersion(int shardNum) {
+        ShardLock shardLock = shardLockMap.get(shardNum);
+        if (shardLock == null || !consistentHash.getBuckets(shardNum).contains(dsID)) {
+            return -1;
+        }
+        long writeSequence = shardLock.writeSequence();
+        Integer versionNumber = shardVersionMap.get(shardNum);
+        if (versionNumber == null || writeSequence % 2 != 0 || shardLock.writeSequence() != writeSequence) {
+            return -1;
+        }
+        return versionNumber;
+    }
+
+    /** Number of committed versions of a shard still kept for snapshot reads.  Public for testing. **/
+    public int numShardVersions(int shardNum) {
+        return committedVersionMap.get(shardNum).size();
+    }
+
+    /** Pin the version of a shard visible at snapshot txID; null if it has been retired **/
+    ShardVersions.Version<S> acquireShardVersion(int shardNum, long txID) {
+        return committedVersionMap.get(shardNum).acquire(txID, shardMap.get(shardNum));
+    }
+
+    /** Copies the shard from another datastore holding it, or else downloads it, if not already present **/
     boolean ensureShardCached(int shardNum) {
-        if (!shardMap.containsKey(shardNum)) {
+        shardAccessTimes.put(shardNum, System.nanoTime());
+        if (shardMap.containsKey(shardNum)) {
+            return true;
+        }
+        synchronized (shardLoadLocks.computeIfAbsent(shardNum, k -> new Object())) {
+            if (shardMap.containsKey(shardNum)) {
+                return true;
+            }
+            if (!evictedShards.contains(shardNum)) {
+                // Try the shard's owners, then those before the last reshuffle, which may not have dropped it yet.
+                Set<Integer> peerDSIDs = new LinkedHashSet<>(consistentHash.getBuckets(shardNum));
+                ConsistentHash previousHash = previousConsistentHash;
+                if (previousHash != null) {
+                    peerDSIDs.addAll(previousHash.getBuckets(shardNum));
+                }
+                for (int peerDSID: peerDSIDs) {
+                    Optional<Pair<S, Integer>> peerShard = transferShardFromPeer(shardNum, peerDSID);
+                    if (peerShard.isPresent()) {
+                        installShard(shardNum, peerShard.get().getValue0(), peerShard.get().getValue1());
+                        return true;
+                    }
+                }
+            }
+            // Only clean shards are evicted, so the checkpoint has exactly what was evicted.
             ZKShardDescription z = zkCurator.getZKShardDescription(shardNum);
-            Optional<S> shard = downloadShardFromCloud(shardNum, z.cloudName, z.versionNumber);
+            Optional<S> shard = loadCheckpoint(shardNum, z);
             if (shard.isEmpty()) {
                 return false;
             }
-            shardMap.putIfAbsent(shardNum, shard.get());
-            shardVersionMap.put(shardNum, z.versionNumber);
+            int versionNumber = useWriteAheadLog ? replayWriteAheadLog(shardNum, shard.get(), z.versionNumber) : z.versionNumber;
+            installShard(shardNum, shard.get(), versionNumber);
         }
         return true;
     }
 
+    /** Make a loaded shard resident at its version; assumes the shard's load lock is held **/
+    private void installShard(int shardNum, S shard, int versionNumber) {
+        // The version goes first, so anyone who sees the shard sees its version.
+        shardVersionMap.put(shardNum, versionNumber);
+        shardMap.put(shardNum, shard);
+        evictedShards.remove(shardNum);
+        evictColdShards(shardNum);
+    }
+
+    /** Asynchronously load shards assigned here that are not cached, ahead of their next query **/
+    void prefetchShards(List<Integer> shardNums) {
+        prefetchExecutor.submit(() -> {
+            for (int shardNum: shardNums) {
+                if (shardMap.containsKey(shardNum) || !consistentHash.getBuckets(shardNum).contains(dsID)) {
+                    continue;
+                }
+                createShardMetadata(shardNum);
+                ShardLock shardLock = shardLockMap.get(shardNum);
+                shardLock.readerLockLock();
+                if (!shardMap.containsKey(shardNum) && consistentHash.getBuckets(shardNum).contains(dsID)
+                        && ensureShardCached(shardNum)) {
+                    logger.info("DS{} Prefetched shard {}", dsID, shardNum);
+                }
+                shardLock.readerLockUnlock();
+            }
+        });
+    }
+
+    /** True if this datastore holds the shard, reloading it first if it was evicted **/
+    boolean holdsShard(int shardNum) {
+        if (evictedShards.contains(shardNum)) {
+            ensureShardCached(shardNum);
+        }
+        return shardMap.containsKey(shardNum);
+    }
+
+    /**
+     * Evict the coldest shards until resident shards fit in shardMemoryBudgetKB.  Shards are ranked by queries over
+     * the last QPS reporting interval, then by last access.  Only shards checkpointed at their current version are
+     * evicted, and only if no reader or writer holds them.  Never evicts shard pinnedShardNum.
+     */
+    void evictColdShards(int pinnedShardNum) {
+        if (shardMemoryBudgetKB == Long.MAX_VALUE || dsCloud == null) {
+            return;
+        }
+        // Ephemeral and intermediate shards are numbered down from Integer.MAX_VALUE and are never evicted.
+        List<Integer> residentShards = shardMap.keySet().stream()
+                .filter(i -> i >= 0 && i < ephemeralShardNum.get() && shardLockMap.containsKey(i))
+                .collect(Collectors.toList());
+        long memoryUsage = 0;
+        for (int shardNum: residentShards) {
+            S shard = shardMap.get(shardNum);
+            memoryUsage += shard == null ? 0 : shard.getMemoryUsage();
+        }
+        if (memoryUsage <= shardMemoryBudgetKB) {
+            return;
+        }
+        Map<Integer, Integer> recentQueries = new HashMap<>();
+        for (int shardNum: residentShards) {
+            QPSCounter counter = QPSMap.get(shardNum);
+            recentQueries.put(shardNum, counter == null ? 0 : counter.count(qpsReportTimeInterval));
+        }
+        residentShards.sort(Comparator.comparing((Integer i) -> recentQueries.get(i))
+                .thenComparing(i -> shardAccessTimes.getOrDefault(i, 0L)));
+        for (int shardNum: residentShards) {
+            if (memoryUsage <= shardMemoryBudgetKB) {
+                break;
+            }
+            ShardLock shardLock = shardLockMap.get(shardNum);
+            if (shardNum == pinnedShardNum || !shardLock.systemLockTryLock()) {
+                continue;
+            }
+            S shard = shardMap.get(shardNum);
+            ZKShardDescription z = zkCurator.getZKShardDescription(shardNum);
+            if (shard != null && z != null && z.versionNumber == shardVersionMap.getOrDefault(shardNum, -1)) {
+                int shardMemoryUsage = shard.getMemoryUsage();
+                shardMap.remove(shardNum);
+                committedVersionMap.get(shardNum).clear();
+                evictedShards.add(shardNum);
+                shard.destroy();
+                memoryUsage -= shardMemoryUsage;
+                logger.info("DS{} Evicted shard {}-{} ({}KB)", dsID, shardNum, z.versionNumber, shardMemoryUsage);
+            }
+            shardLock.systemLockUnlock();
+        }
+    }
+
     /** Synchronously upload a shard to the cloud; assumes shard write lock is held **/
     // TODO:  Safely delete old versions.
-    public void uploadShardToCloud(int shardNum) {
-        long uploadStart = System.currentTimeMillis();
+    public boolean uploadShardToCloud(int shardNum) {
         Integer versionNumber = shardVersionMap.get(shardNum);
         Shard shard = shardMap.get(shardNum);
         // Load the shard's data into files.
         Optional<Path> shardDirectory = shard.shardToData();
         if (shardDirectory.isEmpty()) {
             logger.warn("DS{} Shard {} serialization failed", dsID, shardNum);
-            return;
+            return false;
         }
-        // Upload the shard's data.
-        Optional<String> cloudName = dsCloud.uploadShardToCloud(shardDirectory.get(), Integer.toString(shardNum), versionNumber);
+        Optional<String> cloudName = uploadShardData(shardNum, shardDirectory.get(), versionNumber);
+        if (cloudName.isEmpty()) {
+            return false;
+        }
+        recordCheckpoint(shardNum, cloudName.get(), versionNumber);
+        return true;
+    }
+
+    /** Synchronously upload a shard's data files as of versionNumber; needs no lock if they are a private copy **/
+    Optional<String> uploadShardData(int shardNum, Path shardDirectory, int versionNumber) {
+        long uploadStart = System.currentTimeMillis();
+        Optional<String> cloudName = dsCloud.uploadShardToCloud(shardDirectory, Integer.toString(shardNum), versionNumber);
         if (cloudName.isEmpty()) {
             logger.warn("DS{} Shard {}-{} upload failed", dsID, shardNum, versionNumber);
-            return;
+            return Optional.empty();
         }
-        // Notify the coordinator about the upload.
-        zkCurator.setZKShardDescription(shardNum, cloudName.get(), versionNumber);
+        shardUploadTimes.record((System.currentTimeMillis() - uploadStart) * 1000L);
         logger.info("DS{} Shard {}-{} upload succeeded. Time: {}ms", dsID, shardNum, versionNumber, System.currentTimeMillis() - uploadStart);
+        return cloudName;
+    }
+
+    /** Make an uploaded version the shard's checkpoint; assumes shard write lock is held **/
+    void recordCheckpoint(int shardNum, String cloudName, int versionNumber) {
+        int previousCheckpointVersion = checkpointVersionMap.getOrDefault(shardNum, 0);
+        // Notify the coordinator about the upload.
+        zkCurator.setZKShardDescription(shardNum, cloudName, versionNumber);
+        checkpointVersionMap.put(shardNum, versionNumber);
+        // Keep the writes replicas may still need:  those past the previous checkpoint, which a new replica may be
+        // loading, and those a bootstrapping replica has not been sent.  Replicas that fall further behind find their
+        // writes gone and load a newer checkpoint instead.
+        int oldestNeeded = bootstrapVersionMap.getOrDefault(shardNum, Map.of()).values().stream()
+                .min(Integer::compare).orElse(previousCheckpointVersion);
+        writeLog.truncate(shardNum, Math.min(previousCheckpointVersion, oldestNeeded));
+    }
+
+    /** Upload a shard if it changed since its last checkpoint, then drop the write-ahead log records it covers **/
+    void checkpointShard(int shardNum) {
+        ShardLock shardLock = shardLockMap.get(shardNum);
+        if (shardLock == null) {
+            return;
+        }
+        // Only copying the shard blocks writers; the upload runs on the copy.
+        shardLock.writerLockLock();
+        Integer versionNumber = shardVersionMap.get(shardNum);
+        int lastCheckpointVersion = checkpointVersionMap.getOrDefault(shardNum, 0);
+        if (!shardMap.containsKey(shardNum) || versionNumber == null || versionNumber <= lastCheckpointVersion) {
+            shardLock.writerLockUnlock();
+            evictColdShards(shardNum);
+            return;
+        }
+        Optional<Path> snapshot = snapshotShard(shardNum, versionNumber);
+        long walEnd = writeAheadLog.end(shardNum);
+        shardLock.writerLockUnlock();
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        Optional<String> cloudName = walEnd < 0 ? Optional.empty() : uploadShardData(shardNum, snapshot.get(), versionNumber);
+        FileUtils.deleteQuietly(snapshot.get().toFile());
+        if (cloudName.isPresent()) {
+            shardLock.writerLockLock();
+            // Another upload, e.g. before the shard moved away, may have recorded a newer checkpoint meanwhile.
+            if (checkpointVersionMap.getOrDefault(shardNum, 0) < versionNumber) {
+                recordCheckpoint(shardNum, cloudName.get(), versionNumber);
+                writeAheadLog.discardBefore(shardNum, walEnd);
+            }
+            shardLock.writerLockUnlock();
+        }
+        // Shards become evictable once checkpointed.
+        evictColdShards(shardNum);
+    }
+
+    /** Reapply writes from the local write-ahead log to a shard loaded at versionNumber.  Returns the shard's new version **/
+    int replayWriteAheadLog(int shardNum, S shard, int versionNumber) {
+        long validEnd = 0;
+        for (WriteAheadLog.LogRecord record: writeAheadLog.recover(shardNum)) {
+            if (record.versionNumber <= versionNumber) {
+                continue;
+            }
+            // Prepared writes whose transaction didn't commit were never applied; a later record may reuse the version.
+            if (record.txID != WriteAheadLog.NO_TRANSACTION && zkCurator.getTransactionStatus(record.txID) != COMMIT) {
+                logger.info("DS{} Shard {} WAL skipping uncommitted transaction {}", dsID, shardNum, record.txID);
+                continue;
+            }
+            if (record.versionNumber != versionNumber + 1) {
+                logger.warn("DS{} Shard {} WAL gap: at version {} found version {}", dsID, shardNum, versionNumber, record.versionNumber);
+                break;
+            }
+            applyLoggedWrite(shard, record.serializedPlan, record.rowData);
+            writeLog.append(shardNum, record.versionNumber, record.serializedPlan, record.rowData);
+            versionNumber = record.versionNumber;
+            validEnd = record.endPosition;
+        }
+        // Records past the last replayed one can never be applied; drop them before new writes are appended.
+        writeAheadLog.truncate(shardNum, validEnd);
+        if (validEnd > 0) {
+            logger.info("DS{} Shard {} replayed WAL to version {}", dsID, shardNum, versionNumber);
+        }
+        return versionNumber;
+    }
+
+    /** Apply a write recorded as a serialized plan and rows, as kept in the write-ahead log and the write log **/
+    @SuppressWarnings("unchecked")
+    void applyLoggedWrite(S shard, ByteString serializedPlan, ByteString rowData) {
+        Object plan = planRegistry.getPlan(ByteString.EMPTY, serializedPlan).plan;
+        if (plan instanceof WriteQueryPlan) {
+            WriteQueryPlan<R, S> writeQueryPlan = (WriteQueryPlan<R, S>) plan;
+            List<R> rows = Arrays.asList(Utilities.byteStringToRows(rowData, getRowCodec(writeQueryPlan.getQueriedTable())));
+            boolean success = writeQueryPlan.preCommit(shard, rows);
+            assert(success);
+            writeQueryPlan.commit(shard);
+        } else {
+            SimpleWriteQueryPlan<R, S> writeQueryPlan = (SimpleWriteQueryPlan<R, S>) plan;
+            List<R> rows = Arrays.asList(Utilities.byteStringToRows(rowData, getRowCodec(writeQueryPlan.getQueriedTable())));
+            writeQueryPlan.write(shard, rows);
+        }
+    }
+
+    /** Load the checkpoint a ZooKeeper shard description points to, which is an empty shard if there is none yet **/
+    Optional<S> loadCheckpoint(int shardNum, ZKShardDescription z) {
+        if (z.cloudName.equals(NO_CHECKPOINT)) {
+            return createNewShard(shardNum);
+        }
+        return downloadShardFromCloud(shardNum, z.cloudName, z.versionNumber);
     }
 
     /** Synchronously download a shard from the cloud **/
@@ -295,49 +745,153 @@ public class DataStore<R extends Row, S extends Shard> {
         }
         Path targetDirectory = Path.of(downloadDirectory.toString(), cloudName);
         Optional<S> shard = shardFactory.createShardFromDir(targetDirectory, shardNum);
+        shardDownloadTimes.record((System.currentTimeMillis() - downloadStart) * 1000L);
         logger.info("DS{} Shard {}-{} download succeeded. Time: {}ms", dsID, shardNum, versionNumber, System.currentTimeMillis() - downloadStart);
         return shard;
     }
 
-    public Optional<S> copyShardToDir(int shardNum, String cloudName, int versionNumber) {
-        long copyStart = System.currentTimeMillis();
-        Shard shard = shardMap.get(shardNum);
-        // Load the shard's data into files.
-        Optional<Path> shardDirectory = shard.shardToData();
+    /** Copy a shard's data files to a private directory; assumes shard write lock is held **/
+    Optional<Path> snapshotShard(int shardNum, int versionNumber) {
+        Optional<Path> shardDirectory = shardMap.get(shardNum).shardToData();
         if (shardDirectory.isEmpty()) {
             logger.warn("DS{} Shard {} serialization failed", dsID, shardNum);
             return Optional.empty();
         }
-        Path targetDirectory = Path.of(baseDirectory.toString(), Integer.toString(versionNumber), cloudName);
-        File targetDirFile = targetDirectory.toFile();
-        if (!targetDirFile.exists()) {
-            boolean mkdirs = targetDirFile.mkdirs();
-            if (!mkdirs && !targetDirFile.exists()) {
-                logger.warn("DS{} Shard {} version {} mkdirs failed: {}", dsID, shardNum, versionNumber, targetDirFile.getAbsolutePath());
-                return Optional.empty();
-            }
+        Path snapshotDirectory = Path.of(baseDirectory.toString(), "snapshot",
+                String.format("%d_%d_%d", shardNum, versionNumber, System.nanoTime()));
+        try {
+            FileUtils.copyDirectory(shardDirectory.get().toFile(), snapshotDirectory.toFile());
+        } catch (IOException e) {
+            logger.warn("DS{} Shard {} snapshot failed: {}", dsID, shardNum, e.getMessage());
+            FileUtils.deleteQuietly(snapshotDirectory.toFile());
+            return Optional.empty();
         }
+        return Optional.of(snapshotDirectory);
+    }
 
+    /** Synchronously copy a shard from another datastore holding it.  Returns the shard and its version **/
+    Optional<Pair<S, Integer>> transferShardFromPeer(int shardNum, int peerDSID) {
+        long transferStart = System.currentTimeMillis();
+        DataStoreDescription peer = zkCurator.getDSDescription(peerDSID);
+        if (peerDSID == dsID || peer.status.get() != DataStoreDescription.ALIVE
+                || (peer.host.equals(dsHost) && peer.port == dsPort)) {
+            return Optional.empty();
+        }
+        DataStoreDataStoreGrpc.DataStoreDataStoreBlockingStub stub = DataStoreDataStoreGrpc.newBlockingStub(getChannelForDSID(peerDSID));
+        Path targetDirectory = null;
+        int versionNumber = -1;
+        OutputStream out = null;
+        String currentFile = null;
         try {
-            ProcessBuilder copier = new ProcessBuilder("src/main/resources/copy_shard.sh", String.format("%s/*", shardDirectory.get().toString()),
-                    targetDirectory.toString());
-            logger.info("Copy Command: {}", copier.command());
-            Process writerProcess = copier.inheritIO().start();
-            writerProcess.waitFor();
-        } catch (InterruptedException | IOException e) {
-            logger.warn("DS{} Shard {} version {} copy failed: {}", dsID, shardNum, versionNumber, targetDirFile.getAbsolutePath());
+            Iterator<TransferShardResponse> chunks = stub.transferShard(TransferShardMessage.newBuilder().setShard(shardNum).build());
+            while (chunks.hasNext()) {
+                TransferShardResponse r = chunks.next();
+                if (r.getReturnCode() != 0) {
+                    continue;
+                }
+                if (targetDirectory == null) {
+                    versionNumber = r.getVersionNumber();
+                    targetDirectory = Path.of(baseDirectory.toString(), Integer.toString(versionNumber),
+                            String.format("%d_%d_peer", shardNum, versionNumber));
+                    FileUtils.deleteDirectory(targetDirectory.toFile());
+                }
+                if (!r.getFileName().equals(currentFile)) {
+                    if (out != null) {
+                        out.close();
+                    }
+                    currentFile = r.getFileName();
+                    File file = targetDirectory.resolve(currentFile).toFile();
+                    File parent = file.getParentFile();
+                    if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                        throw new IOException(String.format("mkdirs failed: %s", parent.getAbsolutePath()));
+                    }
+                    out = new FileOutputStream(file);
+                }
+                r.getData().writeTo(out);
+                shardTransferBytes.add(r.getData().size());
+            }
+            if (out != null) {
+                out.close();
+            }
+        } catch (StatusRuntimeException | IOException e) {
+            logger.warn("DS{} Shard {} transfer from DS{} failed: {}", dsID, shardNum, peerDSID, e.getMessage());
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {}
+            return Optional.empty();
+        }
+        if (targetDirectory == null) {
+            logger.warn("DS{} Shard {} not available from DS{}", dsID, shardNum, peerDSID);
             return Optional.empty();
         }
+        Optional<S> shard = shardFactory.createShardFromDir(targetDirectory, shardNum);
+        if (shard.isEmpty()) {
+            return Optional.empty();
+        }
+        shardTransferTimes.record((System.currentTimeMillis() - transferStart) * 1000L);
+        logger.info("DS{} Shard {}-{} transfer from DS{} succeeded. Time: {}ms", dsID, shardNum, versionNumber, peerDSID, System.currentTimeMillis() - transferStart);
+        return Optional.of(new Pair<>(shard.get(), versionNumber));
+    }
 
-        Optional<S> retShard = shardFactory.createShardFromDir(targetDirectory, shardNum);
+    /** Copy a shard to a private directory, e.g. to hold a transaction's uncommitted version; assumes shard write lock is held **/
+    public Optional<S> copyShardToDir(int shardNum, String copyName, int versionNumber) {
+        long copyStart = System.currentTimeMillis();
+        S shard = shardMap.get(shardNum);
+        Path targetDirectory = Path.of(baseDirectory.toString(), Integer.toString(versionNumber), copyName);
+        File targetDirFile = targetDirectory.toFile();
+        FileUtils.deleteQuietly(targetDirFile);
+        boolean mkdirs = targetDirFile.mkdirs();
+        if (!mkdirs && !targetDirFile.exists()) {
+            logger.warn("DS{} Shard {} version {} mkdirs failed: {}", dsID, shardNum, versionNumber, targetDirFile.getAbsolutePath());
+            return Optional.empty();
+        }
+        // Shards that can clone themselves skip the round trip through their serialized files.
+        Optional<S> retShard = shardFactory.cloneShard(shard, targetDirectory, shardNum);
+        if (retShard.isEmpty()) {
+            Optional<Path> shardDirectory = shard.shardToData();
+            if (shardDirectory.isEmpty()) {
+                logger.warn("DS{} Shard {} serialization failed", dsID, shardNum);
+                return Optional.empty();
+            }
+            try {
+                FileUtils.copyDirectory(shardDirectory.get().toFile(), targetDirFile);
+            } catch (IOException e) {
+                logger.warn("DS{} Shard {} version {} copy failed: {}", dsID, shardNum, versionNumber, e.getMessage());
+                return Optional.empty();
+            }
+            retShard = shardFactory.createShardFromDir(targetDirectory, shardNum);
+        }
         logger.info("DS{} Shard {}-{} copy succeeded. Time: {}ms", dsID, shardNum, versionNumber, System.currentTimeMillis() - copyStart);
         return retShard;
     }
 
+    /** Look up a table's info from the coordinator, caching it locally **/
+    TableInfo getTableInfo(String tableName) {
+        if (tableInfoMap.containsKey(tableName)) {
+            return tableInfoMap.get(tableName);
+        } else {
+            DTableInfoResponse r = coordinatorStub.tableInfo(DTableInfoMessage.newBuilder().setTableName(tableName).build());
+            assert(r.getReturnCode() == Broker.QUERY_SUCCESS);
+            TableInfo t = new TableInfo(tableName, r.getId(), r.getNumShards(), r.getRowCodec());
+            tableInfoMap.put(tableName, t);
+            return t;
+        }
+    }
+
+    /** Returns the RowCodec registered with a table, or null if its rows use Java serialization **/
+    @SuppressWarnings("unchecked")
+    RowCodec<R> getRowCodec(String tableName) {
+        return (RowCodec<R>) getTableInfo(tableName).getRowCodec();
+    }
+
     ManagedChannel getChannelForDSID(int dsID) {
         if (!dsIDToChannelMap.containsKey(dsID)) {
             DataStoreDescription d = zkCurator.getDSDescription(dsID);
-            ManagedChannel channel = ManagedChannelBuilder.forAddress(d.host, d.port).usePlaintext().build();
+            ManagedChannel channel = ManagedChannelBuilder.forAddress(d.host, d.port).usePlaintext()
+                    .maxInboundMetadataSize(QueryTrace.maxTrailerBytes)
+                    .intercept(QueryTrace.clientInterceptor()).build();
             if (dsIDToChannelMap.putIfAbsent(dsID, channel) != null) {
                 channel.shutdown();
             }
@@ -345,6 +899,22 @@ public class DataStore<R extends Row, S extends Shard> {
         return dsIDToChannelMap.get(dsID);
     }
 
+    private class CheckpointDaemon extends Thread {
+        @Override
+        public void run() {
+            while (runCheckpointDaemon) {
+                try {
+                    Thread.sleep(checkpointDaemonSleepDurationMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int shardNum: writeAheadLog.loggedShards()) {
+                    checkpointShard(shardNum);
+                }
+            }
+        }
+    }
+
     private class PingDaemon extends Thread {
         @Override
         public void run() {
@@ -8,4 +8,6 @@ public interface DataStoreCloud {
     public Optional<String> uploadShardToCloud(Path shardDirectory, String shardName, int versionNumber);
     // Download a directory previously uploaded.
     public int downloadShardFromCloud(Path shardDirectory, String shardCloudName);
+    // Drop anything kept about a shard this server no longer holds.
+    public default void forgetShard(String shardName) {}
 }
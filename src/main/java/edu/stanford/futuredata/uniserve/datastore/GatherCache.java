@@ -0,0 +1,111 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import com.google.protobuf.ByteString;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Results of gathers of cacheable anchored read plans, keyed by plan hash, anchor shard, and the version of every shard
+ * the gather read.  An entry is never hit once any of those shards commits a write; it stays until evicted.  Bounded by
+ * the size of the cached results, evicting least-recently-used first, so stale entries go before ones still being hit.
+ *
+ * A result is only admitted the second time its key is computed within a window, so a stream of queries that never
+ * repeat does not flush results that do.  Keys seen once are remembered in a doorkeeper bit set, cleared whenever
+ * it has recorded as many keys as it has bits per 8, which keeps false positives rare.
+ */
+class GatherCache {
+
+    static class Key {
+        final ByteString planHash;
+        final int anchorShardNum;
+        // Map from shard number to version, for the anchor shard and every shard shuffled to it.
+        final Map<Integer, Integer> shardVersions;
+
+        Key(ByteString planHash, int anchorShardNum, Map<Integer, Integer> shardVersions) {
+            this.planHash = planHash;
+            this.anchorShardNum = anchorShardNum;
+            this.shardVersions = shardVersions;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return anchorShardNum == k.anchorShardNum && planHash.equals(k.planHash) && shardVersions.equals(k.shardVersions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(planHash, anchorShardNum, shardVersions);
+        }
+    }
+
+    private static final int doorkeeperBits = 1 << 16;
+
+    private final Map<Key, ByteString> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacityBytes;
+    private long sizeBytes = 0;
+    private final BitSet doorkeeper = new BitSet(doorkeeperBits);
+    private int doorkeeperKeys = 0;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    GatherCache(long capacityBytes, LongAdder hits, LongAdder misses) {
+        this.capacityBytes = capacityBytes;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /** The cached result for key, or null. **/
+    synchronized ByteString get(Key key) {
+        ByteString result = entries.get(key);
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /** Offer the result computed for key.  It is cached if key was offered recently before. **/
+    synchronized void put(Key key, ByteString result) {
+        if (result.size() > capacityBytes || entries.containsKey(key) || !admit(key)) {
+            return;
+        }
+        entries.put(key, result);
+        sizeBytes += result.size();
+        Iterator<ByteString> it = entries.values().iterator();
+        while (sizeBytes > capacityBytes) {
+            sizeBytes -= it.next().size();
+            it.remove();
+        }
+    }
+
+    synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    // True if key may have been offered before; otherwise remember it.
+    private boolean admit(Key key) {
+        int h = key.hashCode();
+        int bitOne = (h * 0x9E3779B1) >>> 16;
+        int bitTwo = (h * 0x85EBCA6B) >>> 16;
+        if (doorkeeper.get(bitOne) && doorkeeper.get(bitTwo)) {
+            return true;
+        }
+        if (++doorkeeperKeys > doorkeeperBits / 8) {
+            doorkeeper.clear();
+            doorkeeperKeys = 1;
+        }
+        doorkeeper.set(bitOne);
+        doorkeeper.set(bitTwo);
+        return false;
+    }
+}
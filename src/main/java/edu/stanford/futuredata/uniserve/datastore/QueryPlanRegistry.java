@@ -0,0 +1,66 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import com.google.protobuf.ByteString;
+import edu.stanford.futuredata.uniserve.utilities.Utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Bounded cache of deserialized query plans keyed by the hash of their serialized bytes.  Senders ship a plan's
+ * bytes once and refer to it by hash afterwards.  Plans with identical bytes share one deserialized object,
+ * so plans must not keep per-query state.
+ */
+class QueryPlanRegistry {
+
+    static class RegisteredPlan {
+        final ByteString planHash;
+        final ByteString serializedPlan;
+        final Object plan;
+
+        RegisteredPlan(ByteString planHash, ByteString serializedPlan, Object plan) {
+            this.planHash = planHash;
+            this.serializedPlan = serializedPlan;
+            this.plan = plan;
+        }
+    }
+
+    private final Map<ByteString, RegisteredPlan> plans;
+
+    QueryPlanRegistry(int capacity) {
+        this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, RegisteredPlan> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Look up a plan by hash, registering it from its bytes if they are present.  Null if the plan is unknown. **/
+    RegisteredPlan getPlan(ByteString planHash, ByteString serializedPlan) {
+        if (planHash.isEmpty()) {
+            if (serializedPlan.isEmpty()) {
+                return null;
+            }
+            planHash = Utilities.planHash(serializedPlan);
+        }
+        synchronized (plans) {
+            RegisteredPlan registeredPlan = plans.get(planHash);
+            if (registeredPlan != null || serializedPlan.isEmpty()) {
+                return registeredPlan;
+            }
+        }
+        // Deserialize outside the lock; concurrent registrations of the same plan are harmless.
+        RegisteredPlan registeredPlan = new RegisteredPlan(planHash, serializedPlan, Utilities.byteStringToObject(serializedPlan));
+        synchronized (plans) {
+            plans.put(planHash, registeredPlan);
+        }
+        return registeredPlan;
+    }
+
+    int size() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+import io.grpc.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs the handlers of one gRPC service on its own bounded pool instead of the server's shared executor.  Each call
+ * is assigned a priority class by method; when every thread is busy, queued calls of a more urgent class run first.
+ * Callbacks of a single call still run one at a time and in order.  The server itself should use a direct executor,
+ * so transport threads only hand callbacks over.  The bound is on running handlers:  a handler waiting through
+ * managedBlock for other calls, e.g. the sibling reads of one anchored query, lends its slot to another thread.
+ */
+class RpcExecutor implements ServerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcExecutor.class);
+
+    enum Priority {
+        // Work other calls wait on:  2PC messages that release shard write locks, pings, control-plane operations.
+        CRITICAL,
+        // Reads a client is waiting on.
+        INTERACTIVE,
+        // Scans and shuffles.
+        BATCH,
+        // Replica loads, shard transfers, prefetches.
+        BACKGROUND
+    }
+
+    // The executor whose pool the current thread belongs to, if any.
+    private static final ThreadLocal<RpcExecutor> currentExecutor = new ThreadLocal<>();
+
+    interface Blocker {
+        void block() throws InterruptedException;
+    }
+
+    private final String name;
+    private final int numThreads;
+    private int blockedThreads = 0;
+    private final ThreadPoolExecutor pool;
+    private final Map<String, Priority> methodPriorities;
+    private final Priority defaultPriority;
+    private final AtomicLong taskSequence = new AtomicLong(0);
+    private final Map<Priority, AtomicInteger> queueDepths = new EnumMap<>(Priority.class);
+    // Time from a call's callbacks being queued to their running, in microseconds.
+    private final Map<Priority, LatencyHistogram> queueWaitTimes = new EnumMap<>(Priority.class);
+
+    RpcExecutor(String name, int numThreads, Priority defaultPriority, Map<String, Priority> methodPriorities) {
+        this.name = name;
+        this.numThreads = numThreads;
+        this.defaultPriority = defaultPriority;
+        this.methodPriorities = methodPriorities;
+        for (Priority priority: Priority.values()) {
+            queueDepths.put(priority, new AtomicInteger(0));
+            queueWaitTimes.put(priority, new LatencyHistogram());
+        }
+        AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(() -> {
+                currentExecutor.set(this);
+                r.run();
+            }, name + "-rpc-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        // Never shut down:  calls still open when the server shuts down must be able to finish, and idle threads exit.
+        this.pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), threadFactory);
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    private String label(Priority priority) {
+        return name + "_" + priority.name().toLowerCase();
+    }
+
+    /** Calls of each priority class waiting for a thread, keyed by service and class. **/
+    Map<String, Integer> queueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        queueDepths.forEach((priority, depth) -> depths.put(label(priority), depth.get()));
+        return depths;
+    }
+
+    Map<String, LatencyHistogram> queueWaitTimes() {
+        Map<String, LatencyHistogram> waitTimes = new HashMap<>();
+        queueWaitTimes.forEach((priority, histogram) -> waitTimes.put(label(priority), histogram));
+        return waitTimes;
+    }
+
+    int activeThreads() {
+        return pool.getActiveCount();
+    }
+
+    /** Wait for work done by other calls.  On a pool thread, another thread may start while this one waits, so
+     * calls that the wait depends on cannot be starved by it. **/
+    static void managedBlock(Blocker blocker) throws InterruptedException {
+        RpcExecutor executor = currentExecutor.get();
+        if (executor == null) {
+            blocker.block();
+            return;
+        }
+        executor.resize(1);
+        try {
+            blocker.block();
+        } finally {
+            executor.resize(-1);
+        }
+    }
+
+    /** managedBlock for waits that cannot be interrupted, e.g. for a shard's write lock. **/
+    static void managedBlockUninterruptibly(Runnable blocker) {
+        RpcExecutor executor = currentExecutor.get();
+        if (executor == null) {
+            blocker.run();
+            return;
+        }
+        executor.resize(1);
+        try {
+            blocker.run();
+        } finally {
+            executor.resize(-1);
+        }
+    }
+
+    private synchronized void resize(int delta) {
+        blockedThreads += delta;
+        int size = numThreads + blockedThreads;
+        // Raising the core size starts threads for queued calls; excess threads exit once idle.
+        if (delta > 0) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        Priority priority = methodPriorities.getOrDefault(call.getMethodDescriptor().getFullMethodName(), defaultPriority);
+        CallExecutor executor = new CallExecutor(priority, call);
+        return new ForwardingListener<>(executor, call, headers, next);
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final Priority priority;
+        private final long sequence = taskSequence.getAndIncrement();
+        private final long queuedTime = System.nanoTime();
+        private final Runnable runnable;
+
+        Task(Priority priority, Runnable runnable) {
+            this.priority = priority;
+            this.runnable = runnable;
+            queueDepths.get(priority).incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            queueDepths.get(priority).decrementAndGet();
+            queueWaitTimes.get(priority).record((System.nanoTime() - queuedTime) / 1000L);
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    // Runs one call's callbacks in order, at most one at a time, as a single pool task per backlog.
+    private class CallExecutor implements Executor, Runnable {
+        private final Priority priority;
+        private final ServerCall<?, ?> call;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // Set once a handler throws and the call is closed; its later callbacks are dropped.
+        private volatile boolean closed = false;
+
+        CallExecutor(Priority priority, ServerCall<?, ?> call) {
+            this.priority = priority;
+            this.call = call;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (closed) {
+                return;
+            }
+            // Handlers expect the call's Context, e.g. for deadlines, cancellation and traces.
+            pending.add(Context.current().wrap(runnable));
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                pool.execute(new Task(priority, this));
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable r;
+            while ((r = pending.poll()) != null) {
+                if (closed) {
+                    continue;
+                }
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    logger.warn("{} handler for {} failed: {}", name, call.getMethodDescriptor().getFullMethodName(), t.toString());
+                    closed = true;
+                    try {
+                        call.close(Status.fromThrowable(t), new Metadata());
+                    } catch (IllegalStateException ignored) {} // Already closed.
+                }
+            }
+            scheduled.set(false);
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    // Forwards each callback, starting with the call itself, to the call's executor.
+    private static class ForwardingListener<ReqT, RespT> extends ServerCall.Listener<ReqT> {
+        private final Executor executor;
+        private volatile ServerCall.Listener<ReqT> delegate;
+
+        ForwardingListener(Executor executor, ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            this.executor = executor;
+            // Streaming handlers run application code as soon as they start, so start them on the pool too.
+            executor.execute(() -> delegate = next.startCall(call, headers));
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            executor.execute(() -> delegate.onMessage(message));
+        }
+
+        @Override
+        public void onHalfClose() {
+            executor.execute(() -> delegate.onHalfClose());
+        }
+
+        @Override
+        public void onCancel() {
+            executor.execute(() -> delegate.onCancel());
+        }
+
+        @Override
+        public void onComplete() {
+            executor.execute(() -> delegate.onComplete());
+        }
+
+        @Override
+        public void onReady() {
+            executor.execute(() -> delegate.onReady());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Scatter results shared by shuffles that run the same plan on the same version of a shard with the same
+ * repartitioning, e.g. one dashboard query issued by many brokers.  Keyed by plan hash, shard, shard version and
+ * repartition parameters, so an entry is never hit once a commit has bumped its shard's version; commits also drop
+ * their shard's entries right away.  Bounded by the size of the cached data, evicting least-recently-used first.
+ * Cached results are shared, so callers must not modify them.
+ */
+class ScatterCache {
+
+    static class Key {
+        final ByteString planHash;
+        final int shardNum;
+        // The shard's version number, or for snapshot reads the ID of the transaction that committed the version read.
+        final long version;
+        // Number of repartitions or the repartitions' partition keys.
+        final Object repartition;
+
+        Key(ByteString planHash, int shardNum, long version, Object repartition) {
+            this.planHash = planHash;
+            this.shardNum = shardNum;
+            this.version = version;
+            this.repartition = repartition;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return shardNum == k.shardNum && version == k.version && planHash.equals(k.planHash) && repartition.equals(k.repartition);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(planHash, shardNum, version, repartition);
+        }
+    }
+
+    private static class Entry {
+        final Map<Integer, List<ByteString>> scatterResult;
+        final long sizeBytes;
+
+        Entry(Map<Integer, List<ByteString>> scatterResult, long sizeBytes) {
+            this.scatterResult = scatterResult;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacityBytes;
+    private long sizeBytes = 0;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    ScatterCache(long capacityBytes, LongAdder hits, LongAdder misses) {
+        this.capacityBytes = capacityBytes;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /** The cached scatter result for key, or null. **/
+    synchronized Map<Integer, List<ByteString>> get(Key key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return e.scatterResult;
+    }
+
+    synchronized void put(Key key, Map<Integer, List<ByteString>> scatterResult) {
+        long entryBytes = scatterResult.values().stream().flatMap(List::stream).mapToLong(ByteString::size).sum();
+        if (entryBytes > capacityBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(scatterResult, entryBytes));
+        if (previous != null) {
+            sizeBytes -= previous.sizeBytes;
+        }
+        sizeBytes += entryBytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (sizeBytes > capacityBytes) {
+            sizeBytes -= it.next().sizeBytes;
+            it.remove();
+        }
+    }
+
+    /** Drop every entry for a shard, e.g. when a write commits or the shard is removed. **/
+    synchronized void invalidate(int shardNum) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().shardNum == shardNum) {
+                sizeBytes -= e.getValue().sizeBytes;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+}
@@ -4,16 +4,17 @@ import com.google.protobuf.ByteString;
 import edu.stanford.futuredata.uniserve.*;
 import edu.stanford.futuredata.uniserve.broker.Broker;
 import edu.stanford.futuredata.uniserve.interfaces.*;
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+import edu.stanford.futuredata.uniserve.utilities.QueryTrace;
 import edu.stanford.futuredata.uniserve.utilities.Utilities;
 import edu.stanford.futuredata.uniserve.utilities.ZKShardDescription;
-import io.grpc.ManagedChannel;
+import io.grpc.Context;
 import io.grpc.stub.StreamObserver;
-import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
@@ -34,13 +35,20 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
         return new StreamObserver<>() {
             int shardNum;
             long txID;
+            QueryPlanRegistry.RegisteredPlan registeredPlan;
             WriteQueryPlan<R, S> writeQueryPlan;
+            RowCodec<R> rowCodec;
             List<R[]> rowArrayList = new ArrayList<>();
+            // The rows as received, forwarded to replicas and logged without serializing them again.
+            List<ByteString> rowChunks = new ArrayList<>();
+            ByteString rowData;
             int lastState = DataStore.COLLECT;
             List<R> rows;
             List<StreamObserver<ReplicaWriteMessage>> replicaObservers = new ArrayList<>();
             Semaphore commitSemaphore = new Semaphore(0);
-            WriteLockerThread t;
+            ShardLock.WriteLease writeLease;
+            // Where the log ended before this write's record, or -1 if the write was not logged.
+            long walEnd = -1;
 
             @Override
             public void onNext(WriteQueryMessage writeQueryMessage) {
@@ -50,31 +58,45 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     shardNum = writeQueryMessage.getShard();
                     dataStore.createShardMetadata(shardNum);
                     txID = writeQueryMessage.getTxID();
-                    writeQueryPlan = (WriteQueryPlan<R, S>) Utilities.byteStringToObject(writeQueryMessage.getSerializedQuery()); // TODO:  Only send this once.
-                    R[] rowChunk = (R[]) Utilities.byteStringToObject(writeQueryMessage.getRowData());
+                    if (registeredPlan == null) {
+                        // The plan's bytes arrive with the first chunk only.
+                        registeredPlan = dataStore.planRegistry.getPlan(writeQueryMessage.getPlanHash(), writeQueryMessage.getSerializedQuery());
+                        writeQueryPlan = (WriteQueryPlan<R, S>) registeredPlan.plan;
+                        rowCodec = dataStore.getRowCodec(writeQueryPlan.getQueriedTable());
+                    }
+                    R[] rowChunk = Utilities.byteStringToRows(writeQueryMessage.getRowData(), rowCodec);
                     rowArrayList.add(rowChunk);
+                    rowChunks.add(writeQueryMessage.getRowData());
                 } else if (writeState == DataStore.PREPARE) {
                     assert (lastState == DataStore.COLLECT);
                     rows = rowArrayList.stream().flatMap(Arrays::stream).collect(Collectors.toList());
                     if (dataStore.shardLockMap.containsKey(shardNum)) {
-                        t = new WriteLockerThread(dataStore.shardLockMap.get(shardNum));
-                        t.acquireLock();
+                        writeLease = dataStore.shardLockMap.get(shardNum).acquireWriteLease();
                         long tStart = System.currentTimeMillis();
+                        long prepareStart = System.nanoTime();
                         responseObserver.onNext(prepareWriteQuery(shardNum, txID, writeQueryPlan));
+                        dataStore.writePhaseTimes.get("prepare").record((System.nanoTime() - prepareStart) / 1000L);
                         logger.info("DS{} Write {} Execution Time: {}", dataStore.dsID, txID, System.currentTimeMillis() - tStart);
                     } else {
                         responseObserver.onNext(WriteQueryResponse.newBuilder().setReturnCode(Broker.QUERY_RETRY).build());
                     }
                 } else if (writeState == DataStore.COMMIT) {
                     assert (lastState == DataStore.PREPARE);
+                    long commitStart = System.nanoTime();
                     commitWriteQuery(shardNum, txID, writeQueryPlan);
+                    dataStore.writePhaseTimes.get("commit").record((System.nanoTime() - commitStart) / 1000L);
                     lastState = writeState;
-                    t.releaseLock();
+                    writeLease.release();
+                    // Shards become evictable once checkpointed; evict only after unlocking, as shards being
+                    // written cannot be evicted and the last writer to finish must see the others unlocked.
+                    dataStore.evictColdShards(shardNum);
                 } else if (writeState == DataStore.ABORT) {
                     assert (lastState == DataStore.PREPARE);
+                    long abortStart = System.nanoTime();
                     abortWriteQuery(shardNum, txID, writeQueryPlan);
+                    dataStore.writePhaseTimes.get("abort").record((System.nanoTime() - abortStart) / 1000L);
                     lastState = writeState;
-                    t.releaseLock();
+                    writeLease.release();
                 }
                 lastState = writeState;
             }
@@ -88,7 +110,7 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     } else {
                         abortWriteQuery(shardNum, txID, writeQueryPlan);
                     }
-                    t.releaseLock();
+                    writeLease.release();
                 }
             }
 
@@ -97,19 +119,50 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                 responseObserver.onCompleted();
             }
 
+            /** The rows as one serialized block, reusing the received bytes if they arrived in one chunk **/
+            private ByteString rowData() {
+                if (rowData == null) {
+                    rowData = rowChunks.size() == 1 ? rowChunks.get(0) : Utilities.rowsToByteString((R[]) rows.toArray(new Row[0]), rowCodec);
+                }
+                return rowData;
+            }
+
+            /** Log the prepared write at the version it will commit as, so the vote fails if the write cannot be made durable **/
+            private boolean logPreparedWrite(int shardNum) {
+                walEnd = dataStore.writeAheadLog.end(shardNum);
+                if (walEnd < 0) {
+                    return false;
+                }
+                int newVersionNumber = dataStore.shardVersionMap.get(shardNum) + 1;
+                long walOffset = dataStore.writeAheadLog.append(shardNum, newVersionNumber, txID, registeredPlan.serializedPlan, rowData());
+                if (walOffset < 0 || !dataStore.writeAheadLog.sync(shardNum, walOffset)) {
+                    logger.error("DS{} Write {} to shard {} is not durable", dataStore.dsID, txID, shardNum);
+                    discardLoggedWrite(shardNum);
+                    return false;
+                }
+                return true;
+            }
+
+            /** Drop the record of a write that will not commit; the write lease keeps other records from following it **/
+            private void discardLoggedWrite(int shardNum) {
+                if (walEnd >= 0) {
+                    dataStore.writeAheadLog.truncate(shardNum, walEnd);
+                    walEnd = -1;
+                }
+            }
+
             private WriteQueryResponse prepareWriteQuery(int shardNum, long txID, WriteQueryPlan<R, S> writeQueryPlan) {
                 if (dataStore.consistentHash.getBuckets(shardNum).contains(dataStore.dsID)) {
                     dataStore.ensureShardCached(shardNum);
                     S shard;
                     if (dataStore.readWriteAtomicity) {
+                        int versionNumber = dataStore.shardVersionMap.get(shardNum);
                         ZKShardDescription z = dataStore.zkCurator.getZKShardDescription(shardNum);
-                        if (z == null) {
+                        if (versionNumber == 0 && (z == null || z.cloudName.equals(DataStore.NO_CHECKPOINT))) {
                             shard = dataStore.shardMap.get(shardNum); // This is the first commit.
                         } else {
-                            Optional<S> shardOpt =
-                                    dataStore.useReflink ?
-                                            dataStore.copyShardToDir(shardNum, z.cloudName, z.versionNumber) :
-                                            dataStore.downloadShardFromCloud(shardNum, z.cloudName, z.versionNumber);
+                            // Write into a local copy of the current version while reads continue on the original.
+                            Optional<S> shardOpt = dataStore.copyShardToDir(shardNum, String.format("%d_%d", shardNum, txID), versionNumber);
                             assert (shardOpt.isPresent());
                             shard = shardOpt.get();
                         }
@@ -121,8 +174,6 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     List<DataStoreDataStoreGrpc.DataStoreDataStoreStub> replicaStubs =
                             dataStore.replicaDescriptionsMap.get(shardNum).stream().map(i -> i.stub).collect(Collectors.toList());
                     int numReplicas = replicaStubs.size();
-                    R[] rowArray;
-                    rowArray = (R[]) rows.toArray(new Row[0]);
                     AtomicBoolean success = new AtomicBoolean(true);
                     Semaphore prepareSemaphore = new Semaphore(0);
                     for (DataStoreDataStoreGrpc.DataStoreDataStoreStub stub : replicaStubs) {
@@ -149,16 +200,14 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                                 commitSemaphore.release();
                             }
                         });
-                        final int stepSize = 10000;
-                        for (int i = 0; i < rowArray.length; i += stepSize) {
-                            ByteString serializedQuery = Utilities.objectToByteString(writeQueryPlan);
-                            R[] rowSlice = Arrays.copyOfRange(rowArray, i, Math.min(rowArray.length, i + stepSize));
-                            ByteString rowData = Utilities.objectToByteString(rowSlice);
+                        for (int i = 0; i < rowChunks.size(); i++) {
                             ReplicaWriteMessage rm = ReplicaWriteMessage.newBuilder()
                                     .setShard(shardNum)
-                                    .setSerializedQuery(serializedQuery)
-                                    .setRowData(rowData)
+                                    .setSerializedQuery(i == 0 ? registeredPlan.serializedPlan : ByteString.EMPTY)
+                                    .setPlanHash(registeredPlan.planHash)
+                                    .setRowData(rowChunks.get(i))
                                     .setVersionNumber(dataStore.shardVersionMap.get(shardNum))
+                                    .setCheckpointVersion(dataStore.checkpointVersionMap.getOrDefault(shardNum, 0))
                                     .setWriteState(DataStore.COLLECT)
                                     .setTxID(txID)
                                     .build();
@@ -179,7 +228,7 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                         assert (false);
                     }
                     int returnCode;
-                    if (primaryWriteSuccess && success.get()) {
+                    if (primaryWriteSuccess && success.get() && (!dataStore.useWriteAheadLog || logPreparedWrite(shardNum))) {
                         returnCode = Broker.QUERY_SUCCESS;
                     } else {
                         returnCode = Broker.QUERY_FAILURE;
@@ -187,7 +236,7 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     return WriteQueryResponse.newBuilder().setReturnCode(returnCode).build();
                 } else {
                     logger.warn("DS{} Primary got write request for unassigned shard {}", dataStore.dsID, shardNum);
-                    t.releaseLock();
+                    writeLease.release();
                     return WriteQueryResponse.newBuilder().setReturnCode(Broker.QUERY_RETRY).build();
                 }
             }
@@ -195,7 +244,7 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
             private void commitWriteQuery(int shardNum, long txID, WriteQueryPlan<R, S> writeQueryPlan) {
                 S shard;
                 if (dataStore.readWriteAtomicity) {
-                    shard = dataStore.multiVersionShardMap.get(shardNum).get(txID);
+                    shard = dataStore.multiVersionShardMap.get(shardNum).remove(txID);
                 } else {
                     shard = dataStore.shardMap.get(shardNum);
                 }
@@ -207,15 +256,13 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     observer.onCompleted();
                 }
                 writeQueryPlan.commit(shard);
-                dataStore.shardMap.put(shardNum, shard);
+                dataStore.commitShardVersion(shardNum, txID, shard);
                 int newVersionNumber = dataStore.shardVersionMap.get(shardNum) + 1;
-                if (rows.size() < 10000) {
-                    Map<Integer, Pair<WriteQueryPlan<R, S>, List<R>>> shardWriteLog = dataStore.writeLog.get(shardNum);
-                    shardWriteLog.put(newVersionNumber, new Pair<>(writeQueryPlan, rows));
-                }
+                dataStore.writeLog.append(shardNum, newVersionNumber, registeredPlan.serializedPlan, rowData());
                 dataStore.shardVersionMap.put(shardNum, newVersionNumber);  // Increment version number
-                // Upload the updated shard.
-                if (dataStore.dsCloud != null) {
+                // With the write-ahead log on, the write was logged when prepared and the shard is checkpointed in the background.
+                if (!dataStore.useWriteAheadLog && dataStore.dsCloud != null) {
+                    // Upload the updated shard.
                     dataStore.uploadShardToCloud(shardNum);
                 }
                 try {
@@ -234,6 +281,7 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     observer.onNext(rm);
                     observer.onCompleted();
                 }
+                discardLoggedWrite(shardNum);
                 if (dataStore.readWriteAtomicity) {
                     S shard = dataStore.multiVersionShardMap.get(shardNum).get(txID);
                     writeQueryPlan.abort(shard);
@@ -259,11 +307,17 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
         return new StreamObserver<>() {
             int shardNum;
             long txID;
+            QueryPlanRegistry.RegisteredPlan registeredPlan;
             SimpleWriteQueryPlan<R, S> writeQueryPlan;
+            RowCodec<R> rowCodec;
             List<R[]> rowArrayList = new ArrayList<>();
+            // The rows as received, forwarded to replicas and logged without serializing them again.
+            List<ByteString> rowChunks = new ArrayList<>();
+            ByteString rowData;
             int lastState = DataStore.COLLECT;
             List<R> rows;
             List<StreamObserver<ReplicaWriteMessage>> replicaObservers = new ArrayList<>();
+            long walOffset = -1;
 
             @Override
             public void onNext(WriteQueryMessage writeQueryMessage) {
@@ -273,9 +327,15 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     shardNum = writeQueryMessage.getShard();
                     dataStore.createShardMetadata(shardNum);
                     txID = writeQueryMessage.getTxID();
-                    writeQueryPlan = (SimpleWriteQueryPlan<R, S>) Utilities.byteStringToObject(writeQueryMessage.getSerializedQuery()); // TODO:  Only send this once.
-                    R[] rowChunk = (R[]) Utilities.byteStringToObject(writeQueryMessage.getRowData());
+                    if (registeredPlan == null) {
+                        // The plan's bytes arrive with the first chunk only.
+                        registeredPlan = dataStore.planRegistry.getPlan(writeQueryMessage.getPlanHash(), writeQueryMessage.getSerializedQuery());
+                        writeQueryPlan = (SimpleWriteQueryPlan<R, S>) registeredPlan.plan;
+                        rowCodec = dataStore.getRowCodec(writeQueryPlan.getQueriedTable());
+                    }
+                    R[] rowChunk = Utilities.byteStringToRows(writeQueryMessage.getRowData(), rowCodec);
                     rowArrayList.add(rowChunk);
+                    rowChunks.add(writeQueryMessage.getRowData());
                 } else if (writeState == DataStore.PREPARE) {
                     assert (lastState == DataStore.COLLECT);
                     rows = rowArrayList.stream().flatMap(Arrays::stream).collect(Collectors.toList());
@@ -302,6 +362,23 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                 responseObserver.onCompleted();
             }
 
+            /** The rows as one serialized block, reusing the received bytes if they arrived in one chunk **/
+            private ByteString rowData() {
+                if (rowData == null) {
+                    rowData = rowChunks.size() == 1 ? rowChunks.get(0) : Utilities.rowsToByteString((R[]) rows.toArray(new Row[0]), rowCodec);
+                }
+                return rowData;
+            }
+
+            /** Returns false if the write was not made durable, in which case it must not be acknowledged **/
+            private boolean syncWriteAheadLog() {
+                if (dataStore.useWriteAheadLog && !dataStore.writeAheadLog.sync(shardNum, walOffset)) {
+                    logger.error("DS{} Write {} to shard {} is not durable", dataStore.dsID, txID, shardNum);
+                    return false;
+                }
+                return true;
+            }
+
             private WriteQueryResponse executeWriteQuery(int shardNum, long txID, SimpleWriteQueryPlan<R, S> writeQueryPlan) {
                 if (dataStore.consistentHash.getBuckets(shardNum).contains(dataStore.dsID)) {
                     dataStore.ensureShardCached(shardNum);
@@ -309,25 +386,23 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     assert(shard != null);
                     List<DataStoreDataStoreGrpc.DataStoreDataStoreStub> replicaStubs =
                             dataStore.replicaDescriptionsMap.get(shardNum).stream().map(i -> i.stub).collect(Collectors.toList());
-                    int numReplicas = replicaStubs.size();
-                    R[] rowArray;
-                    rowArray = (R[]) rows.toArray(new Row[0]);
                     AtomicBoolean success = new AtomicBoolean(true);
 
                     boolean primaryWriteSuccess = writeQueryPlan.write(shard, rows);
 
                     int newVersionNumber = dataStore.shardVersionMap.get(shardNum) + 1;
-                    if (rows.size() < 10000) {
-                        Map<Integer, Pair<WriteQueryPlan<R, S>, List<R>>> shardWriteLog = dataStore.writeLog.get(shardNum);
-                        shardWriteLog.put(newVersionNumber, new Pair<>(null, rows)); // TODO: Fix
-                    }
+                    dataStore.writeLog.append(shardNum, newVersionNumber, registeredPlan.serializedPlan, rowData());
                     dataStore.shardVersionMap.put(shardNum, newVersionNumber);  // Increment version number
-                    // Upload the updated shard.
-                    if (dataStore.dsCloud != null) {
+                    if (dataStore.useWriteAheadLog) {
+                        walOffset = dataStore.writeAheadLog.append(shardNum, newVersionNumber, WriteAheadLog.NO_TRANSACTION, registeredPlan.serializedPlan, rowData());
+                    } else if (dataStore.dsCloud != null) {
+                        // Upload the updated shard.
                         dataStore.uploadShardToCloud(shardNum);
                     }
 
                     dataStore.shardLockMap.get(shardNum).writerLockUnlock();
+                    dataStore.evictColdShards(shardNum);
+                    boolean durable = syncWriteAheadLog();
 
                     CountDownLatch replicaLatch = new CountDownLatch(replicaStubs.size());
                     for (DataStoreDataStoreGrpc.DataStoreDataStoreStub stub : replicaStubs) {
@@ -351,15 +426,12 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                             @Override
                             public void onCompleted() {}
                         });
-                        final int stepSize = 10000;
-                        for (int i = 0; i < rowArray.length; i += stepSize) {
-                            ByteString serializedQuery = Utilities.objectToByteString(writeQueryPlan);
-                            R[] rowSlice = Arrays.copyOfRange(rowArray, i, Math.min(rowArray.length, i + stepSize));
-                            ByteString rowData = Utilities.objectToByteString(rowSlice);
+                        for (int i = 0; i < rowChunks.size(); i++) {
                             ReplicaWriteMessage rm = ReplicaWriteMessage.newBuilder()
                                     .setShard(shardNum)
-                                    .setSerializedQuery(serializedQuery)
-                                    .setRowData(rowData)
+                                    .setSerializedQuery(i == 0 ? registeredPlan.serializedPlan : ByteString.EMPTY)
+                                    .setPlanHash(registeredPlan.planHash)
+                                    .setRowData(rowChunks.get(i))
                                     .setVersionNumber(dataStore.shardVersionMap.get(shardNum))
                                     .setWriteState(DataStore.COLLECT)
                                     .setTxID(txID)
@@ -380,7 +452,7 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     }
 
                     int returnCode;
-                    if (primaryWriteSuccess) {
+                    if (primaryWriteSuccess && durable) {
                         returnCode = Broker.QUERY_SUCCESS;
                     } else {
                         returnCode = Broker.QUERY_FAILURE;
@@ -405,93 +477,169 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
 
 
     private AnchoredReadQueryResponse anchoredReadQueryHandler(AnchoredReadQueryMessage m) {
-        AnchoredReadQueryPlan<S, Object> plan =
-                (AnchoredReadQueryPlan<S, Object>) Utilities.byteStringToObject(m.getSerializedQuery());
+        long fullStart = System.nanoTime();
+        int localShardNum = m.getTargetShard();
+        QueryPlanRegistry.RegisteredPlan registeredPlan = dataStore.planRegistry.getPlan(m.getPlanHash(), m.getSerializedQuery());
+        if (registeredPlan == null) {
+            return AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_PLAN_MISSING).build();
+        }
+        AnchoredReadQueryPlan<S, Object> plan = (AnchoredReadQueryPlan<S, Object>) registeredPlan.plan;
         Map<String, List<Integer>> allTargetShards = (Map<String, List<Integer>>) Utilities.byteStringToObject(m.getTargetShards());
         Map<String, Map<Integer, Integer>> intermediateShards = (Map<String, Map<Integer, Integer>>) Utilities.byteStringToObject(m.getIntermediateShards());
+        QueryTrace.record("deserialize plan", localShardNum, fullStart);
         Map<String, List<ByteString>> ephemeralData = new HashMap<>();
         Map<String, S> ephemeralShards = new HashMap<>();
-        int localShardNum = m.getTargetShard();
         String anchorTableName = plan.getAnchorTable();
         dataStore.createShardMetadata(localShardNum);
+        long lockStart = System.nanoTime();
         dataStore.shardLockMap.get(localShardNum).readerLockLock();
+        QueryTrace.record("reader lock wait", localShardNum, lockStart);
         if (!dataStore.consistentHash.getBuckets(localShardNum).contains(dataStore.dsID)) {
             logger.warn("DS{} Got anchored read request for unassigned local shard {}", dataStore.dsID, localShardNum);
             dataStore.shardLockMap.get(localShardNum).readerLockUnlock();
             return AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_RETRY).build();
         }
+        long cacheStart = System.nanoTime();
         dataStore.ensureShardCached(localShardNum);
+        QueryTrace.record("ensure shard cached", localShardNum, cacheStart);
         S localShard;
         long lastCommittedVersion = m.getLastCommittedVersion();
+        ShardVersions.Version<S> localVersion = null;
         if (dataStore.readWriteAtomicity) {
-            if (dataStore.multiVersionShardMap.get(localShardNum).containsKey(lastCommittedVersion)) {
-                localShard = dataStore.multiVersionShardMap.get(localShardNum).get(lastCommittedVersion);
-            } else { // TODO: Retrieve the older version from somewhere else?
+            localVersion = dataStore.acquireShardVersion(localShardNum, lastCommittedVersion);
+            if (localVersion == null) { // TODO: Retrieve the older version from somewhere else?
                 logger.info("DS{} missing shard {} version {}", dataStore.dsID, localShardNum, lastCommittedVersion);
+                dataStore.shardLockMap.get(localShardNum).readerLockUnlock();
                 return AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
             }
+            localShard = localVersion.shard;
         } else {
             localShard = dataStore.shardMap.get(localShardNum);
         }
         assert(localShard != null);
+        // Cacheable plans are answered from the gather cache while the anchor shard and every shard shuffled to it
+        // keep their versions.  Snapshot reads and multi-stage queries are not cached.
+        GatherCache.Key gatherKey = null;
+        long anchorWriteSequence = dataStore.shardLockMap.get(localShardNum).writeSequence();
+        if (plan.isCacheable() && plan.returnTableName().isEmpty() && !dataStore.readWriteAtomicity && intermediateShards.isEmpty()) {
+            long lookupStart = System.nanoTime();
+            gatherKey = gatherCacheKey(registeredPlan.planHash, localShardNum, anchorTableName, allTargetShards);
+            ByteString cachedResult = gatherKey == null ? null : dataStore.gatherCache.get(gatherKey);
+            QueryTrace.record("gather cache lookup", localShardNum, lookupStart);
+            if (cachedResult != null) {
+                dataStore.shardLockMap.get(localShardNum).readerLockUnlock();
+                abstainFromShuffles(m, registeredPlan, localShardNum, anchorTableName, allTargetShards);
+                dataStore.QPSMap.get(localShardNum).record();
+                long end = System.nanoTime();
+                dataStore.readQueryFullTimes.record((end - fullStart) / 1000L);
+                dataStore.shardReadTimes.computeIfAbsent(localShardNum, k -> new LatencyHistogram()).record((end - fullStart) / 1000L);
+                return AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setResponse(cachedResult)
+                        .addAllShardNums(gatherKey.shardVersions.keySet())
+                        .addAllVersionNumbers(gatherKey.shardVersions.values()).build();
+            }
+        }
+        // Map from shuffled shard number to the version it was scattered at.
+        Map<Integer, Integer> shuffledVersions = new ConcurrentHashMap<>();
         List<Integer> partitionKeys = plan.getPartitionKeys(localShard);
-        for (String tableName: plan.getQueriedTables()) {
-            if (plan.getQueriedTables().size() > 1) {
+        if (plan.getQueriedTables().size() > 1) {
+            for (String tableName: plan.getQueriedTables()) {
                 S ephemeralShard = dataStore.createNewShard(dataStore.ephemeralShardNum.decrementAndGet()).get();
                 ephemeralShards.put(tableName, ephemeralShard);
             }
+        }
+        Optional<IncrementalGather> incrementalGather = plan.returnTableName().isEmpty() ?
+                plan.startGather(localShard, ephemeralShards) : Optional.empty();
+        AtomicBoolean gatherFailed = new AtomicBoolean(false);
+        for (String tableName: plan.getQueriedTables()) {
             if (!tableName.equals(anchorTableName)) {
                 List<Integer> targetShards = allTargetShards.get(tableName);
                 List<ByteString> tableEphemeralData = new CopyOnWriteArrayList<>();
                 CountDownLatch latch = new CountDownLatch(targetShards.size());
                 for (int targetShard : targetShards) {
                     int targetDSID = intermediateShards.containsKey(tableName) ?
-                            intermediateShards.get(tableName).get(targetShard) :
-                            dataStore.consistentHash.getRandomBucket(targetShard); // TODO:  If it's already here, use it.
-                    ManagedChannel channel = dataStore.getChannelForDSID(targetDSID);
-                    DataStoreDataStoreGrpc.DataStoreDataStoreStub stub = DataStoreDataStoreGrpc.newStub(channel);
+                            intermediateShards.get(tableName).get(targetShard) : shuffleSource(targetShard);
                     AnchoredShuffleMessage g = AnchoredShuffleMessage.newBuilder()
                             .setShardNum(targetShard).setNumRepartitions(m.getNumRepartitions()).setRepartitionShardNum(localShardNum)
-                            .setSerializedQuery(m.getSerializedQuery()).setLastCommittedVersion(lastCommittedVersion)
+                            .setSerializedQuery(registeredPlan.serializedPlan).setPlanHash(registeredPlan.planHash)
+                            .setLastCommittedVersion(lastCommittedVersion)
                             .setTxID(m.getTxID()).addAllPartitionKeys(partitionKeys)
                             .setTargetShardIntermediate(intermediateShards.containsKey(tableName)).build();
+                    long fetchStart = System.nanoTime();
                     StreamObserver<AnchoredShuffleResponse> responseObserver = new StreamObserver<>() {
+                        boolean gathered = false;
+                        boolean failed = false;
+
                         @Override
                         public void onNext(AnchoredShuffleResponse r) {
+                            if (failed) {
+                                return;
+                            }
                             if (r.getReturnCode() == Broker.QUERY_RETRY) {
                                 onError(new Throwable());
+                            } else if (r.getReturnCode() == Broker.QUERY_FAILURE) {
+                                // The shard could not be scattered, so the gather would be missing its data.
+                                logger.info("DS{} Shuffle of shard {} failed", dataStore.dsID, targetShard);
+                                failed = true;
+                                gatherFailed.set(true);
+                                latch.countDown();
                             } else {
-                                tableEphemeralData.add(r.getShuffleData());
+                                shuffledVersions.put(targetShard, r.getVersionNumber());
+                                if (incrementalGather.isPresent()) {
+                                    gathered = true;
+                                    gatherChunk(incrementalGather.get(), tableName, targetShard, r.getShuffleData(), gatherFailed);
+                                } else {
+                                    tableEphemeralData.add(r.getShuffleData());
+                                }
                             }
                         }
 
                         @Override
                         public void onError(Throwable throwable) {
+                            if (failed) {
+                                return;
+                            }
                             logger.info("DS{}  Shuffle data error shard {}", dataStore.dsID, targetShard);
+                            if (gathered) {
+                                // Data the incremental gather has consumed cannot be taken back, so a retry would repeat it.
+                                gatherFailed.set(true);
+                                latch.countDown();
+                                return;
+                            }
                             // TODO: First remove all ByteStrings added from this shard.
-                            int targetDSID = dataStore.consistentHash.getRandomBucket(targetShard); // TODO:  If it's already here, use it.
-                            ManagedChannel channel = dataStore.getChannelForDSID(targetDSID);
-                            DataStoreDataStoreGrpc.DataStoreDataStoreStub stub = DataStoreDataStoreGrpc.newStub(channel);
-                            stub.anchoredShuffle(g, this);
+                            fetchAnchoredShuffle(shuffleSource(targetShard), g, this);
                         }
 
                         @Override
                         public void onCompleted() {
+                            if (failed) {
+                                return;
+                            }
+                            QueryTrace.record("anchored shuffle fetch", targetShard, fetchStart);
                             latch.countDown();
                         }
                     };
-                    stub.anchoredShuffle(g, responseObserver);
+                    fetchAnchoredShuffle(targetDSID, g, responseObserver);
                 }
                 try {
-                    latch.await();
+                    // The shuffle waits for the sibling reads of this query, which may be queued behind this one.
+                    RpcExecutor.managedBlock(latch::await);
                 } catch (InterruptedException ignored) {
                 }
                 ephemeralData.put(tableName, tableEphemeralData);
             }
         }
         AnchoredReadQueryResponse r;
+        long executeStart = System.nanoTime();
         try {
-            if (plan.returnTableName().isEmpty()) {
+            if (gatherFailed.get()) {
+                r = AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
+            } else if (incrementalGather.isPresent()) {
+                ByteString b;
+                synchronized (incrementalGather.get()) {
+                    b = incrementalGather.get().finishGather();
+                }
+                r = AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setResponse(b).build();
+            } else if (plan.returnTableName().isEmpty()) {
                 ByteString b = plan.gather(localShard, ephemeralData, ephemeralShards);
                 r = AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setResponse(b).build();
             } else {
@@ -508,10 +656,30 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
             logger.warn("Read Query Exception: {}", e.getMessage());
             r = AnchoredReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
         }
+        QueryTrace.record("gather", localShardNum, executeStart);
+        if (r.getReturnCode() == Broker.QUERY_SUCCESS && plan.returnTableName().isEmpty()) {
+            // The anchor shard was read at a committed version if no write touched it during the query.
+            Integer anchorVersion = dataStore.shardVersionMap.get(localShardNum);
+            boolean anchorUnwritten = !dataStore.readWriteAtomicity && anchorVersion != null && anchorWriteSequence % 2 == 0
+                    && dataStore.shardLockMap.get(localShardNum).writeSequence() == anchorWriteSequence;
+            Map<Integer, Integer> readVersions = new HashMap<>(shuffledVersions);
+            readVersions.put(localShardNum, anchorUnwritten ? anchorVersion : -1);
+            // Only cache the result if every shard was read at the version in the key.
+            if (gatherKey != null && readVersions.equals(gatherKey.shardVersions)) {
+                dataStore.gatherCache.put(gatherKey, r.getResponse());
+            }
+            r = r.toBuilder().addAllShardNums(readVersions.keySet()).addAllVersionNumbers(readVersions.values()).build();
+        }
+        if (localVersion != null) {
+            dataStore.committedVersionMap.get(localShardNum).release(localVersion);
+        }
         dataStore.shardLockMap.get(localShardNum).readerLockUnlock();
         ephemeralShards.values().forEach(S::destroy);
-        long unixTime = Instant.now().getEpochSecond();
-        dataStore.QPSMap.get(localShardNum).merge(unixTime, 1, Integer::sum);
+        dataStore.QPSMap.get(localShardNum).record();
+        long end = System.nanoTime();
+        dataStore.readQueryExecuteTimes.record((end - executeStart) / 1000L);
+        dataStore.readQueryFullTimes.record((end - fullStart) / 1000L);
+        dataStore.shardReadTimes.computeIfAbsent(localShardNum, k -> new LatencyHistogram()).record((end - fullStart) / 1000L);
         return r;
     }
 
@@ -523,30 +691,45 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
 
 
     private ShuffleReadQueryResponse shuffleReadQueryHandler(ShuffleReadQueryMessage m) {
-        ShuffleReadQueryPlan<S, Object> plan =
-                (ShuffleReadQueryPlan<S, Object>) Utilities.byteStringToObject(m.getSerializedQuery());
+        QueryPlanRegistry.RegisteredPlan registeredPlan = dataStore.planRegistry.getPlan(m.getPlanHash(), m.getSerializedQuery());
+        if (registeredPlan == null) {
+            return ShuffleReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_PLAN_MISSING).build();
+        }
+        ShuffleReadQueryPlan<S, Object> plan = (ShuffleReadQueryPlan<S, Object>) registeredPlan.plan;
         Map<String, List<Integer>> allTargetShards = (Map<String, List<Integer>>) Utilities.byteStringToObject(m.getTargetShards());
         Map<String, List<ByteString>> ephemeralData = new HashMap<>();
         Map<String, S> ephemeralShards = new HashMap<>();
         for (String tableName: plan.getQueriedTables()) {
             S ephemeralShard = dataStore.createNewShard(dataStore.ephemeralShardNum.decrementAndGet()).get();
             ephemeralShards.put(tableName, ephemeralShard);
+        }
+        Optional<IncrementalGather> incrementalGather = plan.startGather(ephemeralShards);
+        AtomicBoolean gatherFailed = new AtomicBoolean(false);
+        // Map from shuffled shard number to the version it was scattered at.
+        Map<Integer, Integer> shuffledVersions = new ConcurrentHashMap<>();
+        for (String tableName: plan.getQueriedTables()) {
             List<Integer> targetShards = allTargetShards.get(tableName);
             List<ByteString> tableEphemeralData = new CopyOnWriteArrayList<>();
             CountDownLatch latch = new CountDownLatch(targetShards.size());
             for (int targetShard : targetShards) {
-                int targetDSID = dataStore.consistentHash.getRandomBucket(targetShard); // TODO:  If it's already here, use it.
-                ManagedChannel channel = dataStore.getChannelForDSID(targetDSID);
-                DataStoreDataStoreGrpc.DataStoreDataStoreStub stub = DataStoreDataStoreGrpc.newStub(channel);
                 ShuffleMessage g = ShuffleMessage.newBuilder()
                         .setShardNum(targetShard).setNumRepartition(m.getNumRepartitions()).setRepartitionNum(m.getRepartitionNum())
-                        .setSerializedQuery(m.getSerializedQuery())
+                        .setSerializedQuery(registeredPlan.serializedPlan).setPlanHash(registeredPlan.planHash)
                         .setTxID(m.getTxID()).build();
+                long fetchStart = System.nanoTime();
                 StreamObserver<ShuffleResponse> responseObserver = new StreamObserver<>() {
+                    boolean gathered = false;
+
                     @Override
                     public void onNext(ShuffleResponse r) {
                         if (r.getReturnCode() == Broker.QUERY_RETRY) {
                             onError(new Throwable());
+                            return;
+                        }
+                        shuffledVersions.put(targetShard, r.getVersionNumber());
+                        if (incrementalGather.isPresent()) {
+                            gathered = true;
+                            gatherChunk(incrementalGather.get(), tableName, targetShard, r.getShuffleData(), gatherFailed);
                         } else {
                             tableEphemeralData.add(r.getShuffleData());
                         }
@@ -555,29 +738,249 @@ class ServiceBrokerDataStore<R extends Row, S extends Shard> extends BrokerDataS
                     @Override
                     public void onError(Throwable throwable) {
                         logger.info("DS{}  Shuffle data error shard {}", dataStore.dsID, targetShard);
+                        if (gathered) {
+                            // Data the incremental gather has consumed cannot be taken back, so a retry would repeat it.
+                            gatherFailed.set(true);
+                            latch.countDown();
+                            return;
+                        }
                         // TODO: First remove all ByteStrings added from this shard.
-                        int targetDSID = dataStore.consistentHash.getRandomBucket(targetShard); // TODO:  If it's already here, use it.
-                        ManagedChannel channel = dataStore.getChannelForDSID(targetDSID);
-                        DataStoreDataStoreGrpc.DataStoreDataStoreStub stub = DataStoreDataStoreGrpc.newStub(channel);
-                        stub.shuffle(g, this);
+                        fetchShuffle(shuffleSource(targetShard), g, this);
                     }
 
                     @Override
                     public void onCompleted() {
+                        QueryTrace.record("shuffle fetch", targetShard, fetchStart);
                         latch.countDown();
                     }
                 };
-                stub.shuffle(g, responseObserver);
+                fetchShuffle(shuffleSource(targetShard), g, responseObserver);
             }
             try {
-                latch.await();
+                RpcExecutor.managedBlock(latch::await);
             } catch (InterruptedException ignored) {
             }
             ephemeralData.put(tableName, tableEphemeralData);
 
         }
-        ByteString b = plan.gather(ephemeralData, ephemeralShards);
+        long gatherStart = System.nanoTime();
+        ByteString b = null;
+        if (incrementalGather.isPresent()) {
+            if (!gatherFailed.get()) {
+                synchronized (incrementalGather.get()) {
+                    b = incrementalGather.get().finishGather();
+                }
+            }
+        } else {
+            b = plan.gather(ephemeralData, ephemeralShards);
+        }
+        QueryTrace.record("gather", -1, gatherStart);
         ephemeralShards.values().forEach(S::destroy);
-        return ShuffleReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setResponse(b).build();
+        if (b == null) {
+            return ShuffleReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build();
+        }
+        return ShuffleReadQueryResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setResponse(b)
+                .addAllShardNums(shuffledVersions.keySet()).addAllVersionNumbers(shuffledVersions.values()).build();
+    }
+
+    /** Tell every shard this anchor would have shuffled from that it needs no data, so their scatters do not wait
+     * for it. **/
+    private void abstainFromShuffles(AnchoredReadQueryMessage m, QueryPlanRegistry.RegisteredPlan registeredPlan,
+                                     int localShardNum, String anchorTableName, Map<String, List<Integer>> allTargetShards) {
+        // The abstentions must outlive this call, which completes before they do.
+        Context.current().fork().run(() -> {
+            for (Map.Entry<String, List<Integer>> e: allTargetShards.entrySet()) {
+                if (e.getKey().equals(anchorTableName)) {
+                    continue;
+                }
+                for (int targetShard: e.getValue()) {
+                    AnchoredShuffleMessage g = AnchoredShuffleMessage.newBuilder()
+                            .setShardNum(targetShard).setNumRepartitions(m.getNumRepartitions()).setRepartitionShardNum(localShardNum)
+                            .setSerializedQuery(registeredPlan.serializedPlan).setPlanHash(registeredPlan.planHash)
+                            .setTxID(m.getTxID()).setAbstain(true).build();
+                    fetchAnchoredShuffle(shuffleSource(targetShard), g, new StreamObserver<>() {
+                        @Override
+                        public void onNext(AnchoredShuffleResponse r) {
+                            if (r.getReturnCode() == Broker.QUERY_RETRY) {
+                                onError(new Throwable());
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            fetchAnchoredShuffle(shuffleSource(targetShard), g, this);
+                        }
+
+                        @Override
+                        public void onCompleted() {}
+                    });
+                }
+            }
+        });
+    }
+
+    /** The gather cache key of an anchored read at the current versions of its shards, asking each shuffled shard's
+     * source for its version, or null if some shard is being written or its version is unavailable. **/
+    private GatherCache.Key gatherCacheKey(ByteString planHash, int anchorShardNum, String anchorTableName, Map<String, List<Integer>> allTargetShards) {
+        Map<Integer, Integer> shardVersions = new HashMap<>();
+        Map<Integer, List<Integer>> dsIDShards = new HashMap<>();
+        dsIDShards.put(dataStore.dsID, new ArrayList<>(List.of(anchorShardNum)));
+        allTargetShards.forEach((tableName, shardNums) -> {
+            if (!tableName.equals(anchorTableName)) {
+                shardNums.forEach(s -> dsIDShards.computeIfAbsent(shuffleSource(s), k -> new ArrayList<>()).add(s));
+            }
+        });
+        for (int shardNum: dsIDShards.remove(dataStore.dsID)) {
+            shardVersions.put(shardNum, dataStore.committedShardVersion(shardNum));
+        }
+        // One call to each other datastore.
+        CountDownLatch latch = new CountDownLatch(dsIDShards.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for (Map.Entry<Integer, List<Integer>> e: dsIDShards.entrySet()) {
+            DataStoreDataStoreGrpc.DataStoreDataStoreStub stub = DataStoreDataStoreGrpc.newStub(dataStore.getChannelForDSID(e.getKey()));
+            stub.shardVersions(ShardVersionsMessage.newBuilder().addAllShardNums(e.getValue()).build(), new StreamObserver<>() {
+                @Override
+                public void onNext(ShardVersionsResponse r) {
+                    synchronized (shardVersions) {
+                        for (int i = 0; i < e.getValue().size(); i++) {
+                            shardVersions.put(e.getValue().get(i), r.getVersionNumbers(i));
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    failed.set(true);
+                    latch.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    latch.countDown();
+                }
+            });
+        }
+        try {
+            RpcExecutor.managedBlock(latch::await);
+        } catch (InterruptedException e) {
+            return null;
+        }
+        synchronized (shardVersions) {
+            if (failed.get() || shardVersions.containsValue(-1)) {
+                return null;
+            }
+            return new GatherCache.Key(planHash, anchorShardNum, shardVersions);
+        }
+    }
+
+    /** Where to fetch a shard's shuffle data from:  this datastore if it holds the shard, otherwise any replica. **/
+    private int shuffleSource(int shardNum) {
+        return dataStore.consistentHash.getBuckets(shardNum).contains(dataStore.dsID) ?
+                dataStore.dsID : dataStore.consistentHash.getRandomBucket(shardNum);
+    }
+
+    /** Fetch shuffle data.  m carries the plan, which is only sent to datastores not known to hold it; if one
+     * turns out not to, the fetch is resent with the plan. **/
+    private void fetchAnchoredShuffle(int dsID, AnchoredShuffleMessage m, StreamObserver<AnchoredShuffleResponse> responseObserver) {
+        if (dsID == dataStore.dsID) {
+            // Scatter in-process, passing data by reference instead of serializing it through a loopback call.
+            dataStore.localShuffleFetches.increment();
+            dataStore.dataStoreService.anchoredShuffle(m, new ServiceDataStoreDataStore.LocalResponseObserver<>(responseObserver));
+            return;
+        }
+        ByteString planHash = m.getPlanHash();
+        boolean includePlan = !dataStore.shippedPlans.contains(planHash, dsID);
+        if (includePlan) {
+            dataStore.shufflePlansSent.increment();
+            dataStore.shippedPlans.add(planHash, dsID);
+        }
+        DataStoreDataStoreGrpc.newStub(dataStore.getChannelForDSID(dsID)).anchoredShuffle(
+                includePlan ? m : m.toBuilder().clearSerializedQuery().build(), new StreamObserver<>() {
+                    boolean planMissing = false;
+
+                    @Override
+                    public void onNext(AnchoredShuffleResponse r) {
+                        if (r.getReturnCode() == Broker.QUERY_PLAN_MISSING) {
+                            planMissing = true;
+                        } else {
+                            responseObserver.onNext(r);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        responseObserver.onError(throwable);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        if (planMissing) {
+                            dataStore.shippedPlans.remove(planHash, dsID);
+                            fetchAnchoredShuffle(dsID, m, responseObserver);
+                        } else {
+                            responseObserver.onCompleted();
+                        }
+                    }
+                });
+    }
+
+    private void fetchShuffle(int dsID, ShuffleMessage m, StreamObserver<ShuffleResponse> responseObserver) {
+        if (dsID == dataStore.dsID) {
+            dataStore.localShuffleFetches.increment();
+            dataStore.dataStoreService.shuffle(m, new ServiceDataStoreDataStore.LocalResponseObserver<>(responseObserver));
+            return;
+        }
+        ByteString planHash = m.getPlanHash();
+        boolean includePlan = !dataStore.shippedPlans.contains(planHash, dsID);
+        if (includePlan) {
+            dataStore.shufflePlansSent.increment();
+            dataStore.shippedPlans.add(planHash, dsID);
+        }
+        DataStoreDataStoreGrpc.newStub(dataStore.getChannelForDSID(dsID)).shuffle(
+                includePlan ? m : m.toBuilder().clearSerializedQuery().build(), new StreamObserver<>() {
+                    boolean planMissing = false;
+
+                    @Override
+                    public void onNext(ShuffleResponse r) {
+                        if (r.getReturnCode() == Broker.QUERY_PLAN_MISSING) {
+                            planMissing = true;
+                        } else {
+                            responseObserver.onNext(r);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        responseObserver.onError(throwable);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        if (planMissing) {
+                            dataStore.shippedPlans.remove(planHash, dsID);
+                            fetchShuffle(dsID, m, responseObserver);
+                        } else {
+                            responseObserver.onCompleted();
+                        }
+                    }
+                });
+    }
+
+    /** Feed one item of shuffled data to an incremental gather as it arrives, unless the gather has failed. **/
+    private void gatherChunk(IncrementalGather gather, String tableName, int shardNum, ByteString chunk, AtomicBoolean gatherFailed) {
+        if (gatherFailed.get()) {
+            return;
+        }
+        long chunkStart = System.nanoTime();
+        // Items from different shards arrive on different threads.
+        synchronized (gather) {
+            try {
+                gather.gatherChunk(tableName, chunk);
+            } catch (Exception e) {
+                logger.warn("DS{} Incremental gather exception: {}", dataStore.dsID, e.getMessage());
+                gatherFailed.set(true);
+            }
+        }
+        QueryTrace.record("gather chunk", shardNum, chunkStart);
     }
 }
\ No newline at end of file
@@ -4,20 +4,20 @@ import com.sun.management.OperatingSystemMXBean;
 import edu.stanford.futuredata.uniserve.*;
 import edu.stanford.futuredata.uniserve.interfaces.Row;
 import edu.stanford.futuredata.uniserve.interfaces.Shard;
-import edu.stanford.futuredata.uniserve.interfaces.WriteQueryPlan;
 import edu.stanford.futuredata.uniserve.utilities.ConsistentHash;
 import edu.stanford.futuredata.uniserve.utilities.DataStoreDescription;
+import edu.stanford.futuredata.uniserve.utilities.QPSCounter;
 import edu.stanford.futuredata.uniserve.utilities.Utilities;
 import edu.stanford.futuredata.uniserve.utilities.ZKShardDescription;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.management.ManagementFactory;
-import java.time.Instant;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -44,13 +44,25 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
     private Integer addReplica(int shardNum, boolean isReplacementPrimary) {
         long loadStart = System.currentTimeMillis();
         assert(!dataStore.shardMap.containsKey(shardNum));
+        dataStore.evictedShards.remove(shardNum);
         // Get shard info from ZK.
         ZKShardDescription zkShardDescription = dataStore.zkCurator.getZKShardDescription(shardNum);
         assert (zkShardDescription != null);
-        String cloudName = zkShardDescription.cloudName;
         int replicaVersion = zkShardDescription.versionNumber;
-        // Download the shard.
-        Optional<S> loadedShard = dataStore.downloadShardFromCloud(shardNum, cloudName, replicaVersion);
+        ConsistentHash c = dataStore.zkCurator.getConsistentHashFunction();
+        int primaryDSID = c.getBuckets(shardNum).get(0);
+        // Copy the shard from the primary, which has it at a newer version than the cloud, or else download it.
+        Optional<S> loadedShard = Optional.empty();
+        if (!isReplacementPrimary) {
+            Optional<Pair<S, Integer>> peerShard = dataStore.transferShardFromPeer(shardNum, primaryDSID);
+            if (peerShard.isPresent()) {
+                loadedShard = Optional.of(peerShard.get().getValue0());
+                replicaVersion = peerShard.get().getValue1();
+            }
+        }
+        if (loadedShard.isEmpty()) {
+            loadedShard = dataStore.loadCheckpoint(shardNum, zkShardDescription);
+        }
         if (loadedShard.isEmpty()) {
             logger.error("DS{} Shard load failed {}", dataStore.dsID, shardNum);
             return 1;
@@ -58,50 +70,89 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
         // Load but lock the replica until it has been bootstrapped.
         S shard = loadedShard.get();
         dataStore.createShardMetadata(shardNum);
+        dataStore.checkpointVersionMap.put(shardNum, zkShardDescription.versionNumber);
+        if (dataStore.useWriteAheadLog) {
+            // Recover writes this server logged after the checkpoint before asking the primary for the rest.
+            replicaVersion = dataStore.replayWriteAheadLog(shardNum, shard, replicaVersion);
+            dataStore.shardVersionMap.put(shardNum, replicaVersion);
+        }
         dataStore.shardMap.put(shardNum, shard);
 
         // Set up a connection to the primary.
-        ConsistentHash c = dataStore.zkCurator.getConsistentHashFunction();
-        int primaryDSID = c.getBuckets(shardNum).get(0);
         DataStoreDescription primaryDSDescription = dataStore.zkCurator.getDSDescription(primaryDSID);
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(primaryDSDescription.host, primaryDSDescription.port).usePlaintext().build();
+        // A chunk holds at least one write, however large.
+        ManagedChannel channel = ManagedChannelBuilder.forAddress(primaryDSDescription.host, primaryDSDescription.port)
+                .usePlaintext().maxInboundMessageSize(Integer.MAX_VALUE).build();
         DataStoreDataStoreGrpc.DataStoreDataStoreBlockingStub primaryBlockingStub = DataStoreDataStoreGrpc.newBlockingStub(channel);
 
-        // Bootstrap the replica, bringing it up to the same version as the primary.
-        while (!isReplacementPrimary) {  // TODO:  Stream the writes.
+        // Bootstrap the replica, bringing it up to the same version as the primary.  Writes replicated from the
+        // primary once it registers this replica wait on the lock until the bootstrap stream has been applied.
+        dataStore.shardLockMap.get(shardNum).writerLockLock();
+        boolean caughtUp = false;
+        int restarts = 0;
+        // A datastore taking over as primary, e.g. after restarting at the same address, has no one to catch up with.
+        boolean isPrimary = isReplacementPrimary || primaryDSID == dataStore.dsID
+                || (primaryDSDescription.host.equals(dataStore.dsHost) && primaryDSDescription.port == dataStore.dsPort);
+        while (!isPrimary && !caughtUp && primaryDSDescription.status.get() == DataStoreDescription.ALIVE) {
             BootstrapReplicaMessage m = BootstrapReplicaMessage.newBuilder()
                     .setShard(shardNum)
                     .setVersionNumber(replicaVersion)
                     .setDsID(dataStore.dsID)
                     .build();
-            BootstrapReplicaResponse r;
+            boolean truncated = false;
             try {
-                r = primaryBlockingStub.bootstrapReplica(m);
+                Iterator<BootstrapReplicaResponse> chunks = primaryBlockingStub.bootstrapReplica(m);
+                while (chunks.hasNext()) {
+                    BootstrapReplicaResponse r = chunks.next();
+                    if (r.getReturnCode() != 0) {
+                        // Always the last chunk.
+                        truncated = true;
+                        continue;
+                    }
+                    // Apply each chunk as it arrives.
+                    assert(r.getWriteQueriesCount() == r.getWriteDataCount());
+                    for (int i = 0; i < r.getWriteQueriesCount(); i++) {
+                        dataStore.applyLoggedWrite(shard, r.getWriteQueries(i), r.getWriteData(i));
+                        dataStore.writeLog.append(shardNum, replicaVersion + i + 1, r.getWriteQueries(i), r.getWriteData(i));
+                    }
+                    replicaVersion = r.getVersionNumber();
+                    caughtUp = r.getCaughtUp();
+                }
             } catch (StatusRuntimeException e) {
                 logger.error("DS{} Replica Shard {} could not sync primary {}: {}", dataStore.dsID, shardNum, primaryDSID, e.getMessage());
                 break;
             }
-            assert (r.getReturnCode() == 0);
-            int primaryVersion = r.getVersionNumber();
-            if (replicaVersion == primaryVersion) {
-                // Loop until acknowledgement replica has caught up to primary.
-                break;
-            } else {
-                // If not caught up, replay the primary's log.
-                List<WriteQueryPlan<R, S>> writeQueryPlans = Arrays.asList((WriteQueryPlan<R, S>[]) Utilities.byteStringToObject(r.getWriteQueries()));
-                List<R[]> rowsList = Arrays.asList((R[][]) Utilities.byteStringToObject(r.getWriteData()));
-                assert(writeQueryPlans.size() == rowsList.size());
-                for (int i = 0; i < writeQueryPlans.size(); i++) {
-                    WriteQueryPlan<R, S> query = writeQueryPlans.get(i);
-                    List<R> rows = Arrays.asList(rowsList.get(i));
-                    assert(query.preCommit(shard, rows));
-                    query.commit(shard);
+            if (truncated) {
+                // The primary checkpointed past the replica's version and dropped the writes it needs; start over from that checkpoint.
+                ZKShardDescription z = dataStore.zkCurator.getZKShardDescription(shardNum);
+                Optional<S> checkpointShard = Optional.empty();
+                if (z == null) {
+                    logger.error("DS{} Replica Shard {} has no checkpoint to restart from", dataStore.dsID, shardNum);
+                } else if (++restarts > DataStore.maxBootstrapRestarts) {
+                    // The primary checkpoints faster than this replica catches up.
+                    logger.error("DS{} Replica Shard {} gave up catching up with primary {} after {} restarts", dataStore.dsID, shardNum, primaryDSID, restarts - 1);
+                } else {
+                    checkpointShard = dataStore.loadCheckpoint(shardNum, z);
+                }
+                if (checkpointShard.isEmpty()) {
+                    logger.error("DS{} Shard load failed {}", dataStore.dsID, shardNum);
+                    dataStore.shardLockMap.get(shardNum).writerLockUnlock();
+                    channel.shutdown();
+                    dataStore.shardMap.remove(shardNum);
+                    shard.destroy();
+                    return 1;
                 }
-                replicaVersion = r.getVersionNumber();
+                shard.destroy();
+                shard = checkpointShard.get();
+                dataStore.shardMap.put(shardNum, shard);
+                replicaVersion = z.versionNumber;
+                dataStore.checkpointVersionMap.put(shardNum, replicaVersion);
+                dataStore.writeLog.truncate(shardNum, replicaVersion);
             }
         }
-        channel.shutdown();
         dataStore.shardVersionMap.put(shardNum, replicaVersion);
+        dataStore.shardLockMap.get(shardNum).writerLockUnlock();
+        channel.shutdown();
         if (isReplacementPrimary) {
             logger.info("DS{} Loaded replacement primary shard {} version {}. Load time: {}ms", dataStore.dsID, shardNum, replicaVersion, System.currentTimeMillis() - loadStart);
         } else {
@@ -128,8 +179,12 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
     }
 
     private void removeShard(int shardNum) {
+        if (dataStore.useWriteAheadLog && dataStore.dsCloud != null) {
+            // The shard's new owner keeps no log of our writes, so make them durable in the cloud first.
+            dataStore.checkpointShard(shardNum);
+        }
         dataStore.shardLockMap.get(shardNum).systemLockLock();
-        assert(dataStore.shardMap.containsKey(shardNum));
+        assert(dataStore.shardMap.containsKey(shardNum) || dataStore.evictedShards.contains(shardNum));
         S shard = dataStore.shardMap.getOrDefault(shardNum, null);
         if (shard == null) {
             // Is primary.
@@ -138,12 +193,23 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
                 channel.shutdown();
             }
         }
-        shard.destroy();
+        if (shard != null) {
+            shard.destroy();
+        }
         dataStore.shardMap.remove(shardNum);
-        dataStore.writeLog.get(shardNum).clear();
+        dataStore.evictedShards.remove(shardNum);
+        dataStore.committedVersionMap.get(shardNum).clear();
+        dataStore.writeLog.delete(shardNum);
         dataStore.replicaDescriptionsMap.get(shardNum).forEach(i -> i.channel.shutdown());
         dataStore.replicaDescriptionsMap.get(shardNum).clear();
         dataStore.shardVersionMap.remove(shardNum);
+        dataStore.scatterCache.invalidate(shardNum);
+        dataStore.checkpointVersionMap.remove(shardNum);
+        dataStore.shardReadTimes.remove(shardNum);
+        dataStore.writeAheadLog.delete(shardNum);
+        if (dataStore.dsCloud != null) {
+            dataStore.dsCloud.forgetShard(Integer.toString(shardNum));
+        }
         dataStore.shardLockMap.get(shardNum).systemLockUnlock();
         logger.info("DS{} removed shard {}", dataStore.dsID, shardNum);
     }
@@ -156,13 +222,8 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
 
     private ShardUsageResponse shardUsageHandler(ShardUsageMessage message) {
         Map<Integer, Integer> shardQPS = new HashMap<>();
-        long currentTime = Instant.now().getEpochSecond();
-        for(Map.Entry<Integer, Map<Long, Integer>> entry: dataStore.QPSMap.entrySet()) {
-            int shardNum = entry.getKey();
-            int recentQPS = entry.getValue().entrySet().stream()
-                    .filter(i -> i.getKey() > currentTime - DataStore.qpsReportTimeInterval)
-                    .map(Map.Entry::getValue).mapToInt(i -> i).sum();
-            shardQPS.put(shardNum, recentQPS);
+        for(Map.Entry<Integer, QPSCounter> entry: dataStore.QPSMap.entrySet()) {
+            shardQPS.put(entry.getKey(), entry.getValue().count(DataStore.qpsReportTimeInterval));
         }
         Map<Integer, Integer> shardMemoryUsages = new HashMap<>();
         for(Map.Entry<Integer, S> entry: dataStore.shardMap.entrySet()) {
@@ -179,6 +240,13 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
                 .build();
     }
 
+    @Override
+    public void prefetchShards(PrefetchShardsMessage request, StreamObserver<PrefetchShardsResponse> responseObserver) {
+        dataStore.prefetchShards(request.getShardsList());
+        responseObserver.onNext(PrefetchShardsResponse.newBuilder().build());
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void notifyReplicaRemoved(NotifyReplicaRemovedMessage request, StreamObserver<NotifyReplicaRemovedResponse> responseObserver) {
         responseObserver.onNext(notifyReplicaRemovedHandler(request));
@@ -203,13 +271,11 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
         return NotifyReplicaRemovedResponse.newBuilder().build();
     }
 
-    private ConsistentHash oldHash;
-
     @Override
     public void executeReshuffleAdd(ExecuteReshuffleMessage m, StreamObserver<ExecuteReshuffleResponse> responseObserver) {
         ConsistentHash newHash = (ConsistentHash) Utilities.byteStringToObject(m.getNewConsistentHash());
         ConsistentHash oldHash = dataStore.consistentHash;
-        this.oldHash = oldHash;
+        dataStore.previousConsistentHash = oldHash;
         dataStore.dsID = m.getDsID();
         for (int shardNum: m.getShardListList()) {
             if (newHash.getBuckets(shardNum).contains(m.getDsID()) && (oldHash == null || !oldHash.getBuckets(shardNum).contains(m.getDsID()))) {
@@ -225,7 +291,7 @@ class ServiceCoordinatorDataStore<R extends Row, S extends Shard> extends Coordi
     @Override
     public void executeReshuffleRemove(ExecuteReshuffleMessage m, StreamObserver<ExecuteReshuffleResponse> responseObserver) {
         ConsistentHash newHash = dataStore.consistentHash;
-        ConsistentHash oldHash = this.oldHash;
+        ConsistentHash oldHash = dataStore.previousConsistentHash;
         // Delete all shards to be shuffled out, if present.
         for (int shardNum: dataStore.shardLockMap.keySet()) {
             if (oldHash != null && oldHash.getBuckets(shardNum).contains(m.getDsID()) && !newHash.getBuckets(shardNum).contains(m.getDsID())) {
@@ -5,21 +5,34 @@ import edu.stanford.futuredata.uniserve.*;
 import edu.stanford.futuredata.uniserve.broker.Broker;
 import edu.stanford.futuredata.uniserve.interfaces.*;
 import edu.stanford.futuredata.uniserve.utilities.DataStoreDescription;
+import edu.stanford.futuredata.uniserve.utilities.QueryTrace;
 import edu.stanford.futuredata.uniserve.utilities.Utilities;
 import edu.stanford.futuredata.uniserve.utilities.ZKShardDescription;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.apache.commons.io.FileUtils;
 import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStoreDataStoreGrpc.DataStoreDataStoreImplBase {
 
@@ -30,42 +43,113 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
         this.dataStore = dataStore;
     }
 
+    // Receives the responses of a call this datastore makes to itself in-process.  Callbacks run in the caller's
+    // Context, as a stub's would, whichever thread makes them.
+    static class LocalResponseObserver<T> implements StreamObserver<T> {
+        private final StreamObserver<T> observer;
+        private final Context context = Context.current();
+
+        LocalResponseObserver(StreamObserver<T> observer) {
+            this.observer = observer;
+        }
+
+        @Override
+        public void onNext(T value) {
+            context.run(() -> observer.onNext(value));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            context.run(() -> observer.onError(throwable));
+        }
+
+        @Override
+        public void onCompleted() {
+            context.run(observer::onCompleted);
+        }
+    }
+
     @Override
     public void bootstrapReplica(BootstrapReplicaMessage request, StreamObserver<BootstrapReplicaResponse> responseObserver) {
-        responseObserver.onNext(bootstrapReplicaHandler(request));
-        responseObserver.onCompleted();
+        ServerCallStreamObserver<BootstrapReplicaResponse> serverObserver = (ServerCallStreamObserver<BootstrapReplicaResponse>) responseObserver;
+        int shardNum = request.getShard();
+        int sentVersion = request.getVersionNumber();
+        // Checkpoints keep the writes this replica has yet to be sent.
+        Map<Integer, Integer> bootstrapVersions = dataStore.bootstrapVersionMap.computeIfAbsent(shardNum, k -> new ConcurrentHashMap<>());
+        try {
+            streamBootstrap(serverObserver, request, shardNum, sentVersion, bootstrapVersions);
+        } finally {
+            bootstrapVersions.remove(request.getDsID());
+        }
     }
 
-    private BootstrapReplicaResponse bootstrapReplicaHandler(BootstrapReplicaMessage request) {
-        int shardNum = request.getShard();
-        dataStore.shardLockMap.get(shardNum).writerLockLock();
-        Integer replicaVersion = request.getVersionNumber();
-        Integer primaryVersion = dataStore.shardVersionMap.get(shardNum);
-        assert(primaryVersion != null);
-        assert(replicaVersion <= primaryVersion);
-        assert(dataStore.shardMap.containsKey(shardNum));  // TODO: Could fail during shard transfers?
-        Map<Integer, Pair<WriteQueryPlan<R, S>, List<R>>> shardWriteLog = dataStore.writeLog.get(shardNum);
-        if (replicaVersion.equals(primaryVersion)) {
-            DataStoreDescription dsDescription = dataStore.zkCurator.getDSDescription(request.getDsID());
-            ManagedChannel channel = ManagedChannelBuilder.forAddress(dsDescription.host, dsDescription.port).usePlaintext().build();
-            DataStoreDataStoreGrpc.DataStoreDataStoreStub asyncStub = DataStoreDataStoreGrpc.newStub(channel);
-            ReplicaDescription rd = new ReplicaDescription(request.getDsID(), channel, asyncStub);
-            dataStore.replicaDescriptionsMap.get(shardNum).add(rd);
+    /** Stream a replica the writes it is missing, then register it once it has caught up **/
+    private void streamBootstrap(ServerCallStreamObserver<BootstrapReplicaResponse> serverObserver, BootstrapReplicaMessage request,
+                                 int shardNum, int sentVersion, Map<Integer, Integer> bootstrapVersions) {
+        BootstrapReplicaResponse.Builder chunk = BootstrapReplicaResponse.newBuilder();
+        long chunkBytes = 0;
+        while (true) {
+            // Writes are blocked while the lock is held, so a replica registered here misses none of them.
+            dataStore.shardLockMap.get(shardNum).writerLockLock();
+            bootstrapVersions.put(request.getDsID(), sentVersion);
+            Integer primaryVersion = dataStore.shardVersionMap.get(shardNum);
+            assert(primaryVersion != null);
+            assert(sentVersion <= primaryVersion);
+            boolean holdsShard = dataStore.holdsShard(shardNum);
+            assert(holdsShard);  // TODO: Could fail during shard transfers?
+            boolean caughtUp = sentVersion == primaryVersion;
+            if (caughtUp) {
+                DataStoreDescription dsDescription = dataStore.zkCurator.getDSDescription(request.getDsID());
+                ManagedChannel channel = ManagedChannelBuilder.forAddress(dsDescription.host, dsDescription.port).usePlaintext().build();
+                DataStoreDataStoreGrpc.DataStoreDataStoreStub asyncStub = DataStoreDataStoreGrpc.newStub(channel);
+                ReplicaDescription rd = new ReplicaDescription(request.getDsID(), channel, asyncStub);
+                dataStore.replicaDescriptionsMap.get(shardNum).add(rd);
+            }
+            dataStore.shardLockMap.get(shardNum).writerLockUnlock();
+            if (caughtUp) {
+                serverObserver.onNext(chunk.setReturnCode(0).setVersionNumber(sentVersion).setCaughtUp(true).build());
+                serverObserver.onCompleted();
+                return;
+            }
+            // Stream what has been logged so far without holding the lock, then check again.
+            for (int v = sentVersion + 1; v <= primaryVersion; v++) {
+                WriteLog.Entry entry = dataStore.writeLog.get(shardNum, v);
+                if (entry == null) {
+                    // Truncated by a checkpoint newer than the replica's; it must download that checkpoint instead.
+                    serverObserver.onNext(BootstrapReplicaResponse.newBuilder().setReturnCode(1).build());
+                    serverObserver.onCompleted();
+                    return;
+                }
+                chunk.addWriteQueries(entry.serializedPlan).addWriteData(entry.rowData);
+                chunkBytes += entry.sizeBytes();
+                sentVersion = v;
+                if (chunkBytes >= DataStore.bootstrapChunkSizeBytes) {
+                    if (!awaitReady(serverObserver)) {
+                        logger.warn("DS{} Bootstrap of shard {} cancelled by replica {}", dataStore.dsID, shardNum, request.getDsID());
+                        return;
+                    }
+                    serverObserver.onNext(chunk.setReturnCode(0).setVersionNumber(sentVersion).build());
+                    chunk = BootstrapReplicaResponse.newBuilder();
+                    chunkBytes = 0;
+                }
+            }
         }
-        dataStore.shardLockMap.get(shardNum).writerLockUnlock();
-        List<WriteQueryPlan<R, S>> writeQueryPlans = new ArrayList<>();
-        List<R[]> rowListList = new ArrayList<>();
-        for (int v = replicaVersion + 1; v <= primaryVersion; v++) {
-            writeQueryPlans.add(shardWriteLog.get(v).getValue0());
-            rowListList.add((R[]) shardWriteLog.get(v).getValue1().toArray(new Row[0]));
+    }
+
+    /** Wait until the stream can take another message without buffering it.  Returns false if the call was cancelled. **/
+    private static boolean awaitReady(ServerCallStreamObserver<?> observer) {
+        // Polled because the onReady callback is not delivered until this handler returns.
+        while (!observer.isReady()) {
+            if (observer.isCancelled()) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return false;
+            }
         }
-        WriteQueryPlan<R, S>[] writeQueryPlansArray = writeQueryPlans.toArray(new WriteQueryPlan[0]);
-        R[][] rowArrayArray = rowListList.toArray((R[][]) new Row[0][]);
-        return BootstrapReplicaResponse.newBuilder().setReturnCode(0)
-                .setVersionNumber(primaryVersion)
-                .setWriteData(Utilities.objectToByteString(rowArrayArray))
-                .setWriteQueries(Utilities.objectToByteString(writeQueryPlansArray))
-                .build();
+        return true;
     }
 
     @Override
@@ -74,11 +158,13 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
             int shardNum;
             int versionNumber;
             long txID;
+            int checkpointVersion;
             WriteQueryPlan<R, S> writeQueryPlan;
+            ByteString serializedPlan;
             final List<R[]> rowArrayList = new ArrayList<>();
             List<R> rowList;
             int lastState = DataStore.COLLECT;
-            WriteLockerThread t;
+            ShardLock.WriteLease writeLease;
 
             @Override
             public void onNext(ReplicaWriteMessage replicaWriteMessage) {
@@ -88,14 +174,19 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
                     versionNumber = replicaWriteMessage.getVersionNumber();
                     shardNum = replicaWriteMessage.getShard();
                     txID = replicaWriteMessage.getTxID();
-                    writeQueryPlan = (WriteQueryPlan<R, S>) Utilities.byteStringToObject(replicaWriteMessage.getSerializedQuery()); // TODO:  Only send this once.
-                    R[] rowChunk = (R[]) Utilities.byteStringToObject(replicaWriteMessage.getRowData());
+                    checkpointVersion = replicaWriteMessage.getCheckpointVersion();
+                    if (writeQueryPlan == null) {
+                        // The plan's bytes arrive with the first chunk only.
+                        QueryPlanRegistry.RegisteredPlan registeredPlan = dataStore.planRegistry.getPlan(replicaWriteMessage.getPlanHash(), replicaWriteMessage.getSerializedQuery());
+                        writeQueryPlan = (WriteQueryPlan<R, S>) registeredPlan.plan;
+                        serializedPlan = registeredPlan.serializedPlan;
+                    }
+                    R[] rowChunk = Utilities.byteStringToRows(replicaWriteMessage.getRowData(), dataStore.getRowCodec(writeQueryPlan.getQueriedTable()));
                     rowArrayList.add(rowChunk);
                 } else if (writeState == DataStore.PREPARE) {
                     assert(lastState == DataStore.COLLECT);
                     rowList = rowArrayList.stream().flatMap(Arrays::stream).collect(Collectors.toList());
-                    t = new WriteLockerThread(dataStore.shardLockMap.get(shardNum));
-                    t.acquireLock();
+                    writeLease = dataStore.shardLockMap.get(shardNum).acquireWriteLease();
                     // assert(versionNumber == dataStore.shardVersionMap.get(shardNum));
                     responseObserver.onNext(prepareReplicaWrite(shardNum, writeQueryPlan, rowList));
                     lastState = writeState;
@@ -103,12 +194,12 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
                     assert(lastState == DataStore.PREPARE);
                     commitReplicaWrite(shardNum, writeQueryPlan, rowList);
                     lastState = writeState;
-                    t.releaseLock();
+                    writeLease.release();
                 } else if (writeState == DataStore.ABORT) {
                     assert(lastState == DataStore.PREPARE);
                     abortReplicaWrite(shardNum, writeQueryPlan);
                     lastState = writeState;
-                    t.releaseLock();
+                    writeLease.release();
                 }
                 lastState = writeState;
             }
@@ -123,7 +214,7 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
                     } else {
                         abortReplicaWrite(shardNum, writeQueryPlan);
                     }
-                    t.releaseLock();
+                    writeLease.release();
                 }
             }
 
@@ -133,14 +224,16 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
             }
 
             private ReplicaWriteResponse prepareReplicaWrite(int shardNum, WriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
-                if (dataStore.shardMap.containsKey(shardNum)) {
+                if (dataStore.holdsShard(shardNum)) {
                     S shard;
                     if (dataStore.readWriteAtomicity) {
+                        int versionNumber = dataStore.shardVersionMap.get(shardNum);
                         ZKShardDescription z = dataStore.zkCurator.getZKShardDescription(shardNum);
-                        if (z == null) {
+                        if (versionNumber == 0 && (z == null || z.cloudName.equals(DataStore.NO_CHECKPOINT))) {
                             shard = dataStore.shardMap.get(shardNum); // This is the first commit.
                         } else {
-                            Optional<S> shardOpt = dataStore.downloadShardFromCloud(shardNum, z.cloudName, z.versionNumber);
+                            // Write into a local copy of the current version while reads continue on the original.
+                            Optional<S> shardOpt = dataStore.copyShardToDir(shardNum, String.format("%d_%d", shardNum, txID), versionNumber);
                             assert (shardOpt.isPresent());
                             shard = shardOpt.get();
                         }
@@ -162,15 +255,17 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
 
             private void commitReplicaWrite(int shardNum, WriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {                S shard;
                 if (dataStore.readWriteAtomicity) {
-                    shard = dataStore.multiVersionShardMap.get(shardNum).get(txID);
+                    shard = dataStore.multiVersionShardMap.get(shardNum).remove(txID);
                 } else {
                     shard = dataStore.shardMap.get(shardNum);
                 }
                 writeQueryPlan.commit(shard);
-                dataStore.shardMap.put(shardNum, shard);
+                dataStore.commitShardVersion(shardNum, txID, shard);
                 int newVersionNumber = dataStore.shardVersionMap.get(shardNum) + 1;
-                Map<Integer, Pair<WriteQueryPlan<R, S>, List<R>>> shardWriteLog = dataStore.writeLog.get(shardNum);
-                shardWriteLog.put(newVersionNumber, new Pair<>(writeQueryPlan, rows));
+                // Keep a log in case this replica becomes primary and has to bootstrap others.
+                ByteString rowData = Utilities.rowsToByteString((R[]) rows.toArray(new Row[0]), dataStore.getRowCodec(writeQueryPlan.getQueriedTable()));
+                dataStore.writeLog.append(shardNum, newVersionNumber, serializedPlan, rowData);
+                dataStore.writeLog.truncate(shardNum, checkpointVersion);
                 dataStore.shardVersionMap.put(shardNum, newVersionNumber);  // Increment version number
             }
 
@@ -207,8 +302,11 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
                     versionNumber = replicaWriteMessage.getVersionNumber();
                     shardNum = replicaWriteMessage.getShard();
                     txID = replicaWriteMessage.getTxID();
-                    writeQueryPlan = (SimpleWriteQueryPlan<R, S>) Utilities.byteStringToObject(replicaWriteMessage.getSerializedQuery()); // TODO:  Only send this once.
-                    R[] rowChunk = (R[]) Utilities.byteStringToObject(replicaWriteMessage.getRowData());
+                    if (writeQueryPlan == null) {
+                        // The plan's bytes arrive with the first chunk only.
+                        writeQueryPlan = (SimpleWriteQueryPlan<R, S>) dataStore.planRegistry.getPlan(replicaWriteMessage.getPlanHash(), replicaWriteMessage.getSerializedQuery()).plan;
+                    }
+                    R[] rowChunk = Utilities.byteStringToRows(replicaWriteMessage.getRowData(), dataStore.getRowCodec(writeQueryPlan.getQueriedTable()));
                     rowArrayList.add(rowChunk);
                 } else if (writeState == DataStore.PREPARE) {
                     assert(lastState == DataStore.COLLECT);
@@ -232,7 +330,7 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
             }
 
             private ReplicaWriteResponse executeReplicaWrite(int shardNum, SimpleWriteQueryPlan<R, S> writeQueryPlan, List<R> rows) {
-                if (dataStore.shardMap.containsKey(shardNum)) {
+                if (dataStore.holdsShard(shardNum)) {
                     S shard = dataStore.shardMap.get(shardNum);
                     boolean success =  writeQueryPlan.write(shard, rows);
                     if (success) {
@@ -255,75 +353,227 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
     }
 
     private final Map<Pair<Long, Integer>, Semaphore> txSemaphores = new ConcurrentHashMap<>();
-    private final Map<Pair<Long, Integer>, Map<Integer, List<ByteString>>> txShuffledData = new ConcurrentHashMap<>();
     private final Map<Pair<Long, Integer>, Map<Integer, List<Integer>>> txPartitionKeys = new ConcurrentHashMap<>();
     private final Map<Pair<Long, Integer>, AtomicInteger> txCounts = new ConcurrentHashMap<>();
+    // Version each in-flight shuffle's shard was scattered at, or -1.
+    private final Map<Pair<Long, Integer>, Integer> txScatteredVersions = new ConcurrentHashMap<>();
+    // When each in-flight shuffle's first request arrived, in milliseconds.
+    private final Map<Pair<Long, Integer>, Long> txStartTimes = new ConcurrentHashMap<>();
+    private final AtomicLong lastShuffleExpiry = new AtomicLong(0);
+
+    // A repartition's request for its part of an anchored shuffle, waiting for the shard to be scattered.
+    private static class PendingAnchoredShuffle {
+        final int repartitionShardNum;
+        final StreamObserver<AnchoredShuffleResponse> responseObserver;
+        final QueryTrace trace;
+        final boolean abstain;
+        final long arrivalTime = System.nanoTime();
+
+        PendingAnchoredShuffle(int repartitionShardNum, StreamObserver<AnchoredShuffleResponse> responseObserver,
+                               QueryTrace trace, boolean abstain) {
+            this.repartitionShardNum = repartitionShardNum;
+            this.responseObserver = responseObserver;
+            this.trace = trace;
+            this.abstain = abstain;
+        }
+    }
+
+    private final Map<Pair<Long, Integer>, Queue<PendingAnchoredShuffle>> txPendingAnchoredShuffles = new ConcurrentHashMap<>();
+
+    /** Forget a shuffle once every repartition has its data. **/
+    private void endShuffle(Pair<Long, Integer> mapID) {
+        txSemaphores.remove(mapID);
+        txPartitionKeys.remove(mapID);
+        txScatteredVersions.remove(mapID);
+        txCounts.remove(mapID);
+        txStartTimes.remove(mapID);
+    }
+
+    /** Discard shuffles some repartition never fetched, e.g. because its datastore failed, and fail their waiters. **/
+    private void expireShuffles() {
+        long now = System.currentTimeMillis();
+        long lastExpiry = lastShuffleExpiry.get();
+        if (now - lastExpiry < DataStore.shuffleTimeoutMillis / 10 || !lastShuffleExpiry.compareAndSet(lastExpiry, now)) {
+            return;
+        }
+        for (Map.Entry<Pair<Long, Integer>, Long> e: txStartTimes.entrySet()) {
+            if (now - e.getValue() < DataStore.shuffleTimeoutMillis) {
+                continue;
+            }
+            Pair<Long, Integer> mapID = e.getKey();
+            logger.warn("DS{} Shuffle of shard {} for transaction {} timed out", dataStore.dsID, mapID.getValue1(), mapID.getValue0());
+            dataStore.shuffleBuffer.remove(mapID);
+            Queue<PendingAnchoredShuffle> pending = txPendingAnchoredShuffles.remove(mapID);
+            if (pending != null) {
+                for (PendingAnchoredShuffle p: pending) {
+                    p.responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build());
+                    p.responseObserver.onCompleted();
+                }
+            }
+            endShuffle(mapID);
+        }
+    }
+
+    /** Scatter a shard, or reuse the result of an identical scatter of the same version of it.  version is the
+     * version read for snapshot reads, otherwise null for the shard in shardMap.  Also returns the version number of
+     * the shard in shardMap that was scattered, or -1 if it is unknown or a write may have been in progress. **/
+    private Pair<Map<Integer, List<ByteString>>, Integer> cachedScatter(ByteString planHash, int shardNum, ShardVersions.Version<S> version,
+                                                                        Object repartition, Supplier<Map<Integer, List<ByteString>>> scatter) {
+        long computeStart = System.nanoTime();
+        ShardLock shardLock = dataStore.shardLockMap.get(shardNum);
+        long writeSequence = shardLock.writeSequence();
+        Integer versionNumber = dataStore.shardVersionMap.get(shardNum);
+        ScatterCache.Key key = null;
+        if (version != null) {
+            key = new ScatterCache.Key(planHash, shardNum, version.txID, repartition);
+        } else if (versionNumber != null) {
+            key = new ScatterCache.Key(planHash, shardNum, versionNumber, repartition);
+        }
+        Map<Integer, List<ByteString>> scatterResult = key == null ? null : dataStore.scatterCache.get(key);
+        if (scatterResult != null) {
+            QueryTrace.record("scatter cache hit", shardNum, computeStart);
+            return new Pair<>(scatterResult, version == null ? versionNumber : -1);
+        }
+        scatterResult = scatter.get();
+        QueryTrace.record("scatter", shardNum, computeStart);
+        // Versions read by snapshot reads never change, but the shard in shardMap is written in place.  Its scatter
+        // may have seen uncommitted rows if a writer held the lock at any point.
+        boolean unwritten = writeSequence % 2 == 0 && shardLock.writeSequence() == writeSequence;
+        if (key != null && (version != null || unwritten)) {
+            dataStore.scatterCache.put(key, scatterResult);
+        }
+        return new Pair<>(scatterResult, version == null && versionNumber != null && unwritten ? versionNumber : -1);
+    }
 
     @Override
     public void anchoredShuffle(AnchoredShuffleMessage m, StreamObserver<AnchoredShuffleResponse> responseObserver) {
         long txID = m.getTxID();
         int shardNum = m.getShardNum();
-        AnchoredReadQueryPlan<S, Object> plan = (AnchoredReadQueryPlan<S, Object>) Utilities.byteStringToObject(m.getSerializedQuery());
+        QueryPlanRegistry.RegisteredPlan registeredPlan = dataStore.planRegistry.getPlan(m.getPlanHash(), m.getSerializedQuery());
+        if (registeredPlan == null) {
+            responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_PLAN_MISSING).build());
+            responseObserver.onCompleted();
+            return;
+        }
+        AnchoredReadQueryPlan<S, Object> plan = (AnchoredReadQueryPlan<S, Object>) registeredPlan.plan;
         Pair<Long, Integer> mapID = new Pair<>(txID, shardNum);
         dataStore.createShardMetadata(shardNum);
+        expireShuffles();
+        txStartTimes.putIfAbsent(mapID, System.currentTimeMillis());
+        Map<Integer, List<Integer>> txKeys = txPartitionKeys.computeIfAbsent(mapID, k -> new ConcurrentHashMap<>());
+        if (!m.getAbstain()) {
+            txKeys.put(m.getRepartitionShardNum(), m.getPartitionKeysList());
+        }
+        txPendingAnchoredShuffles.computeIfAbsent(mapID, k -> new ConcurrentLinkedQueue<>())
+                .add(new PendingAnchoredShuffle(m.getRepartitionShardNum(), responseObserver, QueryTrace.current(), m.getAbstain()));
+        // The scatter needs every repartition's keys.  The last request to arrive computes it and answers the others,
+        // so no handler thread waits for the rest to arrive.
+        if (txCounts.computeIfAbsent(mapID, k -> new AtomicInteger(0)).incrementAndGet() != m.getNumRepartitions()) {
+            return;
+        }
+        Queue<PendingAnchoredShuffle> pending = txPendingAnchoredShuffles.remove(mapID);
+        Map<Integer, List<Integer>> partitionKeys = txPartitionKeys.get(mapID);
+        endShuffle(mapID);
+        if (pending == null) {
+            return; // Timed out; every pending request has been failed.
+        }
+
+        long scatterStart = System.nanoTime();
+        Map<Integer, List<ByteString>> scatterResult = null;
+        int scatteredVersion = -1;
+        int returnCode = Broker.QUERY_SUCCESS;
+        if (partitionKeys.isEmpty()) {
+            // Every repartition answered from its gather cache.
+            for (PendingAnchoredShuffle p: pending) {
+                try {
+                    p.responseObserver.onCompleted();
+                } catch (StatusRuntimeException ignored) {}
+            }
+            return;
+        }
         dataStore.shardLockMap.get(shardNum).readerLockLock();
         if (!dataStore.consistentHash.getBuckets(shardNum).contains(dataStore.dsID)
         && (!m.getTargetShardIntermediate() || !dataStore.shardVersionMap.containsKey(shardNum))) {
             logger.warn("DS{} Got read request for unassigned shard {}", dataStore.dsID, shardNum);
-            dataStore.shardLockMap.get(shardNum).readerLockUnlock();
-            responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_RETRY).build());
-            responseObserver.onCompleted();
-            return;
-        }
-
-        txPartitionKeys.computeIfAbsent(mapID, k -> new ConcurrentHashMap<>()).put(m.getRepartitionShardNum(), m.getPartitionKeysList());
-        Semaphore s = txSemaphores.computeIfAbsent(mapID, k -> new Semaphore(0));
-        if (txCounts.computeIfAbsent(mapID, k -> new AtomicInteger(0)).incrementAndGet() == m.getNumRepartitions()) {
+            returnCode = Broker.QUERY_RETRY;
+        } else {
             dataStore.ensureShardCached(shardNum);
+            QueryTrace.record("ensure shard cached", shardNum, scatterStart);
             S shard;
+            ShardVersions.Version<S> version = null;
             if (dataStore.readWriteAtomicity) {
                 long lastCommittedVersion = m.getLastCommittedVersion();
-                if (dataStore.multiVersionShardMap.get(shardNum).containsKey(lastCommittedVersion)) {
-                    shard = dataStore.multiVersionShardMap.get(shardNum).get(lastCommittedVersion);
-                } else { // TODO: Retrieve the older version from somewhere else?
-                    logger.info("DS{} missing shard {} version {}", dataStore.dsID, shardNum, lastCommittedVersion);
-                    responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build());
-                    responseObserver.onCompleted();
-                    return;
-                }
+                version = dataStore.acquireShardVersion(shardNum, lastCommittedVersion);
+                shard = version == null ? null : version.shard;
             } else {
                 shard = dataStore.shardMap.get(shardNum);
             }
-            assert (shard != null);
-            Map<Integer, List<ByteString>> scatterResult = plan.scatter(shard, txPartitionKeys.get(mapID));
-            txShuffledData.put(mapID, scatterResult);
-            // long unixTime = Instant.now().getEpochSecond();
-            // dataStore.QPSMap.get(shardNum).merge(unixTime, 1, Integer::sum);
-            s.release(m.getNumRepartitions() - 1);
-        } else {
-            s.acquireUninterruptibly();
-        }
-        Map<Integer, List<ByteString>> scatterResult = txShuffledData.get(mapID);
-        assert(scatterResult.containsKey(m.getRepartitionShardNum()));
-        List<ByteString> ephemeralData = scatterResult.get(m.getRepartitionShardNum());
-        scatterResult.remove(m.getRepartitionShardNum());  // TODO: Make reliable--what if map immutable?.
-        if (scatterResult.isEmpty()) {
-            txShuffledData.remove(mapID);
+            if (dataStore.readWriteAtomicity && version == null) { // TODO: Retrieve the older version from somewhere else?
+                logger.info("DS{} missing shard {} version {}", dataStore.dsID, shardNum, m.getLastCommittedVersion());
+                returnCode = Broker.QUERY_FAILURE;
+            } else {
+                assert (shard != null);
+                S scatterShard = shard;
+                try {
+                    if (m.getTargetShardIntermediate()) {
+                        // Intermediate shards are read once, so their scatters are not worth caching.
+                        scatterResult = plan.scatter(shard, partitionKeys);
+                    } else {
+                        Pair<Map<Integer, List<ByteString>>, Integer> scattered = cachedScatter(registeredPlan.planHash, shardNum,
+                                version, partitionKeys, () -> plan.scatter(scatterShard, partitionKeys));
+                        scatterResult = scattered.getValue0();
+                        scatteredVersion = scattered.getValue1();
+                    }
+                } catch (Exception e) {
+                    logger.warn("DS{} Scatter Exception shard {}: {}", dataStore.dsID, shardNum, e.getMessage());
+                    returnCode = Broker.QUERY_FAILURE;
+                }
+                if (version != null) {
+                    dataStore.committedVersionMap.get(shardNum).release(version);
+                }
+                // dataStore.QPSMap.get(shardNum).record();
+            }
         }
         dataStore.shardLockMap.get(shardNum).readerLockUnlock();
-        for (ByteString item: ephemeralData) {
-            responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setShuffleData(item).build());
+        for (PendingAnchoredShuffle p: pending) {
+            try {
+                if (p.trace != null && p.responseObserver != responseObserver) {
+                    p.trace.add("scatter wait", shardNum, p.arrivalTime);
+                }
+                if (returnCode != Broker.QUERY_SUCCESS) {
+                    p.responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(returnCode).build());
+                } else if (!p.abstain) {
+                    assert(scatterResult.containsKey(p.repartitionShardNum));
+                    for (ByteString item: scatterResult.get(p.repartitionShardNum)) {
+                        if (!(p.responseObserver instanceof LocalResponseObserver)) {
+                            dataStore.shuffleBytesSent.add(item.size());
+                        }
+                        p.responseObserver.onNext(AnchoredShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS)
+                                .setShuffleData(item).setVersionNumber(scatteredVersion).build());
+                    }
+                }
+                p.responseObserver.onCompleted();
+            } catch (StatusRuntimeException e) {
+                // The requester went away, e.g. after being answered from its cache; the others still need their data.
+                logger.info("DS{} Anchored shuffle of shard {} to {} cancelled", dataStore.dsID, shardNum, p.repartitionShardNum);
+            }
         }
-        responseObserver.onCompleted();
     }
 
     @Override
     public void shuffle(ShuffleMessage m, StreamObserver<ShuffleResponse> responseObserver) {
         long txID = m.getTxID();
         int shardNum = m.getShardNum();
-        ShuffleReadQueryPlan<S, Object> plan = (ShuffleReadQueryPlan<S, Object>) Utilities.byteStringToObject(m.getSerializedQuery());
+        QueryPlanRegistry.RegisteredPlan registeredPlan = dataStore.planRegistry.getPlan(m.getPlanHash(), m.getSerializedQuery());
+        if (registeredPlan == null) {
+            responseObserver.onNext(ShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_PLAN_MISSING).build());
+            responseObserver.onCompleted();
+            return;
+        }
+        ShuffleReadQueryPlan<S, Object> plan = (ShuffleReadQueryPlan<S, Object>) registeredPlan.plan;
         Pair<Long, Integer> mapID = new Pair<>(txID, shardNum);
         dataStore.createShardMetadata(shardNum);
+        expireShuffles();
         dataStore.shardLockMap.get(shardNum).readerLockLock();
         if (!dataStore.consistentHash.getBuckets(shardNum).contains(dataStore.dsID)) {
             logger.warn("DS{} Got read request for unassigned shard {}", dataStore.dsID, shardNum);
@@ -332,30 +582,103 @@ class ServiceDataStoreDataStore<R extends Row, S extends Shard> extends DataStor
             responseObserver.onCompleted();
             return;
         }
+        txStartTimes.putIfAbsent(mapID, System.currentTimeMillis());
         Semaphore s = txSemaphores.computeIfAbsent(mapID, k -> new Semaphore(0));
+        long scatterStart = System.nanoTime();
         if (txCounts.computeIfAbsent(mapID, k -> new AtomicInteger(0)).compareAndSet(0, 1)) {
             dataStore.ensureShardCached(shardNum);
+            QueryTrace.record("ensure shard cached", shardNum, scatterStart);
             S shard = dataStore.shardMap.get(shardNum);
             assert (shard != null);
-            Map<Integer, List<ByteString>> scatterResult = plan.scatter(shard, m.getNumRepartition());
-            txShuffledData.put(mapID, scatterResult);
-            long unixTime = Instant.now().getEpochSecond();
-            dataStore.QPSMap.get(shardNum).merge(unixTime, 1, Integer::sum);
+            Pair<Map<Integer, List<ByteString>>, Integer> scattered = cachedScatter(registeredPlan.planHash, shardNum, null,
+                    m.getNumRepartition(), () -> plan.scatter(shard, m.getNumRepartition()));
+            txScatteredVersions.put(mapID, scattered.getValue1());
+            dataStore.shuffleBuffer.put(mapID, scattered.getValue0());
+            dataStore.QPSMap.get(shardNum).record();
             s.release(m.getNumRepartition() - 1);
         } else {
             s.acquireUninterruptibly();
+            QueryTrace.record("scatter wait", shardNum, scatterStart);
         }
-        Map<Integer, List<ByteString>> scatterResult = txShuffledData.get(mapID);
-        assert(scatterResult.containsKey(m.getRepartitionNum()));
-        List<ByteString> ephemeralData = scatterResult.get(m.getRepartitionNum());
-        scatterResult.remove(m.getRepartitionNum());  // TODO: Make reliable--what if map immutable?.
-        if (scatterResult.isEmpty()) {
-            txShuffledData.remove(mapID);
+        // Read before taking:  the last repartition to take its data ends the shuffle.
+        int scatteredVersion = txScatteredVersions.getOrDefault(mapID, -1);
+        List<ByteString> ephemeralData = dataStore.shuffleBuffer.take(mapID, m.getRepartitionNum());
+        if (!dataStore.shuffleBuffer.contains(mapID)) {
+            endShuffle(mapID);
         }
         dataStore.shardLockMap.get(shardNum).readerLockUnlock();
+        if (ephemeralData == null) {
+            logger.warn("DS{} Shuffle data for shard {} repartition {} unavailable", dataStore.dsID, shardNum, m.getRepartitionNum());
+            responseObserver.onNext(ShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_FAILURE).build());
+            responseObserver.onCompleted();
+            return;
+        }
         for (ByteString item: ephemeralData) {
-            responseObserver.onNext(ShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setShuffleData(item).build());
+            if (!(responseObserver instanceof LocalResponseObserver)) {
+                dataStore.shuffleBytesSent.add(item.size());
+            }
+            responseObserver.onNext(ShuffleResponse.newBuilder().setReturnCode(Broker.QUERY_SUCCESS).setShuffleData(item)
+                    .setVersionNumber(scatteredVersion).build());
         }
         responseObserver.onCompleted();
     }
+
+    @Override
+    public void shardVersions(ShardVersionsMessage m, StreamObserver<ShardVersionsResponse> responseObserver) {
+        ShardVersionsResponse.Builder r = ShardVersionsResponse.newBuilder();
+        for (int shardNum: m.getShardNumsList()) {
+            r.addVersionNumbers(dataStore.committedShardVersion(shardNum));
+        }
+        responseObserver.onNext(r.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void transferShard(TransferShardMessage m, StreamObserver<TransferShardResponse> responseObserver) {
+        ServerCallStreamObserver<TransferShardResponse> serverObserver = (ServerCallStreamObserver<TransferShardResponse>) responseObserver;
+        int shardNum = m.getShard();
+        ShardLock shardLock = dataStore.shardLockMap.get(shardNum);
+        if (shardLock == null) {
+            serverObserver.onNext(TransferShardResponse.newBuilder().setReturnCode(1).build());
+            serverObserver.onCompleted();
+            return;
+        }
+        // Copy the shard's files while writes are blocked, then stream the copy so writes can resume.
+        shardLock.writerLockLock();
+        Integer versionNumber = dataStore.shardVersionMap.get(shardNum);
+        Optional<Path> snapshot = dataStore.shardMap.containsKey(shardNum) ? dataStore.snapshotShard(shardNum, versionNumber) : Optional.empty();
+        shardLock.writerLockUnlock();
+        if (snapshot.isEmpty()) {
+            serverObserver.onNext(TransferShardResponse.newBuilder().setReturnCode(1).build());
+            serverObserver.onCompleted();
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(snapshot.get())) {
+            List<Path> files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            byte[] buffer = new byte[DataStore.shardTransferChunkSizeBytes];
+            for (Path file: files) {
+                String fileName = snapshot.get().relativize(file).toString();
+                try (InputStream in = Files.newInputStream(file)) {
+                    int read;
+                    boolean sentAny = false;
+                    while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0 || !sentAny) {
+                        if (!awaitReady(serverObserver)) {
+                            logger.warn("DS{} Transfer of shard {} cancelled", dataStore.dsID, shardNum);
+                            return;
+                        }
+                        serverObserver.onNext(TransferShardResponse.newBuilder().setReturnCode(0)
+                                .setVersionNumber(versionNumber).setFileName(fileName)
+                                .setData(ByteString.copyFrom(buffer, 0, read)).build());
+                        sentAny = true;
+                    }
+                }
+            }
+            serverObserver.onCompleted();
+        } catch (IOException e) {
+            logger.warn("DS{} Transfer of shard {} failed: {}", dataStore.dsID, shardNum, e.getMessage());
+            serverObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        } finally {
+            FileUtils.deleteQuietly(snapshot.get().toFile());
+        }
+    }
 }
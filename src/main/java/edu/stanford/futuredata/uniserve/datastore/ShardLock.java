@@ -1,54 +1,209 @@
 package edu.stanford.futuredata.uniserve.datastore;
 
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+
 import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
 
 public class ShardLock {
-    private final ReadWriteLock systemLock = new ReentrantReadWriteLock();
-    private final Lock writerLock = new ReentrantLock();
+    // Count readers in per-thread stripes instead of in the StampedLock's shared state word, so readers of a hot shard
+    // on different cores don't contend on one cache line.  Read once per lock at construction.
+    public static boolean stripedReaders = true;
+    private static final int maxReaderStripes = 64;
+    // Longs between adjacent stripes; 16 longs keep each stripe on its own pair of 64-byte cache lines.
+    private static final int stripePadding = 16;
+
+    // Neither lock is owned by a thread, so a write lease taken while handling one gRPC message can be released
+    // while handling another.  Neither is reentrant either.
+    private final StampedLock systemLock = new StampedLock();
+    private final Lock systemReadLock = systemLock.asReadLock();
+    private final Lock systemWriteLock = systemLock.asWriteLock();
+    private final Semaphore writerLock = new Semaphore(1);
+
+    // Readers holding the lock through their stripes.  A thread may release on a different stripe than it acquired
+    // on, so only the sum across stripes is meaningful.
+    private final AtomicLongArray readerStripes;
+    private final int stripeMask;
+    // Set by a system locker, while it holds systemWriteLock, to turn new readers away from their stripes.
+    private volatile boolean revokingReaders = false;
 
     private enum Mode {
         SYSTEM, WRITE, READ
     }
 
-    private Mode mode = null;
+    private volatile Mode mode = null;
+    // Incremented when the write lock is taken and again when it is released, so odd while a writer holds it.
+    private final AtomicLong writeSequence = new AtomicLong(0);
+
+    // Time each mode's acquisitions blocked, in microseconds; waits under a microsecond are not recorded.
+    private final LatencyHistogram systemWaitTimes;
+    private final LatencyHistogram writerWaitTimes;
+    private final LatencyHistogram readerWaitTimes;
+
+    /** Write ownership of a shard held on behalf of a transaction rather than a thread, e.g. from the prepare to the
+     * commit of a 2PC write, whose messages arrive on different threads. **/
+    public class WriteLease {
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        private WriteLease() {}
+
+        /** Release the lease; may be called from any thread, but only once. **/
+        public void release() {
+            boolean wasHeld = held.getAndSet(false);
+            assert(wasHeld);
+            if (wasHeld) {
+                writerLockUnlock();
+            }
+        }
+    }
+
+    public ShardLock() {
+        this(null, null, null);
+    }
+
+    public ShardLock(LatencyHistogram systemWaitTimes, LatencyHistogram writerWaitTimes, LatencyHistogram readerWaitTimes) {
+        this.systemWaitTimes = systemWaitTimes;
+        this.writerWaitTimes = writerWaitTimes;
+        this.readerWaitTimes = readerWaitTimes;
+        if (stripedReaders) {
+            int numStripes = Math.min(maxReaderStripes, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+            this.readerStripes = new AtomicLongArray(numStripes * stripePadding);
+            this.stripeMask = numStripes - 1;
+        } else {
+            this.readerStripes = null;
+            this.stripeMask = 0;
+        }
+    }
+
+    private static void record(LatencyHistogram waitTimes, long waitStart) {
+        long waitMicros = (System.nanoTime() - waitStart) / 1000L;
+        if (waitTimes != null && waitMicros > 0) {
+            waitTimes.record(waitMicros);
+        }
+    }
+
+    private static void lock(Lock lock, LatencyHistogram waitTimes) {
+        long waitStart = System.nanoTime();
+        lock.lock();
+        // Not tryLock first:  a barging tryLock on the read lock could starve a queued system lock.
+        record(waitTimes, waitStart);
+    }
+
+    private int readerStripe() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & stripeMask) * stripePadding;
+    }
+
+    private long stripedReaderCount() {
+        long count = 0;
+        for (int i = 0; i <= stripeMask; i++) {
+            count += readerStripes.get(i * stripePadding);
+        }
+        return count;
+    }
 
     public void systemLockLock() {
-        systemLock.writeLock().lock();
+        long waitStart = System.nanoTime();
+        systemWriteLock.lock();
+        if (readerStripes != null) {
+            revokingReaders = true;
+            // Readers check revokingReaders after publishing themselves in their stripe, so once it is set the count
+            // only falls.  Readers can hold the lock for a whole query, so park rather than spin.
+            while (stripedReaderCount() > 0) {
+                LockSupport.parkNanos(50000L);
+            }
+        }
+        record(systemWaitTimes, waitStart);
+        assert(Objects.isNull(mode));
+        mode = Mode.SYSTEM;
+    }
+
+    public boolean systemLockTryLock() {
+        if (!systemWriteLock.tryLock()) {
+            return false;
+        }
+        if (readerStripes != null) {
+            revokingReaders = true;
+            if (stripedReaderCount() > 0) {
+                revokingReaders = false;
+                systemWriteLock.unlock();
+                return false;
+            }
+        }
         assert(Objects.isNull(mode));
         mode = Mode.SYSTEM;
+        return true;
     }
 
     public void systemLockUnlock() {
         assert(mode == Mode.SYSTEM);
         mode = null;
-        systemLock.writeLock().unlock();
+        revokingReaders = false;
+        systemWriteLock.unlock();
     }
 
     public void writerLockLock() {
-        systemLock.readLock().lock();
-        writerLock.lock();
+        lock(systemReadLock, writerWaitTimes);
+        long waitStart = System.nanoTime();
+        if (!writerLock.tryAcquire()) {
+            // The holder may be a 2PC write whose commit is queued behind this handler on the same RPC pool.
+            RpcExecutor.managedBlockUninterruptibly(writerLock::acquireUninterruptibly);
+        }
+        record(writerWaitTimes, waitStart);
         assert(Objects.isNull(mode));
         mode = Mode.WRITE;
+        writeSequence.incrementAndGet();
+    }
+
+    /** Take the write lock as a lease that can be released from a different thread. **/
+    public WriteLease acquireWriteLease() {
+        writerLockLock();
+        return new WriteLease();
     }
 
     public void writerLockUnlock() {
         assert(mode == Mode.WRITE);
         mode = null;
-        writerLock.unlock();
-        systemLock.readLock().unlock();
+        writeSequence.incrementAndGet();
+        writerLock.release();
+        systemReadLock.unlock();
+    }
+
+    /** Changes whenever the write lock is taken or released, and is odd while it is held.  A reader that sees the same
+     * even value before and after reading a shard read no writes in progress. **/
+    public long writeSequence() {
+        return writeSequence.get();
     }
 
     public void readerLockLock() {
-        systemLock.readLock().lock();
+        if (readerStripes == null) {
+            lock(systemReadLock, readerWaitTimes);
+            return;
+        }
+        int stripe = readerStripe();
+        readerStripes.incrementAndGet(stripe);
+        if (!revokingReaders) {
+            return;
+        }
+        // A system locker holds or is draining the lock; back out and queue behind it on the StampedLock.  Holding
+        // the read lock keeps the next system locker out while we re-enter through the stripe.
+        readerStripes.decrementAndGet(stripe);
+        lock(systemReadLock, readerWaitTimes);
+        readerStripes.incrementAndGet(stripe);
+        systemReadLock.unlock();
     }
 
     public void readerLockUnlock() {
-        systemLock.readLock().unlock();
+        if (readerStripes == null) {
+            systemReadLock.unlock();
+        } else {
+            readerStripes.decrementAndGet(readerStripe());
+        }
     }
 }
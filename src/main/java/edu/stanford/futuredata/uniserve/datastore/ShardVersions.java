@@ -0,0 +1,101 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import edu.stanford.futuredata.uniserve.interfaces.Shard;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Committed versions of one shard kept for snapshot reads when readWriteAtomicity is on, keyed by the ID of the
+ * transaction that committed them.  A read at snapshot T sees the newest version committed at or before T.  Readers
+ * pin the version they read; the oldest version is retired and destroyed once a newer one has been committed, no
+ * reader has it pinned, and it has been superseded for at least retentionMillis, so readers whose snapshot is a little
+ * stale can still find it.  A read whose version has been retired, e.g. from a broker that has never written and so
+ * reads at snapshot 0, gets the oldest retained version instead.  The newest version is the shard in shardMap and is
+ * never retired here.
+ */
+class ShardVersions<S extends Shard> {
+
+    static class Version<S> {
+        final long txID;
+        final S shard;
+        private int readers = 0;
+        private long supersededTime = -1;
+
+        Version(long txID, S shard) {
+            this.txID = txID;
+            this.shard = shard;
+        }
+    }
+
+    private final TreeMap<Long, Version<S>> versions = new TreeMap<>();
+    private final long retentionMillis;
+
+    ShardVersions(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+    /** Record shard as committed by txID.  previous is the version it replaces if none has been recorded yet. **/
+    synchronized void commit(long txID, S shard, S previous) {
+        long now = System.currentTimeMillis();
+        if (versions.isEmpty() && previous != null && previous != shard) {
+            // Readers with a snapshot from before the first recorded commit still see the shard as it was loaded.
+            versions.put(Long.MIN_VALUE, new Version<>(Long.MIN_VALUE, previous));
+        }
+        if (!versions.isEmpty()) {
+            versions.lastEntry().getValue().supersededTime = now;
+        }
+        versions.put(txID, new Version<>(txID, shard));
+        retire(now);
+    }
+
+    /** Pin the version visible at snapshot txID, or the oldest retained version if that one has been retired.  If no
+     * commit has been recorded, current is the only version. **/
+    synchronized Version<S> acquire(long txID, S current) {
+        if (versions.isEmpty()) {
+            Version<S> v = new Version<>(txID, current);
+            v.readers++;
+            return v;
+        }
+        Map.Entry<Long, Version<S>> e = versions.floorEntry(txID);
+        if (e == null) {
+            e = versions.firstEntry();
+        }
+        e.getValue().readers++;
+        return e.getValue();
+    }
+
+    synchronized void release(Version<S> version) {
+        assert(version.readers > 0);
+        version.readers--;
+        if (!versions.isEmpty()) {
+            retire(System.currentTimeMillis());
+        }
+    }
+
+    synchronized int size() {
+        return versions.size();
+    }
+
+    /** Destroy every version but the newest, e.g. when the shard is removed. **/
+    synchronized void clear() {
+        while (versions.size() > 1) {
+            versions.pollFirstEntry().getValue().shard.destroy();
+        }
+        versions.clear();
+    }
+
+    private void retire(long now) {
+        // Only retire from the oldest end; removing a version from the middle would send its readers to an older one.
+        Iterator<Version<S>> it = versions.headMap(versions.lastKey(), false).values().iterator();
+        while (it.hasNext()) {
+            Version<S> v = it.next();
+            if (v.readers > 0 || now - v.supersededTime < retentionMillis) {
+                break;
+            }
+            v.shard.destroy();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.apache.commons.io.FileUtils;
+import org.javatuples.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Scattered shuffle partitions waiting to be fetched by their repartitions, keyed by (txID, shard).  Partitions are
+ * kept in memory until the buffer's memory use would exceed its budget; later ones are written to files on local disk
+ * and memory-mapped when fetched.  Each partition can be fetched once; a shuffle's files are deleted when its last
+ * partition is fetched or it is removed, e.g. after timing out.  Spill files do not survive a restart.
+ *
+ * Spill file format:  ([int length][bytes])*
+ */
+class ShuffleBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShuffleBuffer.class);
+
+    private static class Partition {
+        final List<ByteString> data; // Null if spilled.
+        final Path path;
+        final long sizeBytes;
+
+        Partition(List<ByteString> data, Path path, long sizeBytes) {
+            this.data = data;
+            this.path = path;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final Map<Pair<Long, Integer>, Map<Integer, Partition>> shuffles = new ConcurrentHashMap<>();
+    private final Path spillDirectory;
+    private final long memoryBudgetBytes;
+    private final AtomicLong memoryBytes = new AtomicLong(0);
+    private final AtomicLong spilledBytes = new AtomicLong(0);
+    // Bytes ever spilled.
+    private final LongAdder spilledBytesTotal;
+
+    ShuffleBuffer(Path spillDirectory, long memoryBudgetBytes, LongAdder spilledBytesTotal) {
+        this.spillDirectory = spillDirectory;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.spilledBytesTotal = spilledBytesTotal;
+        // Files left by a previous run are unreachable.
+        FileUtils.deleteQuietly(spillDirectory.toFile());
+    }
+
+    /** Buffer the scatter output of shuffle id, keyed by repartition. **/
+    void put(Pair<Long, Integer> id, Map<Integer, List<ByteString>> partitions) {
+        Map<Integer, Partition> shuffle = new ConcurrentHashMap<>();
+        for (Map.Entry<Integer, List<ByteString>> e: partitions.entrySet()) {
+            long sizeBytes = e.getValue().stream().mapToLong(ByteString::size).sum();
+            Partition partition = null;
+            if (memoryBytes.addAndGet(sizeBytes) > memoryBudgetBytes) {
+                memoryBytes.addAndGet(-sizeBytes);
+                partition = spill(id, e.getKey(), e.getValue(), sizeBytes);
+                if (partition == null) {
+                    // Being over budget is better than losing the partition.
+                    memoryBytes.addAndGet(sizeBytes);
+                }
+            }
+            if (partition == null) {
+                partition = new Partition(e.getValue(), null, sizeBytes);
+            }
+            shuffle.put(e.getKey(), partition);
+        }
+        shuffles.put(id, shuffle);
+    }
+
+    /** Remove and return one repartition's data, or null if it is not buffered or could not be read. **/
+    List<ByteString> take(Pair<Long, Integer> id, int repartitionNum) {
+        Map<Integer, Partition> shuffle = shuffles.get(id);
+        if (shuffle == null) {
+            return null;
+        }
+        Partition partition = shuffle.remove(repartitionNum);
+        if (shuffle.isEmpty()) {
+            shuffles.remove(id, shuffle);
+        }
+        if (partition == null) {
+            return null;
+        }
+        if (partition.data != null) {
+            memoryBytes.addAndGet(-partition.sizeBytes);
+            return partition.data;
+        }
+        List<ByteString> data = readSpill(partition);
+        deleteSpill(partition);
+        return data;
+    }
+
+    /** True while some partition of shuffle id has not been fetched. **/
+    boolean contains(Pair<Long, Integer> id) {
+        return shuffles.containsKey(id);
+    }
+
+    /** Discard whatever is left of shuffle id. **/
+    void remove(Pair<Long, Integer> id) {
+        Map<Integer, Partition> shuffle = shuffles.remove(id);
+        if (shuffle == null) {
+            return;
+        }
+        for (Integer repartitionNum: new ArrayList<>(shuffle.keySet())) {
+            // Remove one at a time so a concurrent take and this cannot both release a partition.
+            Partition partition = shuffle.remove(repartitionNum);
+            if (partition == null) {
+                continue;
+            }
+            if (partition.data != null) {
+                memoryBytes.addAndGet(-partition.sizeBytes);
+            } else {
+                deleteSpill(partition);
+            }
+        }
+    }
+
+    long memoryBytes() {
+        return memoryBytes.get();
+    }
+
+    long spilledBytes() {
+        return spilledBytes.get();
+    }
+
+    void close() {
+        for (Pair<Long, Integer> id: new ArrayList<>(shuffles.keySet())) {
+            remove(id);
+        }
+        FileUtils.deleteQuietly(spillDirectory.toFile());
+    }
+
+    private Partition spill(Pair<Long, Integer> id, int repartitionNum, List<ByteString> data, long sizeBytes) {
+        Path path = Path.of(spillDirectory.toString(),
+                String.format("%d-%d-%d.shuffle", id.getValue0(), id.getValue1(), repartitionNum));
+        try {
+            File dir = spillDirectory.toFile();
+            if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+                throw new IOException(String.format("mkdirs failed: %s", dir.getAbsolutePath()));
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+                for (ByteString item: data) {
+                    header.clear();
+                    header.putInt(item.size());
+                    header.flip();
+                    writeFully(channel, header);
+                    writeFully(channel, item.asReadOnlyByteBuffer());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Shuffle spill failed {}: {}", path, e.getMessage());
+            FileUtils.deleteQuietly(path.toFile());
+            return null;
+        }
+        spilledBytes.addAndGet(sizeBytes);
+        spilledBytesTotal.add(sizeBytes);
+        return new Partition(null, path, sizeBytes);
+    }
+
+    private List<ByteString> readSpill(Partition partition) {
+        try (FileChannel channel = FileChannel.open(partition.path, StandardOpenOption.READ)) {
+            // The mapping outlives the channel and the file, and is unmapped once its ByteStrings are unreachable.
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<ByteString> data = new ArrayList<>();
+            while (mapped.hasRemaining()) {
+                int size = mapped.getInt();
+                ByteBuffer item = mapped.slice();
+                item.limit(size);
+                data.add(UnsafeByteOperations.unsafeWrap(item));
+                mapped.position(mapped.position() + size);
+            }
+            return data;
+        } catch (IOException e) {
+            logger.warn("Shuffle spill read failed {}: {}", partition.path, e.getMessage());
+            return null;
+        }
+    }
+
+    private void deleteSpill(Partition partition) {
+        spilledBytes.addAndGet(-partition.sizeBytes);
+        try {
+            Files.deleteIfExists(partition.path);
+        } catch (IOException e) {
+            logger.warn("Shuffle spill deletion failed {}: {}", partition.path, e.getMessage());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/*
+ * Per-shard write-ahead log on local disk.  Writes are appended while the shard's write lock is held and made durable
+ * by sync, which may be called after the lock is released.  Syncs are batched:  one waiter forces the
+ * log for every record appended before it started, and later waiters either piggyback on that force or lead the next.
+ *
+ * Record format:  [int payload length][long CRC32 of payload][int version][long txID][int plan length][plan][int row length][rows]
+ * Two-phase writes are logged at prepare under their txID and must be checked against the transaction's outcome on
+ * replay; writes logged with NO_TRANSACTION were already committed when logged.
+ */
+class WriteAheadLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int MIN_PAYLOAD_SIZE = 3 * Integer.BYTES + Long.BYTES;
+
+    static final long NO_TRANSACTION = -1;
+
+    static class LogRecord {
+        final int versionNumber;
+        final long txID;
+        final ByteString serializedPlan;
+        final ByteString rowData;
+        // File offset just past the end of this record.
+        final long endPosition;
+
+        LogRecord(int versionNumber, long txID, ByteString serializedPlan, ByteString rowData, long endPosition) {
+            this.versionNumber = versionNumber;
+            this.txID = txID;
+            this.serializedPlan = serializedPlan;
+            this.rowData = rowData;
+            this.endPosition = endPosition;
+        }
+    }
+
+    private static class ShardLog {
+        FileChannel channel;
+        // Logical byte offsets; they keep growing across truncations so waiters can compare them.
+        long appendedBytes = 0;
+        long syncedBytes = 0;
+        boolean syncing = false;
+
+        ShardLog(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Path logDirectory;
+    private final Map<Integer, ShardLog> shardLogs = new ConcurrentHashMap<>();
+
+    WriteAheadLog(Path logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    private Path logPath(int shardNum) {
+        return Path.of(logDirectory.toString(), String.format("%d.wal", shardNum));
+    }
+
+    private ShardLog getShardLog(int shardNum) throws IOException {
+        ShardLog log = shardLogs.get(shardNum);
+        if (log != null) {
+            return log;
+        }
+        synchronized (shardLogs) {
+            if (!shardLogs.containsKey(shardNum)) {
+                File logDirFile = logDirectory.toFile();
+                if (!logDirFile.exists() && !logDirFile.mkdirs() && !logDirFile.exists()) {
+                    throw new IOException(String.format("mkdirs failed: %s", logDirFile.getAbsolutePath()));
+                }
+                FileChannel channel = FileChannel.open(logPath(shardNum), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                shardLogs.put(shardNum, new ShardLog(channel));
+            }
+            return shardLogs.get(shardNum);
+        }
+    }
+
+    /** Shards with an open log. **/
+    Set<Integer> loggedShards() {
+        return shardLogs.keySet();
+    }
+
+    /** Physical end of a shard's log, to truncate back to if records appended after it are discarded.  Returns -1 on failure. **/
+    long end(int shardNum) {
+        try {
+            ShardLog log = getShardLog(shardNum);
+            synchronized (log) {
+                return log.channel.position();
+            }
+        } catch (IOException e) {
+            logger.error("WAL open failed shard {}: {}", shardNum, e.getMessage());
+            return -1;
+        }
+    }
+
+    /** Append a write.  Returns the offset to pass to sync, or -1 on failure. **/
+    long append(int shardNum, int versionNumber, long txID, ByteString serializedPlan, ByteString rowData) {
+        int payloadSize = MIN_PAYLOAD_SIZE + serializedPlan.size() + rowData.size();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadSize);
+        buffer.putInt(payloadSize);
+        buffer.putLong(0);
+        buffer.putInt(versionNumber);
+        buffer.putLong(txID);
+        buffer.putInt(serializedPlan.size());
+        serializedPlan.copyTo(buffer);
+        buffer.putInt(rowData.size());
+        rowData.copyTo(buffer);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, payloadSize);
+        buffer.putLong(Integer.BYTES, crc.getValue());
+        buffer.flip();
+        try {
+            ShardLog log = getShardLog(shardNum);
+            synchronized (log) {
+                while (buffer.hasRemaining()) {
+                    log.channel.write(buffer);
+                }
+                log.appendedBytes += HEADER_SIZE + payloadSize;
+                return log.appendedBytes;
+            }
+        } catch (IOException e) {
+            logger.error("WAL append failed shard {} version {}: {}", shardNum, versionNumber, e.getMessage());
+            return -1;
+        }
+    }
+
+    /** Block until everything up to offset is durable. **/
+    boolean sync(int shardNum, long offset) {
+        ShardLog log = shardLogs.get(shardNum);
+        if (log == null || offset < 0) {
+            return false;
+        }
+        while (true) {
+            long target;
+            synchronized (log) {
+                while (log.syncing && log.syncedBytes < offset) {
+                    try {
+                        log.wait();
+                    } catch (InterruptedException e) {
+                        logger.error("WAL sync interrupted shard {}", shardNum);
+                        return false;
+                    }
+                }
+                if (log.syncedBytes >= offset) {
+                    return true;
+                }
+                log.syncing = true;
+                target = log.appendedBytes;
+            }
+            boolean forced;
+            try {
+                log.channel.force(false);
+                forced = true;
+            } catch (IOException e) {
+                logger.error("WAL sync failed shard {}: {}", shardNum, e.getMessage());
+                forced = false;
+            }
+            synchronized (log) {
+                log.syncing = false;
+                if (forced) {
+                    log.syncedBytes = Math.max(log.syncedBytes, target);
+                }
+                log.notifyAll();
+                if (!forced) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /** Read back all intact records, discarding any torn or corrupt tail. **/
+    List<LogRecord> recover(int shardNum) {
+        List<LogRecord> records = new ArrayList<>();
+        if (!shardLogs.containsKey(shardNum) && !Files.exists(logPath(shardNum))) {
+            return records;
+        }
+        try {
+            ShardLog log = getShardLog(shardNum);
+            synchronized (log) {
+                long size = log.channel.size();
+                long position = 0;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (position + HEADER_SIZE <= size) {
+                    header.clear();
+                    log.channel.read(header, position);
+                    header.flip();
+                    int payloadSize = header.getInt();
+                    long checksum = header.getLong();
+                    if (payloadSize < MIN_PAYLOAD_SIZE || position + HEADER_SIZE + payloadSize > size) {
+                        break;
+                    }
+                    ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+                    while (payload.hasRemaining()) {
+                        if (log.channel.read(payload, position + HEADER_SIZE + payload.position()) < 0) {
+                            break;
+                        }
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(payload.array(), 0, payloadSize);
+                    if (crc.getValue() != checksum) {
+                        break;
+                    }
+                    payload.flip();
+                    int versionNumber = payload.getInt();
+                    long txID = payload.getLong();
+                    ByteString serializedPlan = ByteString.copyFrom(payload, payload.getInt());
+                    ByteString rowData = ByteString.copyFrom(payload, payload.getInt());
+                    position += HEADER_SIZE + payloadSize;
+                    records.add(new LogRecord(versionNumber, txID, serializedPlan, rowData, position));
+                }
+                if (position < size) {
+                    logger.warn("WAL shard {} discarding {} bytes of torn tail", shardNum, size - position);
+                    log.channel.truncate(position);
+                }
+                log.channel.position(position);
+            }
+        } catch (IOException e) {
+            logger.error("WAL recovery failed shard {}: {}", shardNum, e.getMessage());
+        }
+        return records;
+    }
+
+    /** Discard everything past position, e.g. once the log is covered by a checkpoint.  Assumes the shard write lock is held. **/
+    void truncate(int shardNum, long position) {
+        ShardLog log = shardLogs.get(shardNum);
+        if (log == null) {
+            return;
+        }
+        synchronized (log) {
+            try {
+                log.channel.truncate(position);
+                log.channel.position(position);
+                log.channel.force(false);
+                log.syncedBytes = log.appendedBytes;
+            } catch (IOException e) {
+                logger.error("WAL truncation failed shard {}: {}", shardNum, e.getMessage());
+            }
+        }
+    }
+
+    /** Discard everything before position, e.g. once a checkpoint covers it, keeping later records.  Assumes the shard write lock is held. **/
+    void discardBefore(int shardNum, long position) {
+        ShardLog log = shardLogs.get(shardNum);
+        if (log == null) {
+            return;
+        }
+        synchronized (log) {
+            // Don't swap the file out from under a force.
+            while (log.syncing) {
+                try {
+                    log.wait();
+                } catch (InterruptedException e) {
+                    logger.error("WAL compaction interrupted shard {}", shardNum);
+                    return;
+                }
+            }
+            try {
+                long size = log.channel.size();
+                if (position >= size) {
+                    log.channel.truncate(0);
+                    log.channel.position(0);
+                    log.channel.force(false);
+                    log.syncedBytes = log.appendedBytes;
+                    return;
+                }
+                // Copy the kept records to a new file and rename it over the log, so a crash leaves one or the other.
+                Path compactedPath = Path.of(logDirectory.toString(), String.format("%d.wal.tmp", shardNum));
+                try (FileChannel compacted = FileChannel.open(compactedPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long copied = 0;
+                    while (copied < size - position) {
+                        copied += log.channel.transferTo(position + copied, size - position - copied, compacted);
+                    }
+                    compacted.force(false);
+                }
+                Files.move(compactedPath, logPath(shardNum), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                log.channel.close();
+                log.channel = FileChannel.open(logPath(shardNum), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                log.channel.position(log.channel.size());
+                log.syncedBytes = log.appendedBytes;
+            } catch (IOException e) {
+                logger.error("WAL compaction failed shard {}: {}", shardNum, e.getMessage());
+            }
+        }
+    }
+
+    /** Close and remove a shard's log. **/
+    void delete(int shardNum) {
+        ShardLog log = shardLogs.remove(shardNum);
+        try {
+            if (log != null) {
+                log.channel.close();
+            }
+            Files.deleteIfExists(logPath(shardNum));
+        } catch (IOException e) {
+            logger.warn("WAL deletion failed shard {}: {}", shardNum, e.getMessage());
+        }
+    }
+
+    void close() {
+        for (ShardLog log: shardLogs.values()) {
+            try {
+                log.channel.close();
+            } catch (IOException e) {
+                logger.warn("WAL close failed: {}", e.getMessage());
+            }
+        }
+        shardLogs.clear();
+    }
+}
@@ -0,0 +1,262 @@
+package edu.stanford.futuredata.uniserve.datastore;
+
+import com.google.protobuf.ByteString;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Log of the writes applied to each shard since its last cloud checkpoint, used to bring replicas up to date.
+ * Recent writes are kept in memory; once the log's memory use exceeds its budget, the oldest writes are spilled
+ * to segment files on local disk.  Every shard keeps at least its newest write in memory.  Spilled segments are
+ * scratch space and do not survive a restart; durability is the job of the WriteAheadLog.
+ *
+ * Segment record format:  [int version][int plan length][plan][int row length][rows]
+ */
+class WriteLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteLog.class);
+
+    static class Entry {
+        final ByteString serializedPlan;
+        final ByteString rowData;
+
+        Entry(ByteString serializedPlan, ByteString rowData) {
+            this.serializedPlan = serializedPlan;
+            this.rowData = rowData;
+        }
+
+        long sizeBytes() {
+            return serializedPlan.size() + rowData.size();
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final int firstVersion;
+        final int lastVersion;
+        final Map<Integer, Long> offsets;
+
+        Segment(Path path, int firstVersion, int lastVersion, Map<Integer, Long> offsets) {
+            this.path = path;
+            this.firstVersion = firstVersion;
+            this.lastVersion = lastVersion;
+            this.offsets = offsets;
+        }
+    }
+
+    private static class ShardWriteLog {
+        final TreeMap<Integer, Entry> memoryEntries = new TreeMap<>();
+        final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    }
+
+    private final Path spillDirectory;
+    private final long memoryBudgetBytes;
+    private final AtomicLong memoryBytes = new AtomicLong(0);
+    private final Map<Integer, ShardWriteLog> shardLogs = new ConcurrentHashMap<>();
+
+    WriteLog(Path spillDirectory, long memoryBudgetBytes) {
+        this.spillDirectory = spillDirectory;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        // Segments left by a previous run are unreachable.
+        FileUtils.deleteQuietly(spillDirectory.toFile());
+    }
+
+    /** Record the write that produced versionNumber.  Assumes the shard write lock is held. **/
+    void append(int shardNum, int versionNumber, ByteString serializedPlan, ByteString rowData) {
+        ShardWriteLog log = shardLogs.computeIfAbsent(shardNum, k -> new ShardWriteLog());
+        Entry entry = new Entry(serializedPlan, rowData);
+        synchronized (log) {
+            Entry old = log.memoryEntries.put(versionNumber, entry);
+            if (old != null) {
+                memoryBytes.addAndGet(-old.sizeBytes());
+            }
+            memoryBytes.addAndGet(entry.sizeBytes());
+        }
+        if (memoryBytes.get() > memoryBudgetBytes) {
+            // Spill down to three quarters of the budget so consecutive appends don't each write a tiny segment.
+            long target = memoryBudgetBytes / 4 * 3;
+            spill(shardNum, log, target);
+            for (Map.Entry<Integer, ShardWriteLog> e: shardLogs.entrySet()) {
+                if (memoryBytes.get() <= target) {
+                    break;
+                }
+                spill(e.getKey(), e.getValue(), target);
+            }
+        }
+    }
+
+    /** The write that produced versionNumber, or null if it has been truncated or was never logged. **/
+    Entry get(int shardNum, int versionNumber) {
+        ShardWriteLog log = shardLogs.get(shardNum);
+        if (log == null) {
+            return null;
+        }
+        synchronized (log) {
+            Entry entry = log.memoryEntries.get(versionNumber);
+            if (entry != null) {
+                return entry;
+            }
+            Map.Entry<Integer, Segment> s = log.segments.floorEntry(versionNumber);
+            if (s == null || s.getValue().lastVersion < versionNumber) {
+                return null;
+            }
+            return readSegmentEntry(s.getValue(), versionNumber);
+        }
+    }
+
+    /** Discard every write up to and including versionNumber, e.g. once a checkpoint covers them. **/
+    void truncate(int shardNum, int versionNumber) {
+        ShardWriteLog log = shardLogs.get(shardNum);
+        if (log == null) {
+            return;
+        }
+        synchronized (log) {
+            Map<Integer, Entry> discarded = log.memoryEntries.headMap(versionNumber, true);
+            discarded.values().forEach(e -> memoryBytes.addAndGet(-e.sizeBytes()));
+            discarded.clear();
+            while (!log.segments.isEmpty() && log.segments.firstEntry().getValue().lastVersion <= versionNumber) {
+                deleteSegment(log.segments.pollFirstEntry().getValue());
+            }
+        }
+    }
+
+    /** Discard a shard's log entirely. **/
+    void delete(int shardNum) {
+        ShardWriteLog log = shardLogs.remove(shardNum);
+        if (log == null) {
+            return;
+        }
+        synchronized (log) {
+            log.memoryEntries.values().forEach(e -> memoryBytes.addAndGet(-e.sizeBytes()));
+            log.memoryEntries.clear();
+            log.segments.values().forEach(this::deleteSegment);
+            log.segments.clear();
+        }
+    }
+
+    long memoryBytes() {
+        return memoryBytes.get();
+    }
+
+    void close() {
+        for (Integer shardNum: new ArrayList<>(shardLogs.keySet())) {
+            delete(shardNum);
+        }
+    }
+
+    private void spill(int shardNum, ShardWriteLog log, long target) {
+        synchronized (log) {
+            if (log.memoryEntries.size() <= 1) {
+                return;
+            }
+            List<Map.Entry<Integer, Entry>> spilled = new ArrayList<>();
+            long spilledBytes = 0;
+            for (Map.Entry<Integer, Entry> e: log.memoryEntries.entrySet()) {
+                if (e.getKey().equals(log.memoryEntries.lastKey()) || memoryBytes.get() - spilledBytes <= target) {
+                    break;
+                }
+                spilled.add(e);
+                spilledBytes += e.getValue().sizeBytes();
+            }
+            if (spilled.isEmpty()) {
+                return;
+            }
+            int firstVersion = spilled.get(0).getKey();
+            int lastVersion = spilled.get(spilled.size() - 1).getKey();
+            Path segmentPath = Path.of(spillDirectory.toString(), Integer.toString(shardNum),
+                    String.format("%d-%d.seg", firstVersion, lastVersion));
+            Map<Integer, Long> offsets = new HashMap<>();
+            try {
+                File shardSpillDir = segmentPath.getParent().toFile();
+                if (!shardSpillDir.exists() && !shardSpillDir.mkdirs() && !shardSpillDir.exists()) {
+                    throw new IOException(String.format("mkdirs failed: %s", shardSpillDir.getAbsolutePath()));
+                }
+                try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    long position = 0;
+                    for (Map.Entry<Integer, Entry> e: spilled) {
+                        Entry entry = e.getValue();
+                        ByteBuffer buffer = ByteBuffer.allocate(3 * Integer.BYTES + (int) entry.sizeBytes());
+                        buffer.putInt(e.getKey());
+                        buffer.putInt(entry.serializedPlan.size());
+                        entry.serializedPlan.copyTo(buffer);
+                        buffer.putInt(entry.rowData.size());
+                        entry.rowData.copyTo(buffer);
+                        buffer.flip();
+                        offsets.put(e.getKey(), position);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Keep the entries in memory; being over budget is better than losing them.
+                logger.warn("Write log spill failed shard {}: {}", shardNum, e.getMessage());
+                return;
+            }
+            log.segments.put(firstVersion, new Segment(segmentPath, firstVersion, lastVersion, offsets));
+            for (Map.Entry<Integer, Entry> e: spilled) {
+                log.memoryEntries.remove(e.getKey());
+            }
+            memoryBytes.addAndGet(-spilledBytes);
+            logger.info("Write log shard {} spilled versions {}-{} ({} bytes)", shardNum, firstVersion, lastVersion, spilledBytes);
+        }
+    }
+
+    private Entry readSegmentEntry(Segment segment, int versionNumber) {
+        Long offset = segment.offsets.get(versionNumber);
+        if (offset == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+            readFully(channel, header, offset);
+            int storedVersion = header.getInt();
+            int planSize = header.getInt();
+            assert(storedVersion == versionNumber);
+            ByteBuffer plan = ByteBuffer.allocate(planSize + Integer.BYTES);
+            readFully(channel, plan, offset + 2 * Integer.BYTES);
+            ByteString serializedPlan = ByteString.copyFrom(plan, planSize);
+            int rowSize = plan.getInt();
+            ByteBuffer rows = ByteBuffer.allocate(rowSize);
+            readFully(channel, rows, offset + 3 * Integer.BYTES + planSize);
+            return new Entry(serializedPlan, ByteString.copyFrom(rows));
+        } catch (IOException e) {
+            logger.warn("Write log read failed {} version {}: {}", segment.path, versionNumber, e.getMessage());
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        buffer.flip();
+    }
+
+    private void deleteSegment(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Write log segment deletion failed {}: {}", segment.path, e.getMessage());
+        }
+    }
+}
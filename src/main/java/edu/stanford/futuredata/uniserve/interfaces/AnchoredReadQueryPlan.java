@@ -26,6 +26,12 @@ public interface AnchoredReadQueryPlan<S extends Shard, T> extends Serializable
     ByteString gather(S localShard, Map<String, List<ByteString>> ephemeralData, Map<String, S> ephemeralShards);
     // Gather.
     default void gather(S localShard, Map<String, List<ByteString>> ephemeralData, Map<String, S> ephemeralShards, S returnShard) { }
+    // Gather incrementally?  If present, used instead of gather(localShard, ephemeralData, ephemeralShards).
+    // Ignored if the query returns a shard.
+    default Optional<IncrementalGather> startGather(S localShard, Map<String, S> ephemeralShards) {return Optional.empty();}
+    // May a gather result be reused by later queries until a queried shard changes?  Only if gather is deterministic.
+    // Queries returning a shard are never cached.
+    default boolean isCacheable() {return false;}
     // Return an aggregate or shard?  (Default aggregate)
     default Optional<String> returnTableName() {return Optional.empty();}
     // The query will return the result of this function executed on all results from gather.
@@ -0,0 +1,20 @@
+package edu.stanford.futuredata.uniserve.interfaces;
+
+import com.google.protobuf.ByteString;
+
+public interface IncrementalGather {
+    /*
+     The gather of one query on one datastore, fed shuffled data as it arrives instead of after all of it has.
+
+     Contract:
+     Calls never run simultaneously.
+     Tables are fed one at a time, in getQueriedTables() order.
+     Within a table, items from one shard arrive in order, but items from different shards interleave.
+     finishGather runs once, after every item has been fed, and is skipped if the query fails.
+     */
+
+    // Consume one item of shuffled data from table tableName.
+    void gatherChunk(String tableName, ByteString chunk);
+    // Return the result of the gather.
+    ByteString finishGather();
+}
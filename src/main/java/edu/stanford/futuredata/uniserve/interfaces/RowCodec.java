@@ -0,0 +1,21 @@
+package edu.stanford.futuredata.uniserve.interfaces;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+public interface RowCodec<R extends Row> extends Serializable {
+    /*
+     A compact binary encoding for a table's rows.  Registered with a table at creation and used instead of
+     Java serialization to ship rows between brokers, primaries, and replicas.
+     Tables created without one keep Java serialization:  rows are arbitrary Serializable classes whose fields only
+     the application knows, so there is no binary encoding that works for every row type.  Tables on a hot write
+     path should register a codec.
+     */
+
+    // Write a single row.
+    void writeRow(R row, DataOutput out) throws IOException;
+    // Read a single row written by writeRow.
+    R readRow(DataInput in) throws IOException;
+}
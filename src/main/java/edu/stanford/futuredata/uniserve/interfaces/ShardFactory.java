@@ -13,4 +13,10 @@ public interface ShardFactory<S extends Shard> {
 
     // Load a shard serialized at shardPath by shard.shardToData.
     Optional<S> createShardFromDir(Path shardPath, int shardNum);
+
+    // Create a copy of shard at clonePath that can be modified without affecting the original.  Return empty if
+    // unsupported, in which case the shard is copied through shard.shardToData and createShardFromDir.
+    default Optional<S> cloneShard(S shard, Path clonePath, int shardNum) {
+        return Optional.empty();
+    }
 }
@@ -5,6 +5,7 @@ import com.google.protobuf.ByteString;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 public interface ShuffleReadQueryPlan<S extends Shard, T> extends Serializable {
     // Which tables are being queried?
@@ -16,6 +17,10 @@ public interface ShuffleReadQueryPlan<S extends Shard, T> extends Serializable {
     Map<Integer, List<ByteString>> scatter(S shard, int numRepartitions);
     // Gather.
     ByteString gather(Map<String, List<ByteString>> ephemeralData, Map<String, S> ephemeralShards);
+    // Gather incrementally?  If present, used instead of gather.
+    default Optional<IncrementalGather> startGather(Map<String, S> ephemeralShards) {return Optional.empty();}
+    // May the broker reuse the datastores' gather results until a queried shard changes?  Only if gather is deterministic.
+    default boolean isCacheable() {return false;}
     // The query will return the result of this function executed on all results from gather.
     T combine(List<ByteString> shardQueryResults);
 }
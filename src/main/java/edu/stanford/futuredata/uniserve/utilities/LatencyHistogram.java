@@ -0,0 +1,124 @@
+package edu.stanford.futuredata.uniserve.utilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory latency histogram with log-linear buckets:  values below 2^subBucketBits are counted exactly and
+ * every larger power-of-two range is split into 2^subBucketBits equal buckets, so a reported value is within about
+ * 3% of the recorded one.  Recording is a few atomic increments and never allocates; snapshots can be merged across
+ * servers or threads.
+ */
+public class LatencyHistogram {
+
+    private static final int subBucketBits = 5;
+    private static final int subBucketCount = 1 << subBucketBits;
+    // Values up to Long.MAX_VALUE have a leading bit at most 62, i.e. a shift of at most 62 - subBucketBits.
+    private static final int numBuckets = (63 - subBucketBits + 1) * subBucketCount;
+
+    private final AtomicLongArray counts = new AtomicLongArray(numBuckets);
+    private final AtomicLong totalCount = new AtomicLong(0);
+    private final AtomicLong totalSum = new AtomicLong(0);
+    private final AtomicLong maxValue = new AtomicLong(0);
+
+    /** Record one value, e.g. a latency in microseconds.  Negative values are recorded as zero. **/
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    public long count() {
+        return totalCount.get();
+    }
+
+    public Snapshot snapshot() {
+        long[] c = new long[numBuckets];
+        for (int i = 0; i < numBuckets; i++) {
+            c[i] = counts.get(i);
+        }
+        return new Snapshot(c, totalCount.get(), totalSum.get(), maxValue.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        int subBucket = (int) (value >>> shift) & (subBucketCount - 1);
+        return (shift + 1) * subBucketCount + subBucket;
+    }
+
+    /** The largest value counted in the bucket. **/
+    static long bucketValue(int index) {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int shift = index / subBucketCount - 1;
+        long lowest = (long) (subBucketCount + index % subBucketCount) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /** The value at or below which the given fraction (e.g. 0.99) of recorded values fall, or 0 if empty. **/
+        public long percentile(double fraction) {
+            long total = 0;
+            for (long c: counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        public Snapshot merge(Snapshot other) {
+            long[] c = new long[numBuckets];
+            for (int i = 0; i < numBuckets; i++) {
+                c[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(c, count + other.count, sum + other.sum, Math.max(max, other.max));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.stanford.futuredata.uniserve.utilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, gauges and latency summaries of one server, rendered in the Prometheus text exposition format.
+ * Counters and histograms are created once and updated without locking; gauges are read from their suppliers only
+ * when the metrics are scraped.
+ */
+public class MetricsRegistry {
+
+    private static final double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+
+    private interface Metric {
+        void render(StringBuilder sb);
+    }
+
+    // Sorted by name so scrapes are stable.
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /** The counter with this name, created on first use.  Counter names should end in _total. **/
+    public LongAdder counter(String name, String help) {
+        return counters.computeIfAbsent(name, n -> {
+            LongAdder counter = new LongAdder();
+            metrics.put(n, sb -> {
+                header(sb, n, help, "counter");
+                sample(sb, n, null, null, counter.sum());
+            });
+            return counter;
+        });
+    }
+
+    /** The histogram with this name, created on first use and exposed as a summary. **/
+    public LatencyHistogram histogram(String name, String help) {
+        return histograms.computeIfAbsent(name, n -> {
+            LatencyHistogram histogram = new LatencyHistogram();
+            register(n, help, histogram);
+            return histogram;
+        });
+    }
+
+    /** Expose an existing histogram as a summary. **/
+    public void register(String name, String help, LatencyHistogram histogram) {
+        metrics.put(name, sb -> {
+            header(sb, name, help, "summary");
+            summary(sb, name, null, null, histogram.snapshot());
+        });
+    }
+
+    /** Expose one histogram per label value, e.g. per shard or per phase, as a single summary. **/
+    public void register(String name, String help, String labelName, Supplier<Map<?, LatencyHistogram>> histograms) {
+        metrics.put(name, sb -> {
+            header(sb, name, help, "summary");
+            for (Map.Entry<?, LatencyHistogram> e: histograms.get().entrySet()) {
+                summary(sb, name, labelName, e.getKey().toString(), e.getValue().snapshot());
+            }
+        });
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value) {
+        metrics.put(name, sb -> {
+            header(sb, name, help, "gauge");
+            sample(sb, name, null, null, value.getAsDouble());
+        });
+    }
+
+    /** A gauge with one value per label value, e.g. per shard. **/
+    public void gauge(String name, String help, String labelName, Supplier<Map<?, ? extends Number>> values) {
+        metrics.put(name, sb -> {
+            header(sb, name, help, "gauge");
+            for (Map.Entry<?, ? extends Number> e: values.get().entrySet()) {
+                sample(sb, name, labelName, e.getKey().toString(), e.getValue().doubleValue());
+            }
+        });
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        for (Metric metric: metrics.values()) {
+            metric.render(sb);
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String labelName, String labelValue,
+                                LatencyHistogram.Snapshot snapshot) {
+        for (double q: quantiles) {
+            sb.append(name).append('{');
+            if (labelName != null) {
+                sb.append(labelName).append("=\"").append(labelValue).append("\",");
+            }
+            sb.append("quantile=\"").append(q).append("\"} ").append(snapshot.percentile(q)).append('\n');
+        }
+        sample(sb, name + "_sum", labelName, labelValue, snapshot.sum());
+        sample(sb, name + "_count", labelName, labelValue, snapshot.count());
+    }
+
+    private static void sample(StringBuilder sb, String name, String labelName, String labelValue, double value) {
+        sb.append(name);
+        if (labelName != null) {
+            sb.append('{').append(labelName).append("=\"").append(labelValue).append("\"}");
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+}
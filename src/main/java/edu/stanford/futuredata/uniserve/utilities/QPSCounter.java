@@ -0,0 +1,63 @@
+package edu.stanford.futuredata.uniserve.utilities;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-second query counts over a sliding window of recent seconds, kept in fixed-size ring buffers.
+ * Each slot packs the epoch second it counts (high 32 bits) with its count (low 32 bits) so a slot is claimed for a
+ * new second and incremented in one compare-and-set.  Recording threads are spread over several stripes so concurrent
+ * queries on the same shard rarely contend on one slot.  Recording never allocates.
+ */
+public class QPSCounter {
+
+    private static final int numStripes = 8;
+    private static final long countMask = 0xFFFFFFFFL;
+
+    private final int windowSeconds;
+    private final AtomicLongArray slots;
+
+    public QPSCounter(int windowSeconds) {
+        assert(windowSeconds > 0);
+        this.windowSeconds = windowSeconds;
+        this.slots = new AtomicLongArray(numStripes * windowSeconds);
+    }
+
+    /** Count one query in the current second. **/
+    public void record() {
+        record(Instant.now().getEpochSecond());
+    }
+
+    public void record(long epochSecond) {
+        int stripe = (int) (Thread.currentThread().getId() % numStripes);
+        int slot = stripe * windowSeconds + (int) (epochSecond % windowSeconds);
+        long stamp = (epochSecond & countMask) << 32;
+        while (true) {
+            long current = slots.get(slot);
+            // A slot still holding an older second is reset rather than added to.
+            long next = (current & ~countMask) == stamp ? current + 1 : stamp | 1;
+            if (slots.compareAndSet(slot, current, next)) {
+                return;
+            }
+        }
+    }
+
+    /** Queries counted in the last seconds seconds, up to the window size. **/
+    public int count(int seconds) {
+        return count(Instant.now().getEpochSecond(), seconds);
+    }
+
+    public int count(long currentEpochSecond, int seconds) {
+        seconds = Math.min(seconds, windowSeconds);
+        long count = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            long v = slots.get(i);
+            long second = v >>> 32;
+            long age = (currentEpochSecond & countMask) - second;
+            if (v != 0 && age >= 0 && age < seconds) {
+                count += v & countMask;
+            }
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+}
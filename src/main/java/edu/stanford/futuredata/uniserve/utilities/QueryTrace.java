@@ -0,0 +1,196 @@
+package edu.stanford.futuredata.uniserve.utilities;
+
+import io.grpc.*;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Timing spans recorded by every component a query passes through, keyed by the query's txID.
+ * A trace is carried in the gRPC Context:  the client interceptor sends the txID of the current trace as a request
+ * header, the server interceptor starts a trace for the call on the receiving component, and the spans it recorded
+ * return to the caller in the call's trailers.  Code that is not being traced pays one Context lookup per span.
+ */
+public class QueryTrace {
+
+    private static final Context.Key<QueryTrace> contextKey = Context.key("uniserve-trace");
+    private static final Metadata.Key<String> traceHeader = Metadata.Key.of("uniserve-trace", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<byte[]> spansTrailer = Metadata.Key.of("uniserve-spans-bin", Metadata.BINARY_BYTE_MARSHALLER);
+    // Spans returned per call beyond this are dropped.  Channels carrying traces must accept trailers this large.
+    public static int maxReturnedSpans = 4096;
+    public static final int maxTrailerBytes = 1024 * 1024;
+
+    public static class Span {
+        public final String component;
+        public final String stage;
+        // Shard the stage ran on, or -1.
+        public final int shard;
+        // Wall-clock start, in microseconds since the epoch, so spans from different servers can be ordered.
+        public final long startMicros;
+        public final long durationMicros;
+
+        Span(String component, String stage, int shard, long startMicros, long durationMicros) {
+            this.component = component;
+            this.stage = stage;
+            this.shard = shard;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s%s %dus", component, stage, shard >= 0 ? " shard " + shard : "", durationMicros);
+        }
+    }
+
+    public final long txID;
+    private final String component;
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+
+    public QueryTrace(long txID, String component) {
+        this.txID = txID;
+        this.component = component;
+    }
+
+    /** The trace of the query being served by this thread, or null if it is not traced. **/
+    public static QueryTrace current() {
+        return contextKey.get();
+    }
+
+    /** Run query with this trace as the current one. **/
+    public <T> T call(Supplier<T> query) {
+        Context context = Context.current().withValue(contextKey, this);
+        Context previous = context.attach();
+        try {
+            return query.get();
+        } finally {
+            context.detach(previous);
+        }
+    }
+
+    /** Record a stage of the current query that started at startNanos (from System.nanoTime) and ends now. **/
+    public static void record(String stage, int shard, long startNanos) {
+        QueryTrace trace = contextKey.get();
+        if (trace != null) {
+            trace.add(stage, shard, startNanos);
+        }
+    }
+
+    public void add(String stage, int shard, long startNanos) {
+        long durationMicros = (System.nanoTime() - startNanos) / 1000L;
+        long startMicros = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now()) - durationMicros;
+        spans.add(new Span(component, stage, shard, startMicros, durationMicros));
+    }
+
+    public List<Span> getSpans() {
+        List<Span> s = new ArrayList<>(spans);
+        s.sort(Comparator.comparingLong(i -> i.startMicros));
+        return s;
+    }
+
+    /** Total time per component and stage, slowest first. **/
+    public Map<String, Long> breakdown() {
+        Map<String, Long> totals = new HashMap<>();
+        for (Span s: spans) {
+            totals.merge(s.component + " " + s.stage, s.durationMicros, Long::sum);
+        }
+        Map<String, Long> sorted = new LinkedHashMap<>();
+        totals.entrySet().stream().sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Trace %d: %s", txID, breakdown());
+    }
+
+    /** Attach the current trace to outgoing calls and collect the spans they return. **/
+    public static ClientInterceptor clientInterceptor() {
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+                QueryTrace trace = contextKey.get();
+                if (trace == null) {
+                    return next.newCall(method, callOptions);
+                }
+                return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+                    @Override
+                    public void start(Listener<RespT> responseListener, Metadata headers) {
+                        headers.put(traceHeader, Long.toString(trace.txID));
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                byte[] remoteSpans = trailers.get(spansTrailer);
+                                if (remoteSpans != null) {
+                                    trace.spans.addAll(decodeSpans(remoteSpans));
+                                }
+                                super.onClose(status, trailers);
+                            }
+                        }, headers);
+                    }
+                };
+            }
+        };
+    }
+
+    /** Trace calls whose caller is tracing, returning the spans recorded here in the trailers. **/
+    public static ServerInterceptor serverInterceptor(Supplier<String> component) {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                String txID = headers.get(traceHeader);
+                if (txID == null) {
+                    return next.startCall(call, headers);
+                }
+                QueryTrace trace = new QueryTrace(Long.parseLong(txID), component.get());
+                ServerCall<ReqT, RespT> tracedCall = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+                    @Override
+                    public void close(Status status, Metadata trailers) {
+                        trailers.put(spansTrailer, encodeSpans(trace.spans));
+                        super.close(status, trailers);
+                    }
+                };
+                return Contexts.interceptCall(Context.current().withValue(contextKey, trace), tracedCall, headers, next);
+            }
+        };
+    }
+
+    private static byte[] encodeSpans(Collection<Span> spans) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            int numSpans = Math.min(spans.size(), maxReturnedSpans);
+            out.writeInt(numSpans);
+            Iterator<Span> it = spans.iterator();
+            for (int i = 0; i < numSpans && it.hasNext(); i++) {
+                Span s = it.next();
+                out.writeUTF(s.component);
+                out.writeUTF(s.stage);
+                out.writeInt(s.shard);
+                out.writeLong(s.startMicros);
+                out.writeLong(s.durationMicros);
+            }
+        } catch (IOException e) {
+            assert(false);
+        }
+        return bos.toByteArray();
+    }
+
+    private static List<Span> decodeSpans(byte[] data) {
+        List<Span> spans = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int numSpans = in.readInt();
+            for (int i = 0; i < numSpans; i++) {
+                spans.add(new Span(in.readUTF(), in.readUTF(), in.readInt(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            // A truncated trailer loses only the remote spans, never the query.
+            return spans;
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,44 @@
+package edu.stanford.futuredata.uniserve.utilities;
+
+import com.google.protobuf.ByteString;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which datastores are known to hold each query plan, keyed by plan hash, so a plan's bytes are sent to each
+ * datastore once and later messages refer to it by hash.  Holds the most recently used capacity plans.
+ */
+public class ShippedPlans {
+
+    private final Map<ByteString, Set<Integer>> shippedPlans;
+
+    public ShippedPlans(int capacity) {
+        this.shippedPlans = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteString, Set<Integer>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Whether the datastore is known to hold the plan with this hash. **/
+    public synchronized boolean contains(ByteString planHash, int dsID) {
+        Set<Integer> dsIDs = shippedPlans.get(planHash);
+        return dsIDs != null && dsIDs.contains(dsID);
+    }
+
+    public synchronized void add(ByteString planHash, int dsID) {
+        shippedPlans.computeIfAbsent(planHash, k -> new HashSet<>()).add(dsID);
+    }
+
+    /** Forget that the datastore holds the plan, e.g. once it has evicted it. **/
+    public synchronized void remove(ByteString planHash, int dsID) {
+        Set<Integer> dsIDs = shippedPlans.get(planHash);
+        if (dsIDs != null) {
+            dsIDs.remove(dsID);
+        }
+    }
+}
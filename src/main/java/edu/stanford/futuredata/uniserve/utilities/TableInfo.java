@@ -1,14 +1,32 @@
 package edu.stanford.futuredata.uniserve.utilities;
 
+import com.google.protobuf.ByteString;
+import edu.stanford.futuredata.uniserve.interfaces.RowCodec;
+
 public class TableInfo {
     public final String name;
     public final Integer id;
     public final Integer numShards;
+    // Serialized RowCodec registered with the table, empty if rows use Java serialization.
+    public final ByteString serializedRowCodec;
+    private RowCodec<?> rowCodec = null;
 
     public TableInfo(String name, Integer id, Integer numShards) {
+        this(name, id, numShards, ByteString.EMPTY);
+    }
+
+    public TableInfo(String name, Integer id, Integer numShards, ByteString serializedRowCodec) {
         this.name = name;
         this.id = id;
         this.numShards = numShards;
+        this.serializedRowCodec = serializedRowCodec;
     }
-}
 
+    /** Returns the table's RowCodec, or null if it has none. **/
+    public synchronized RowCodec<?> getRowCodec() {
+        if (rowCodec == null && !serializedRowCodec.isEmpty()) {
+            rowCodec = (RowCodec<?>) Utilities.byteStringToObject(serializedRowCodec);
+        }
+        return rowCodec;
+    }
+}
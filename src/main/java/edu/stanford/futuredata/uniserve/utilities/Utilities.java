@@ -1,11 +1,15 @@
 package edu.stanford.futuredata.uniserve.utilities;
 
 import com.google.protobuf.ByteString;
+import edu.stanford.futuredata.uniserve.interfaces.Row;
+import edu.stanford.futuredata.uniserve.interfaces.RowCodec;
 import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class Utilities {
     public static String null_name = "__null__unready__";
@@ -47,4 +51,58 @@ public class Utilities {
         }
         return obj;
     }
+
+    /** Content hash identifying a serialized query plan. **/
+    public static ByteString planHash(ByteString serializedPlan) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            serializedPlan.asReadOnlyByteBufferList().forEach(digest::update);
+            return ByteString.copyFrom(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("Plan Hash Failed {}", e.getMessage());
+            assert(false);
+            return ByteString.EMPTY;
+        }
+    }
+
+    /** Serialize rows with a table's RowCodec, falling back to Java serialization if the table has none. **/
+    public static <R extends Row> ByteString rowsToByteString(R[] rows, RowCodec<R> rowCodec) {
+        if (rowCodec == null) {
+            return objectToByteString(rows);
+        }
+        ByteString.Output bos = ByteString.newOutput();
+        DataOutputStream out = new DataOutputStream(bos);
+        try {
+            out.writeInt(rows.length);
+            for (R row: rows) {
+                rowCodec.writeRow(row, out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            logger.error("Row Serialization Failed {}", e.getMessage());
+            assert(false);
+        }
+        return bos.toByteString();
+    }
+
+    /** Deserialize rows written by rowsToByteString with the same RowCodec. **/
+    @SuppressWarnings("unchecked")
+    public static <R extends Row> R[] byteStringToRows(ByteString b, RowCodec<R> rowCodec) {
+        if (rowCodec == null) {
+            return (R[]) byteStringToObject(b);
+        }
+        DataInputStream in = new DataInputStream(b.newInput());
+        R[] rows = null;
+        try {
+            int numRows = in.readInt();
+            rows = (R[]) new Row[numRows];
+            for (int i = 0; i < numRows; i++) {
+                rows[i] = rowCodec.readRow(in);
+            }
+        } catch (IOException e) {
+            logger.error("Row Deserialization Failed {}", e.getMessage());
+            assert(false);
+        }
+        return rows;
+    }
 }
\ No newline at end of file
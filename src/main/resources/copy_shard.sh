@@ -1,3 +0,0 @@
-#!/usr/bin/env bash
-
-cp -R --reflink $1 $2
\ No newline at end of file
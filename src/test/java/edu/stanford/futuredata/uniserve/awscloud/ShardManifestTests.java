@@ -0,0 +1,109 @@
+package edu.stanford.futuredata.uniserve.awscloud;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardManifestTests {
+    private static final Logger logger = LoggerFactory.getLogger(ShardManifestTests.class);
+
+    private Path shardDirectory;
+
+    @BeforeEach
+    private void setUp() throws IOException {
+        shardDirectory = Files.createTempDirectory("shardmanifest");
+        Files.writeString(shardDirectory.resolve("a.dat"), "aaaa");
+        Files.createDirectories(shardDirectory.resolve("sub"));
+        Files.writeString(shardDirectory.resolve("sub/b.dat"), "bbbbbbbb");
+        // Old enough that scans trust their size and mtime.
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+        Files.setLastModifiedTime(shardDirectory.resolve("a.dat"), past);
+        Files.setLastModifiedTime(shardDirectory.resolve("sub/b.dat"), past);
+    }
+
+    @AfterEach
+    private void tearDown() {
+        FileUtils.deleteQuietly(shardDirectory.toFile());
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        logger.info("testScan");
+        ShardManifest manifest = ShardManifest.scan(shardDirectory, "0_1", null);
+        assertEquals(Set.of("a.dat", "sub/b.dat"), manifest.entries.keySet());
+        ShardManifest.Entry b = manifest.entries.get("sub/b.dat");
+        assertEquals(8, b.size);
+        assertEquals(Files.getLastModifiedTime(shardDirectory.resolve("sub/b.dat")).toMillis(), b.lastModified);
+        assertEquals(ShardManifest.checksum(shardDirectory.resolve("sub/b.dat")), b.checksum);
+        assertEquals("0_1/sub/b.dat", b.objectKey);
+        assertNotEquals(manifest.entries.get("a.dat").checksum, b.checksum);
+        // With nothing uploaded before, every file is new.
+        assertEquals(2, manifest.newEntries("0_1").size());
+        assertEquals("0_1.manifest", ShardManifest.manifestKey("0_1"));
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        logger.info("testSerialization");
+        ShardManifest manifest = ShardManifest.scan(shardDirectory, "0_1", null);
+        ShardManifest copy = ShardManifest.deserialize(manifest.serialize());
+        assertEquals(manifest.scanTime, copy.scanTime);
+        assertEquals(manifest.entries.keySet(), copy.entries.keySet());
+        for (ShardManifest.Entry e: manifest.entries.values()) {
+            ShardManifest.Entry c = copy.entries.get(e.relativePath);
+            assertEquals(e.relativePath, c.relativePath);
+            assertEquals(e.size, c.size);
+            assertEquals(e.lastModified, c.lastModified);
+            assertEquals(e.checksum, c.checksum);
+            assertEquals(e.objectKey, c.objectKey);
+        }
+        ShardManifest empty = ShardManifest.deserialize(new ShardManifest(5, new HashMap<>()).serialize());
+        assertEquals(5, empty.scanTime);
+        assertTrue(empty.entries.isEmpty());
+    }
+
+    @Test
+    public void testChangedFiles() throws IOException {
+        logger.info("testChangedFiles");
+        ShardManifest first = ShardManifest.scan(shardDirectory, "0_1", null);
+        // Change a.dat without changing its size, add c.dat, and rewrite sub/b.dat with the same contents.
+        Files.writeString(shardDirectory.resolve("a.dat"), "AAAA");
+        Files.writeString(shardDirectory.resolve("c.dat"), "cc");
+        Files.writeString(shardDirectory.resolve("sub/b.dat"), "bbbbbbbb");
+        ShardManifest second = ShardManifest.scan(shardDirectory, "0_2", first);
+        assertEquals("0_2/a.dat", second.entries.get("a.dat").objectKey);
+        assertEquals("0_2/c.dat", second.entries.get("c.dat").objectKey);
+        assertEquals("0_1/sub/b.dat", second.entries.get("sub/b.dat").objectKey);
+        Set<String> uploaded = second.newEntries("0_2").stream().map(e -> e.relativePath).collect(Collectors.toSet());
+        assertEquals(Set.of("a.dat", "c.dat"), uploaded);
+
+        // Files untouched since the last scan are not rehashed and keep their objects.
+        FileTime past = FileTime.fromMillis(second.scanTime - 30000);
+        for (String file: new String[]{"a.dat", "c.dat", "sub/b.dat"}) {
+            Files.setLastModifiedTime(shardDirectory.resolve(file), past);
+        }
+        ShardManifest third = ShardManifest.scan(shardDirectory, "0_3", second);
+        assertTrue(third.newEntries("0_3").isEmpty());
+        assertEquals("0_2/a.dat", third.entries.get("a.dat").objectKey);
+        assertEquals("0_1/sub/b.dat", third.entries.get("sub/b.dat").objectKey);
+
+        // Deleted files drop out of the manifest.
+        Files.delete(shardDirectory.resolve("c.dat"));
+        ShardManifest fourth = ShardManifest.scan(shardDirectory, "0_4", third);
+        assertFalse(fourth.entries.containsKey("c.dat"));
+        assertTrue(fourth.newEntries("0_4").isEmpty());
+    }
+}
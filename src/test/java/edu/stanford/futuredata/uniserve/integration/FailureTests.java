@@ -40,8 +40,12 @@ public class FailureTests {
         cleanUp(zkHost, zkPort);
     }
 
+    // Default of the tunable a test changes, restored after every test, including ones that fail.
+    private static final int defaultCheckpointDaemonSleepDurationMillis = DataStore.checkpointDaemonSleepDurationMillis;
+
     @AfterEach
     private void unitTestCleanUp() {
+        DataStore.checkpointDaemonSleepDurationMillis = defaultCheckpointDaemonSleepDurationMillis;
         cleanUp(zkHost, zkPort);
     }
 
@@ -192,6 +196,58 @@ public class FailureTests {
         broker.shutdown();
     }
 
+    @Test
+    public void testWriteAheadLogRecovery() throws InterruptedException {
+        logger.info("testWriteAheadLogRecovery");
+        int numShards = 4;
+        DataStore.checkpointDaemonSleepDurationMillis = 100;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        DataStore<KVRow, KVShard> dataStore = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8300, -1, false
+        );
+        dataStore.useWriteAheadLog = true;
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", numShards);
+        List<KVRow> rows = new ArrayList<>();
+        for (int i = 1; i < 11; i++) {
+            rows.add(new KVRow(i, i));
+        }
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        // Let the first write be checkpointed, then stop checkpointing so the second write is only in the log.
+        Thread.sleep(1000);
+        dataStore.runCheckpointDaemon = false;
+        Thread.sleep(500);
+        rows.clear();
+        for (int i = 1; i < 11; i++) {
+            rows.add(new KVRow(i, 2 * i));
+        }
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        dataStore.runPingDaemon = false;
+        dataStore.shutDown();
+        DataStore.checkpointDaemonSleepDurationMillis = defaultCheckpointDaemonSleepDurationMillis;
+
+        // A replacement on the same port and directory recovers from the checkpoint plus its log.
+        Thread.sleep(1000);
+        DataStore<KVRow, KVShard> replacement = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8300, -1, false
+        );
+        replacement.useWriteAheadLog = true;
+        assertTrue(replacement.startServing());
+        AnchoredReadQueryPlan<KVShard, Integer> readQueryPlan = new KVReadQueryPlanSumGet(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+        Integer queryResponse;
+        do {
+            queryResponse = broker.anchoredReadQuery(readQueryPlan);
+        } while (Objects.isNull(queryResponse));
+        assertEquals(110, queryResponse);
+        replacement.runPingDaemon = false;
+        replacement.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
 //    @Test
     public void testFailureWithChangingReplicas() {
         logger.info("testFailureWithChangingReplicas");
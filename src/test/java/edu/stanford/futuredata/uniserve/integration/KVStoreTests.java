@@ -6,19 +6,25 @@ import edu.stanford.futuredata.uniserve.coordinator.Coordinator;
 import edu.stanford.futuredata.uniserve.coordinator.DefaultAutoScaler;
 import edu.stanford.futuredata.uniserve.coordinator.DefaultLoadBalancer;
 import edu.stanford.futuredata.uniserve.datastore.DataStore;
+import edu.stanford.futuredata.uniserve.datastore.ShardLock;
 import edu.stanford.futuredata.uniserve.interfaces.AnchoredReadQueryPlan;
 import edu.stanford.futuredata.uniserve.interfaces.SimpleWriteQueryPlan;
 import edu.stanford.futuredata.uniserve.interfaces.WriteQueryPlan;
 import edu.stanford.futuredata.uniserve.kvmockinterface.KVQueryEngine;
 import edu.stanford.futuredata.uniserve.kvmockinterface.KVRow;
+import edu.stanford.futuredata.uniserve.kvmockinterface.KVRowCodec;
 import edu.stanford.futuredata.uniserve.kvmockinterface.KVShard;
 import edu.stanford.futuredata.uniserve.kvmockinterface.KVShardFactory;
 import edu.stanford.futuredata.uniserve.kvmockinterface.queryplans.*;
+import edu.stanford.futuredata.uniserve.utilities.LatencyHistogram;
+import edu.stanford.futuredata.uniserve.utilities.QPSCounter;
+import edu.stanford.futuredata.uniserve.utilities.QueryTrace;
 import org.apache.commons.io.FileUtils;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.javatuples.Pair;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -27,8 +33,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CyclicBarrier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -43,7 +54,19 @@ public class KVStoreTests {
     private static Integer zkPort = 2181;
 
     public static void cleanUp(String zkHost, int zkPort) {
-        // Clean up ZooKeeper
+        cleanUpZooKeeper(zkHost, zkPort);
+        // Clean up directories.
+        try {
+            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve0"));
+            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve1"));
+            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve2"));
+            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve3"));
+        } catch (IOException e) {
+            logger.info("FS cleanup failed: {}", e.getMessage());
+        }
+    }
+
+    public static void cleanUpZooKeeper(String zkHost, int zkPort) {
         String connectString = String.format("%s:%d", zkHost, zkPort);
         RetryPolicy retryPolicy = new ExponentialBackoffRetry(1000, 3);
         CuratorFramework cf = CuratorFrameworkFactory.newClient(connectString, retryPolicy);
@@ -57,15 +80,6 @@ public class KVStoreTests {
         } catch (Exception e) {
             logger.info("Zookeeper cleanup failed: {}", e.getMessage());
         }
-        // Clean up directories.
-        try {
-            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve0"));
-            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve1"));
-            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve2"));
-            FileUtils.deleteDirectory(new File("/var/tmp/KVUniserve3"));
-        } catch (IOException e) {
-            logger.info("FS cleanup failed: {}", e.getMessage());
-        }
     }
 
     @BeforeAll
@@ -73,8 +87,30 @@ public class KVStoreTests {
         cleanUp(zkHost, zkPort);
     }
 
+    // Defaults of the tunables tests change, restored after every test, including ones that fail.
+    private static final int defaultPlanRegistryCapacity = DataStore.planRegistryCapacity;
+    private static final int defaultBrokerServiceThreads = DataStore.brokerServiceThreads;
+    private static final int defaultDataStoreServiceThreads = DataStore.dataStoreServiceThreads;
+    private static final int defaultCoordinatorServiceThreads = DataStore.coordinatorServiceThreads;
+    private static final long defaultResultCacheTTLMillis = Broker.resultCacheTTLMillis;
+    private static final long defaultWriteLogMemoryBudgetBytes = DataStore.writeLogMemoryBudgetBytes;
+    private static final int defaultCheckpointDaemonSleepDurationMillis = DataStore.checkpointDaemonSleepDurationMillis;
+    private static final int defaultBootstrapChunkSizeBytes = DataStore.bootstrapChunkSizeBytes;
+    private static final long defaultShardMemoryBudgetKB = DataStore.shardMemoryBudgetKB;
+    private static final long defaultShardVersionRetentionMillis = DataStore.shardVersionRetentionMillis;
+
     @AfterEach
     private void unitTestCleanUp() {
+        DataStore.planRegistryCapacity = defaultPlanRegistryCapacity;
+        DataStore.brokerServiceThreads = defaultBrokerServiceThreads;
+        DataStore.dataStoreServiceThreads = defaultDataStoreServiceThreads;
+        DataStore.coordinatorServiceThreads = defaultCoordinatorServiceThreads;
+        Broker.resultCacheTTLMillis = defaultResultCacheTTLMillis;
+        DataStore.writeLogMemoryBudgetBytes = defaultWriteLogMemoryBudgetBytes;
+        DataStore.checkpointDaemonSleepDurationMillis = defaultCheckpointDaemonSleepDurationMillis;
+        DataStore.bootstrapChunkSizeBytes = defaultBootstrapChunkSizeBytes;
+        DataStore.shardMemoryBudgetKB = defaultShardMemoryBudgetKB;
+        DataStore.shardVersionRetentionMillis = defaultShardVersionRetentionMillis;
         cleanUp(zkHost, zkPort);
     }
 
@@ -185,6 +221,996 @@ public class KVStoreTests {
         broker.shutdown();
     }
 
+    @Test
+    public void testRowCodec() {
+        logger.info("testRowCodec");
+        int numShards = 2;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7778);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve"), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table", numShards, new KVRowCodec()));
+        List<KVRow> rows = new ArrayList<>();
+        for (int i = 1; i < 11; i++) {
+            rows.add(new KVRow(i, i));
+        }
+        WriteQueryPlan<KVRow, KVShard> writeQueryPlan = new KVWriteQueryPlanInsert();
+        assertTrue(broker.writeQuery(writeQueryPlan, rows));
+
+        AnchoredReadQueryPlan<KVShard, Integer> readQueryPlan = new KVReadQueryPlanSumGet(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+        assertEquals(Integer.valueOf(55), broker.anchoredReadQuery(readQueryPlan));
+
+        SimpleWriteQueryPlan<KVRow, KVShard> simpleWriteQueryPlan = new KVSimpleWriteQueryPlanInsert();
+        assertTrue(broker.simpleWriteQuery(simpleWriteQueryPlan, Collections.singletonList(new KVRow(1, 11))));
+        assertEquals(Integer.valueOf(65), broker.anchoredReadQuery(readQueryPlan));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testQueryPlanRegistry() {
+        logger.info("testQueryPlanRegistry");
+        int numShards = 4;
+        // Force evictions so datastores must ask for plans they no longer hold.
+        DataStore.planRegistryCapacity = 1;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7778);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve"), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        DataStore.planRegistryCapacity = defaultPlanRegistryCapacity;
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table", numShards));
+        List<KVRow> rows = new ArrayList<>();
+        for (int i = 1; i < 5000; i++) {
+            rows.add(new KVRow(i, i));
+        }
+        WriteQueryPlan<KVRow, KVShard> writeQueryPlan = new KVWriteQueryPlanInsert();
+        assertTrue(broker.writeQuery(writeQueryPlan, rows));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 1; i < 10; i++) {
+                AnchoredReadQueryPlan<KVShard, Integer> readQueryPlan = new KVReadQueryPlanGet(i);
+                assertEquals(Integer.valueOf(i), broker.anchoredReadQuery(readQueryPlan));
+            }
+            AnchoredReadQueryPlan<KVShard, Integer> sumPlan = new KVReadQueryPlanSumGet(Arrays.asList(1, 2, 3, 4));
+            assertEquals(Integer.valueOf(10), broker.anchoredReadQuery(sumPlan));
+        }
+
+        // Shuffles between datastores ship a plan once, then refer to it by hash.
+        assertTrue(broker.createTable("table1", numShards));
+        assertTrue(broker.createTable("table2", numShards));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+        assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        long plansSent = plansSent(dataStores);
+        assertTrue(plansSent > 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        }
+        assertEquals(plansSent, plansSent(dataStores));
+        // Datastores that evicted the plan ask for it again.
+        for (int i = 1; i < 5; i++) {
+            assertEquals(Integer.valueOf(i), broker.anchoredReadQuery(new KVReadQueryPlanGet(i)));
+            assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        }
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    private static long plansSent(List<DataStore<KVRow, KVShard>> dataStores) {
+        return dataStores.stream().flatMap(d -> d.metrics.render().lines())
+                .filter(l -> l.startsWith("uniserve_shuffle_plans_sent_total "))
+                .mapToLong(l -> Long.parseLong(l.split(" ")[1])).sum();
+    }
+
+    @Test
+    public void testMetrics() {
+        logger.info("testMetrics");
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.count());
+        assertEquals(50000.5, snapshot.mean(), 0.01);
+        assertEquals(100000, snapshot.max());
+        assertEquals(50000, snapshot.percentile(0.5), 50000 * 0.04);
+        assertEquals(99000, snapshot.percentile(0.99), 99000 * 0.04);
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(7);
+        LatencyHistogram.Snapshot merged = snapshot.merge(other.snapshot());
+        assertEquals(100001, merged.count());
+        assertEquals(7, other.snapshot().percentile(0.5));
+
+        QPSCounter counter = new QPSCounter(60);
+        long now = 1_000_000L;
+        for (int i = 0; i < 10; i++) {
+            counter.record(now - 100);
+            counter.record(now - 30);
+            counter.record(now);
+        }
+        assertEquals(10, counter.count(now, 1));
+        assertEquals(20, counter.count(now, 60));
+        // A second the window has wrapped around to replaces the old count in its slot.
+        counter.record(now + 30);
+        assertEquals(1, counter.count(now + 30, 1));
+        assertEquals(11, counter.count(now + 30, 60));
+
+        int numShards = 2;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve"), zkHost, zkPort, "127.0.0.1", 8000, -1, false
+        );
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table", numShards));
+        WriteQueryPlan<KVRow, KVShard> writeQueryPlan = new KVWriteQueryPlanInsert();
+        assertTrue(broker.writeQuery(writeQueryPlan, List.of(new KVRow(1, 2), new KVRow(2, 3))));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(5), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(List.of(1, 2))));
+        }
+        assertEquals(5, broker.aggregationTimes.count());
+        assertEquals(5, broker.remoteExecutionTimes.count());
+        assertEquals(10, dataStore.readQueryFullTimes.count());
+        assertEquals(10, dataStore.readQueryExecuteTimes.count());
+        assertTrue(dataStore.readQueryFullTimes.snapshot().percentile(0.5) >=
+                dataStore.readQueryExecuteTimes.snapshot().percentile(0.5) / 2);
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testMetricsEndpoint() throws IOException {
+        logger.info("testMetricsEndpoint");
+        int numShards = 2;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        assertTrue(coordinator.startMetricsServer(9400));
+        DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve"), zkHost, zkPort, "127.0.0.1", 8000, -1, false
+        );
+        dataStore.startServing();
+        assertTrue(dataStore.startMetricsServer(9401));
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.startMetricsServer(9402));
+        assertTrue(broker.createTable("table", numShards));
+        WriteQueryPlan<KVRow, KVShard> writeQueryPlan = new KVWriteQueryPlanInsert();
+        assertTrue(broker.writeQuery(writeQueryPlan, List.of(new KVRow(1, 2), new KVRow(2, 3))));
+        assertEquals(Integer.valueOf(5), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(List.of(1, 2))));
+
+        String dataStoreMetrics = new String(new URL("http://127.0.0.1:9401/metrics").openStream().readAllBytes());
+        assertTrue(dataStoreMetrics.contains("# TYPE uniserve_shard_queries gauge"));
+        assertTrue(dataStoreMetrics.contains("uniserve_shard_queries{shard=\"1\"} 1\n"));
+        assertTrue(dataStoreMetrics.contains("uniserve_shard_read_microseconds_count{shard=\"1\"} 1\n"));
+        assertTrue(dataStoreMetrics.contains("uniserve_read_query_full_microseconds_count 2\n"));
+        assertTrue(dataStoreMetrics.contains("uniserve_write_phase_microseconds_count{phase=\"prepare\"} 2\n"));
+        assertTrue(dataStoreMetrics.contains("uniserve_write_phase_microseconds_count{phase=\"commit\"} 2\n"));
+        assertTrue(dataStoreMetrics.contains("uniserve_shard_memory_kilobytes{shard=\"0\"}"));
+        assertTrue(dataStoreMetrics.contains("uniserve_shuffle_sent_bytes_total 0\n"));
+
+        String brokerMetrics = new String(new URL("http://127.0.0.1:9402/metrics").openStream().readAllBytes());
+        assertTrue(brokerMetrics.contains("uniserve_broker_read_fanout{quantile=\"0.5\"} 2\n"));
+        assertTrue(brokerMetrics.contains("uniserve_broker_write_fanout_count 1\n"));
+        assertTrue(brokerMetrics.contains("uniserve_broker_read_retries_total 0\n"));
+        assertTrue(brokerMetrics.contains("uniserve_broker_remote_execution_microseconds_count 1\n"));
+
+        String coordinatorMetrics = new String(new URL("http://127.0.0.1:9400/metrics").openStream().readAllBytes());
+        assertTrue(coordinatorMetrics.contains("uniserve_coordinator_datastores_alive 1\n"));
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testQueryTrace() {
+        logger.info("testQueryTrace");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        Pair<Integer, QueryTrace> profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(12), profile.getValue0());
+        QueryTrace trace = profile.getValue1();
+        logger.info("{}", trace);
+        List<QueryTrace.Span> spans = trace.getSpans();
+        Set<String> brokerStages = spans.stream().filter(s -> s.component.equals("broker")).map(s -> s.stage).collect(Collectors.toSet());
+        assertEquals(Set.of("serialize plan", "remote execution", "combine"), brokerStages);
+        // Each of the two anchor shards is gathered once, after fetching the one shard of table2.
+        assertEquals(2, spans.stream().filter(s -> s.component.startsWith("DS") && s.stage.equals("gather")).count());
+        assertEquals(Set.of(0, 1), spans.stream().filter(s -> s.stage.equals("gather")).map(s -> s.shard).collect(Collectors.toSet()));
+        assertEquals(2, spans.stream().filter(s -> s.stage.equals("anchored shuffle fetch") && s.shard == Broker.SHARDS_PER_TABLE).count());
+        assertEquals(1, spans.stream().filter(s -> s.stage.equals("scatter")).count());
+        assertTrue(spans.stream().anyMatch(s -> s.stage.equals("reader lock wait")));
+        assertTrue(trace.breakdown().containsKey("broker remote execution"));
+
+        // Untraced queries carry no trace.
+        assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        assertNull(QueryTrace.current());
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testWriteLeaseHandoff() throws InterruptedException {
+        logger.info("testWriteLeaseHandoff");
+        ShardLock shardLock = new ShardLock();
+        List<ShardLock.WriteLease> leases = new ArrayList<>();
+        Thread preparer = new Thread(() -> leases.add(shardLock.acquireWriteLease()));
+        preparer.start();
+        preparer.join();
+        // The preparing thread has exited but the lease is still held.
+        assertEquals(1, leases.size());
+        assertFalse(shardLock.systemLockTryLock());
+        shardLock.readerLockLock();
+        shardLock.readerLockUnlock();
+        Thread secondWriter = new Thread(() -> {
+            shardLock.writerLockLock();
+            shardLock.writerLockUnlock();
+        });
+        secondWriter.start();
+        secondWriter.join(200);
+        assertTrue(secondWriter.isAlive());
+        // Released by a different thread than the one that acquired it.
+        leases.get(0).release();
+        secondWriter.join();
+        assertTrue(shardLock.systemLockTryLock());
+        shardLock.systemLockUnlock();
+    }
+
+    @Test
+    public void testStripedReaderLock() throws InterruptedException {
+        logger.info("testStripedReaderLock");
+        assertTrue(ShardLock.stripedReaders);
+        ShardLock shardLock = new ShardLock();
+        shardLock.readerLockLock();
+        assertFalse(shardLock.systemLockTryLock());
+        // A reader may release from a different thread than the one it acquired on.
+        Thread releaser = new Thread(shardLock::readerLockUnlock);
+        releaser.start();
+        releaser.join();
+        assertTrue(shardLock.systemLockTryLock());
+        shardLock.systemLockUnlock();
+
+        shardLock.readerLockLock();
+        Thread systemLocker = new Thread(() -> {
+            shardLock.systemLockLock();
+            shardLock.systemLockUnlock();
+        });
+        systemLocker.start();
+        systemLocker.join(200);
+        assertTrue(systemLocker.isAlive());
+        // Readers arriving while a system lock drains existing readers queue behind it instead of starving it.
+        Thread lateReader = new Thread(() -> {
+            shardLock.readerLockLock();
+            shardLock.readerLockUnlock();
+        });
+        lateReader.start();
+        lateReader.join(200);
+        assertTrue(lateReader.isAlive());
+        shardLock.readerLockUnlock();
+        systemLocker.join();
+        lateReader.join();
+        assertTrue(shardLock.systemLockTryLock());
+        shardLock.systemLockUnlock();
+    }
+
+    @Test
+    public void testBoundedRpcExecutors() throws InterruptedException {
+        logger.info("testBoundedRpcExecutors");
+        // One thread per service:  anchored reads wait on shuffles served by the other service's pool.
+        DataStore.brokerServiceThreads = 1;
+        DataStore.dataStoreServiceThreads = 1;
+        DataStore.coordinatorServiceThreads = 1;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        List<Thread> threads = new ArrayList<>();
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 10; j++) {
+                    results.add(broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            for (int j = 0; j < 10; j++) {
+                assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(3, j))));
+            }
+        }));
+        threads.forEach(Thread::start);
+        for (Thread t: threads) {
+            t.join();
+        }
+        assertEquals(40, results.size());
+        assertTrue(results.stream().allMatch(r -> r == 12));
+
+        String metrics = dataStores.get(0).metrics.render();
+        assertTrue(metrics.contains("# TYPE uniserve_rpc_queue_depth gauge"));
+        assertTrue(metrics.contains("uniserve_rpc_queue_depth{queue=\"broker_interactive\"} 0\n"));
+        assertTrue(metrics.contains("uniserve_rpc_queue_wait_microseconds_count{queue=\"broker_interactive\"} "));
+        assertTrue(metrics.contains("uniserve_rpc_queue_wait_microseconds_count{queue=\"datastore_interactive\"} "));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+
+    @Test
+    public void testLocalShuffle() {
+        logger.info("testLocalShuffle");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                Path.of("/var/tmp/KVUniserve"), zkHost, zkPort, "127.0.0.1", 8000, -1, false
+        );
+        dataStore.runPingDaemon = false;
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        // Every shard is here, so both anchor shards fetch table2 in-process, and its scatter joins their trace.
+        Pair<Integer, QueryTrace> profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(12), profile.getValue0());
+        assertEquals(1, profile.getValue1().getSpans().stream().filter(s -> s.stage.equals("scatter")).count());
+        String metrics = dataStore.metrics.render();
+        assertTrue(metrics.contains("uniserve_shuffle_local_fetches_total 2\n"));
+        assertTrue(metrics.contains("uniserve_shuffle_sent_bytes_total 0\n"));
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testFailedShuffle() {
+        logger.info("testFailedShuffle");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 2));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        // A shard of table2 fails to scatter, so the join fails instead of summing the other shard alone.
+        assertThrows(CompletionException.class, () -> broker.anchoredReadQuery(new KVFailingScatterJoin("table1", "table2", 2)));
+        assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testScatterCache() {
+        logger.info("testScatterCache");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        // Each query scatters table2's one shard; later queries reuse the first's result.
+        assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        Pair<Integer, QueryTrace> profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(12), profile.getValue0());
+        assertEquals(1, profile.getValue1().getSpans().stream().filter(s -> s.stage.equals("scatter cache hit")).count());
+        assertEquals(0, profile.getValue1().getSpans().stream().filter(s -> s.stage.equals("scatter")).count());
+        String metrics = dataStores.stream().map(d -> d.metrics.render()).collect(Collectors.joining());
+        assertTrue(metrics.contains("uniserve_scatter_cache_hits_total 1\n"));
+        assertTrue(metrics.contains("uniserve_scatter_cache_misses_total 1\n"));
+        assertTrue(metrics.matches("(?s).*uniserve_scatter_cache_bytes [1-9].*"));
+
+        // A write to the shard makes the cached result stale, so the next query scatters again.
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 10))));
+        assertEquals(Integer.valueOf(18), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        assertEquals(Integer.valueOf(18), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        metrics = dataStores.stream().map(d -> d.metrics.render()).collect(Collectors.joining());
+        assertTrue(metrics.contains("uniserve_scatter_cache_hits_total 2\n"));
+        assertTrue(metrics.contains("uniserve_scatter_cache_misses_total 2\n"));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testGatherCache() {
+        logger.info("testGatherCache");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        // A result is cached the second time it is computed, then served without shuffling or gathering.
+        for (int i = 0; i < 2; i++) {
+            Pair<Integer, QueryTrace> profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+            assertEquals(Integer.valueOf(12), profile.getValue0());
+            assertEquals(2, profile.getValue1().getSpans().stream().filter(s -> s.stage.equals("gather")).count());
+        }
+        Pair<Integer, QueryTrace> profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(12), profile.getValue0());
+        List<QueryTrace.Span> spans = profile.getValue1().getSpans();
+        assertEquals(2, spans.stream().filter(s -> s.stage.equals("gather cache lookup")).count());
+        assertEquals(0, spans.stream().filter(s -> s.stage.equals("gather") || s.stage.equals("anchored shuffle fetch")).count());
+        String metrics = dataStores.stream().map(d -> d.metrics.render()).collect(Collectors.joining());
+        assertTrue(metrics.matches("(?s).*uniserve_gather_cache_hits_total [1-9].*"));
+        assertTrue(metrics.matches("(?s).*uniserve_gather_cache_bytes [1-9].*"));
+
+        // Writing a shuffled shard changes the key.
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 10))));
+        profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(18), profile.getValue0());
+        assertEquals(2, profile.getValue1().getSpans().stream().filter(s -> s.stage.equals("gather")).count());
+        // So does writing an anchor shard.
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 3))));
+        assertEquals(Integer.valueOf(20), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        assertEquals(Integer.valueOf(20), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        assertEquals(Integer.valueOf(20), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+    @Test
+    public void testResultCache() {
+        logger.info("testResultCache");
+        Broker.resultCacheTTLMillis = 1000;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        Broker otherBroker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        // A repeated query is answered without contacting any datastore.
+        assertEquals(Integer.valueOf(12), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        Pair<Integer, QueryTrace> profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(12), profile.getValue0());
+        List<QueryTrace.Span> spans = profile.getValue1().getSpans();
+        assertEquals(1, spans.stream().filter(s -> s.stage.equals("result cache hit")).count());
+        assertTrue(spans.stream().allMatch(s -> s.component.equals("broker")));
+        assertTrue(broker.metrics.render().contains("uniserve_broker_result_cache_hits_total 1\n"));
+        assertTrue(broker.metrics.render().matches("(?s).*uniserve_broker_result_cache_bytes [1-9].*"));
+
+        // Writing through the broker invalidates the result at once.
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 10))));
+        profile = broker.profileAnchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2"));
+        assertEquals(Integer.valueOf(18), profile.getValue0());
+        assertEquals(0, profile.getValue1().getSpans().stream().filter(s -> s.stage.equals("result cache hit")).count());
+        assertEquals(Integer.valueOf(18), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+
+        // Writes through other brokers are seen once the result expires.
+        assertTrue(otherBroker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 3))));
+        try {
+            Thread.sleep(Broker.resultCacheTTLMillis);
+        } catch (InterruptedException ignored) { }
+        assertEquals(Integer.valueOf(20), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+        assertEquals(Integer.valueOf(20), otherBroker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+        otherBroker.shutdown();
+    }
+
+    @Test
+    public void testCoalescedReads() throws InterruptedException {
+        logger.info("testCoalescedReads");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table1", 2));
+        assertTrue(broker.createTable("table2", 1));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table1"), List.of(new KVRow(1, 1), new KVRow(2, 2))));
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 4), new KVRow(2, 5))));
+
+        // Identical queries issued together share the fan-out of whichever is sent first.
+        int numThreads = 16;
+        int numRounds = 5;
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        CyclicBarrier barrier = new CyclicBarrier(numThreads);
+        List<Thread> threads = new ArrayList<>();
+        for (int threadNum = 0; threadNum < numThreads; threadNum++) {
+            Thread t = new Thread(() -> {
+                for (int round = 0; round < numRounds; round++) {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        return;
+                    }
+                    results.add(broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        assertEquals(numThreads * numRounds, results.size());
+        assertTrue(results.stream().allMatch(r -> r == 12));
+        String metrics = broker.metrics.render();
+        long coalesced = metrics.lines().filter(l -> l.startsWith("uniserve_broker_coalesced_reads_total "))
+                .mapToLong(l -> Long.parseLong(l.split(" ")[1])).sum();
+        long fanouts = metrics.lines().filter(l -> l.startsWith("uniserve_broker_read_fanout_count "))
+                .mapToLong(l -> Long.parseLong(l.split(" ")[1])).sum();
+        assertTrue(coalesced > 0);
+        assertEquals(numThreads * numRounds, coalesced + fanouts);
+
+        // Reads after a write never share a read sent before it.
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert("table2"), List.of(new KVRow(1, 10))));
+        assertEquals(Integer.valueOf(18), broker.anchoredReadQuery(new KVPseudoBroadcastJoin("table1", "table2")));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testAsyncQueries() {
+        logger.info("testAsyncQueries");
+        int numShards = 4;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        int numDatastores = 2;
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(),
+                    Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table", numShards));
+
+        // Many writes issued from one thread at once are all applied, in the order they were issued.
+        int numKeys = 20;
+        List<CompletableFuture<Boolean>> writes = new ArrayList<>();
+        for (int i = 1; i <= numKeys; i++) {
+            writes.add(broker.writeQueryAsync(new KVWriteQueryPlanInsert(), List.of(new KVRow(i, i))));
+        }
+        for (int value = 100; value < 105; value++) {
+            writes.add(broker.writeQueryAsync(new KVWriteQueryPlanInsert(), List.of(new KVRow(1, value))));
+        }
+        writes.add(broker.simpleWriteQueryAsync(new KVSimpleWriteQueryPlanInsert(), List.of(new KVRow(numKeys + 1, numKeys + 1))));
+        assertTrue(writes.stream().allMatch(CompletableFuture::join));
+
+        List<CompletableFuture<Integer>> reads = new ArrayList<>();
+        for (int i = 1; i <= numKeys + 1; i++) {
+            reads.add(broker.anchoredReadQueryAsync(new KVReadQueryPlanGet(i)));
+        }
+        CompletableFuture<Integer> sum = broker.anchoredReadQueryAsync(
+                new KVReadQueryPlanSumGet(IntStream.rangeClosed(2, numKeys + 1).boxed().collect(Collectors.toList())));
+        List<Integer> keys = List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        // Subqueries run before their parent without the caller waiting on either.
+        CompletableFuture<Integer> filterSum = broker.anchoredReadQueryAsync(new KVFilterSumGet(keys));
+        assertEquals(Integer.valueOf(104), reads.get(0).join());
+        for (int i = 2; i <= numKeys + 1; i++) {
+            assertEquals(Integer.valueOf(i), reads.get(i - 1).join());
+        }
+        assertEquals(Integer.valueOf(IntStream.rangeClosed(2, numKeys + 1).sum()), sum.join());
+        assertEquals(broker.anchoredReadQuery(new KVFilterSumGet(keys)), filterSum.join());
+        // A read the datastore fails to execute, here of a missing key, fails the query once its retries run out.
+        CompletableFuture<Integer> missing = broker.anchoredReadQueryAsync(new KVReadQueryPlanGet(numKeys + 100));
+        assertThrows(CompletionException.class, missing::join);
+        assertEquals(Integer.valueOf(2), broker.anchoredReadQuery(new KVReadQueryPlanGet(2)));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+        // Writes issued after shutdown fail instead of never completing.
+        CompletableFuture<Boolean> lateWrite = broker.writeQueryAsync(new KVWriteQueryPlanInsert(), List.of(new KVRow(1, 1)));
+        assertThrows(CompletionException.class, lateWrite::join);
+    }
+
+    @Test
+    public void testWriteAheadLog() throws InterruptedException {
+        logger.info("testWriteAheadLog");
+        int numShards = 4;
+        int numDatastores = 2;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7778);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard> > dataStores = new ArrayList<>();
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.useWriteAheadLog = true;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table", numShards));
+        List<KVRow> rows = new ArrayList<>();
+        for (int i = 1; i < 11; i++) {
+            rows.add(new KVRow(i, i));
+        }
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        List<KVRow> simpleRows = new ArrayList<>();
+        for (int i = 11; i < 21; i++) {
+            simpleRows.add(new KVRow(i, i));
+        }
+        assertTrue(broker.simpleWriteQuery(new KVSimpleWriteQueryPlanInsert(), simpleRows));
+        List<Integer> keys = IntStream.range(1, 21).boxed().collect(Collectors.toList());
+        assertEquals(Integer.valueOf(210), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(keys)));
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+
+        // Restart on the same ports and directory.  ZooKeeper still knows the shards, which are rebuilt by replaying
+        // their logs, as none was ever checkpointed.
+        Thread.sleep(1000);
+        coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7778);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        dataStores.clear();
+        for (int i = 0; i < numDatastores; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8100 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.useWriteAheadLog = true;
+            assertTrue(dataStore.startServing());
+            dataStores.add(dataStore);
+        }
+        broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        assertTrue(broker.createTable("table", numShards));
+        assertEquals(Integer.valueOf(210), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(keys)));
+        rows.clear();
+        for (int i = 1; i < 11; i++) {
+            rows.add(new KVRow(i, 2 * i));
+        }
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        assertEquals(Integer.valueOf(265), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(keys)));
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testWriteLogSpill() throws InterruptedException {
+        logger.info("testWriteLogSpill");
+        // Every write but the newest is spilled to disk.
+        DataStore.writeLogMemoryBudgetBytes = 1;
+        DataStore.checkpointDaemonSleepDurationMillis = 100;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard>> dataStores = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                    new KVShardFactory(), Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8200 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.useWriteAheadLog = true;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        final Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", 1);
+        List<KVRow> rows = new ArrayList<>();
+        for (int i = 1; i < 11; i++) {
+            rows.add(new KVRow(i, i));
+        }
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        // Checkpoint the first write, then keep every later one in the write log.
+        Thread.sleep(1000);
+        dataStores.forEach(d -> d.runCheckpointDaemon = false);
+        Thread.sleep(500);
+        for (int i = 1; i < 11; i++) {
+            assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(i, 10 * i))));
+        }
+        assertTrue(broker.simpleWriteQuery(new KVSimpleWriteQueryPlanInsert(), Collections.singletonList(new KVRow(11, 11))));
+        DataStore.writeLogMemoryBudgetBytes = defaultWriteLogMemoryBudgetBytes;
+        DataStore.checkpointDaemonSleepDurationMillis = defaultCheckpointDaemonSleepDurationMillis;
+
+        // The new replica downloads the checkpoint and replays the rest from the primary's spilled log.
+        int primaryDSID = coordinator.consistentHash.getBuckets(0).get(0);
+        int replicaDSID = 1 - primaryDSID;
+        coordinator.addReplica(0, replicaDSID);
+        KVShard replicaShard = dataStores.get(replicaDSID).shardMap.get(0);
+        for (int i = 1; i < 11; i++) {
+            assertEquals(Optional.of(10 * i), replicaShard.queryKey(i));
+        }
+        assertEquals(Optional.of(11), replicaShard.queryKey(11));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testStreamingBootstrap() throws InterruptedException {
+        logger.info("testStreamingBootstrap");
+        // Every write is streamed in its own chunk.
+        DataStore.bootstrapChunkSizeBytes = 1;
+        DataStore.checkpointDaemonSleepDurationMillis = 100;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard>> dataStores = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                    new KVShardFactory(), Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8200 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.useWriteAheadLog = true;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        final Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", 1);
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(0, 0))));
+        // Checkpoint the first write, then keep every later one in the write log.
+        Thread.sleep(1000);
+        dataStores.forEach(d -> d.runCheckpointDaemon = false);
+        Thread.sleep(500);
+        for (int i = 1; i < 21; i++) {
+            assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(i, i))));
+        }
+
+        // Keep writing while the replica catches up; it must end up with every write exactly once.
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i < 21; i++) {
+                assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(i, 2 * i))));
+            }
+        });
+        writer.start();
+        int primaryDSID = coordinator.consistentHash.getBuckets(0).get(0);
+        int replicaDSID = 1 - primaryDSID;
+        coordinator.addReplica(0, replicaDSID);
+        writer.join();
+        DataStore.bootstrapChunkSizeBytes = defaultBootstrapChunkSizeBytes;
+        DataStore.checkpointDaemonSleepDurationMillis = defaultCheckpointDaemonSleepDurationMillis;
+        assertEquals(dataStores.get(primaryDSID).shardMap.get(0).KVMap, dataStores.get(replicaDSID).shardMap.get(0).KVMap);
+        for (int i = 1; i < 21; i++) {
+            assertEquals(Optional.of(2 * i), dataStores.get(replicaDSID).shardMap.get(0).queryKey(i));
+        }
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testPeerShardTransfer() throws InterruptedException {
+        logger.info("testPeerShardTransfer");
+        DataStore.checkpointDaemonSleepDurationMillis = 100;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        List<DataStore<KVRow, KVShard>> dataStores = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            DataStore<KVRow, KVShard>  dataStore = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                    new KVShardFactory(), Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8200 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            dataStore.useWriteAheadLog = true;
+            dataStore.startServing();
+            dataStores.add(dataStore);
+        }
+        final Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", 1);
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(0, 0))));
+        // Checkpoint the first write, so the cloud copy falls behind the primary's.
+        Thread.sleep(1000);
+        dataStores.forEach(d -> d.runCheckpointDaemon = false);
+        Thread.sleep(500);
+        for (int i = 1; i < 11; i++) {
+            assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(i, i))));
+        }
+
+        // The replica copies the shard straight from the primary at its current version.
+        int primaryDSID = coordinator.consistentHash.getBuckets(0).get(0);
+        int replicaDSID = 1 - primaryDSID;
+        coordinator.addReplica(0, replicaDSID);
+        DataStore.checkpointDaemonSleepDurationMillis = defaultCheckpointDaemonSleepDurationMillis;
+        File[] versionDirs = Path.of(String.format("/var/tmp/KVUniserve%d", replicaDSID)).toFile().listFiles();
+        assertNotNull(versionDirs);
+        assertTrue(Arrays.stream(versionDirs).anyMatch(d -> new File(d, String.format("0_%s_peer", d.getName())).exists()));
+        assertEquals(dataStores.get(primaryDSID).shardMap.get(0).KVMap, dataStores.get(replicaDSID).shardMap.get(0).KVMap);
+        for (int i = 1; i < 11; i++) {
+            assertEquals(Optional.of(i), dataStores.get(replicaDSID).shardMap.get(0).queryKey(i));
+        }
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testShardEviction() {
+        logger.info("testShardEviction");
+        // KVShards report one unit of memory per key.
+        DataStore.shardMemoryBudgetKB = 25;
+        int numShards = 4;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        DataStore<KVRow, KVShard> dataStore = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8200, -1, false);
+        dataStore.runPingDaemon = false;
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", numShards);
+        List<Integer> keys = IntStream.range(1, 41).boxed().collect(Collectors.toList());
+        List<KVRow> rows = keys.stream().map(i -> new KVRow(i, i)).collect(Collectors.toList());
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        // Cold shards were evicted once uploaded and are reloaded when queried.
+        assertTrue(dataStore.shardMap.size() < numShards);
+        assertEquals(Integer.valueOf(820), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(keys)));
+        rows = keys.stream().map(i -> new KVRow(i, 2 * i)).collect(Collectors.toList());
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        assertEquals(Integer.valueOf(1640), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(keys)));
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testPrefetchShards() throws InterruptedException {
+        logger.info("testPrefetchShards");
+        // Room for one shard of ten keys.
+        DataStore.shardMemoryBudgetKB = 15;
+        int numShards = 4;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        DataStore<KVRow, KVShard> dataStore = new DataStore<>(new AWSDataStoreCloud("uniserve-bucket"),
+                new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8200, -1, false);
+        dataStore.runPingDaemon = false;
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", numShards);
+        List<KVRow> rows = IntStream.range(1, 41).mapToObj(i -> new KVRow(i, i)).collect(Collectors.toList());
+        assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), rows));
+        // Shard 1 is queried often, then pushed out by a query on shard 2.
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.valueOf(1), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(Collections.singletonList(1))));
+        }
+        assertEquals(Integer.valueOf(2), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(Collections.singletonList(2))));
+        assertFalse(dataStore.shardMap.containsKey(1));
+        // The coordinator sees shard 1 is hot and has it loaded again before it is next queried.
+        broker.sendStatisticsToCoordinator();
+        for (int i = 0; i < 50 && !dataStore.shardMap.containsKey(1); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(dataStore.shardMap.containsKey(1));
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
     @Test
     public void testMultiStageQuery() {
         logger.info("testMultiStageQuery");
@@ -796,6 +1822,69 @@ public class KVStoreTests {
         broker.shutdown();
     }
 
+    @Test
+    public void testReadWriteAtomicityLocalCopy() {
+        logger.info("testReadWriteAtomicityLocalCopy");
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        // Without a clone implementation, each transaction writes to a copy of the shard's files.
+        DataStore<KVRow, KVShard> dataStore = new DataStore<>(null, new KVShardFactory() {
+            @Override
+            public Optional<KVShard> cloneShard(KVShard shard, Path clonePath, int shardNum) {
+                return Optional.empty();
+            }
+        }, Path.of("/var/tmp/KVUniserve0"), zkHost, zkPort, "127.0.0.1", 8200, -1, true);
+        dataStore.runPingDaemon = false;
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", 1);
+        for (int i = 1; i < 6; i++) {
+            assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(i, i))));
+        }
+        for (int i = 1; i < 6; i++) {
+            assertEquals(Optional.of(i), dataStore.shardMap.get(0).queryKey(i));
+        }
+        File[] versionDirs = Path.of("/var/tmp/KVUniserve0").toFile().listFiles();
+        assertNotNull(versionDirs);
+        assertTrue(Arrays.stream(versionDirs).anyMatch(d -> d.listFiles() != null
+                && Arrays.stream(d.listFiles()).anyMatch(c -> c.getName().startsWith("0_") && new File(c, "map.obj").exists())));
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+
+    @Test
+    public void testShardVersionRetirement() throws InterruptedException {
+        logger.info("testShardVersionRetirement");
+        DataStore.shardVersionRetentionMillis = 50;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7779);
+        coordinator.runLoadBalancerDaemon = false;
+        coordinator.startServing();
+        DataStore<KVRow, KVShard> dataStore = new DataStore<>(null, new KVShardFactory(), Path.of("/var/tmp/KVUniserve0"),
+                zkHost, zkPort, "127.0.0.1", 8200, -1, true);
+        dataStore.runPingDaemon = false;
+        dataStore.startServing();
+        Broker broker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        Broker readOnlyBroker = new Broker(zkHost, zkPort, new KVQueryEngine());
+        broker.createTable("table", 1);
+        // Each write commits a new version; superseded ones must be retired rather than accumulate.
+        for (int i = 1; i < 21; i++) {
+            assertTrue(broker.writeQuery(new KVWriteQueryPlanInsert(), Collections.singletonList(new KVRow(0, i))));
+            Thread.sleep(100);
+            assertEquals(Integer.valueOf(i), broker.anchoredReadQuery(new KVReadQueryPlanSumGet(Collections.singletonList(0))));
+            // A broker that has never written reads at snapshot 0, long retired, so it gets the oldest retained version.
+            assertEquals(Integer.valueOf(i), readOnlyBroker.anchoredReadQuery(new KVReadQueryPlanSumGet(Collections.singletonList(0))));
+        }
+        assertTrue(dataStore.numShardVersions(0) <= 2);
+
+        dataStore.shutDown();
+        coordinator.stopServing();
+        broker.shutdown();
+        readOnlyBroker.shutdown();
+    }
+
     @Test
     public void testReadWriteAtomicityReplicas() throws InterruptedException {
         logger.info("testReadWriteAtomicityReplicas");
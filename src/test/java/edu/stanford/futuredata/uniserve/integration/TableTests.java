@@ -6,6 +6,7 @@ import edu.stanford.futuredata.uniserve.coordinator.Coordinator;
 import edu.stanford.futuredata.uniserve.coordinator.DefaultAutoScaler;
 import edu.stanford.futuredata.uniserve.coordinator.DefaultLoadBalancer;
 import edu.stanford.futuredata.uniserve.datastore.DataStore;
+import edu.stanford.futuredata.uniserve.interfaces.IncrementalGather;
 import edu.stanford.futuredata.uniserve.interfaces.ShuffleReadQueryPlan;
 import edu.stanford.futuredata.uniserve.tablemockinterface.TableQueryEngine;
 import edu.stanford.futuredata.uniserve.tablemockinterface.TableRow;
@@ -14,16 +15,21 @@ import edu.stanford.futuredata.uniserve.tablemockinterface.TableShardFactory;
 import edu.stanford.futuredata.uniserve.tablemockinterface.queryplans.TableReadMostFrequent;
 import edu.stanford.futuredata.uniserve.tablemockinterface.queryplans.TableReadPopularState;
 import edu.stanford.futuredata.uniserve.tablemockinterface.queryplans.TableWriteInsert;
+import edu.stanford.futuredata.uniserve.utilities.QueryTrace;
+import org.javatuples.Pair;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static edu.stanford.futuredata.uniserve.integration.KVStoreTests.cleanUp;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -40,8 +46,12 @@ public class TableTests {
         cleanUp(zkHost, zkPort);
     }
 
+    // Default of the tunable a test changes, restored after every test, including ones that fail.
+    private static final long defaultShuffleMemoryBudgetBytes = DataStore.shuffleMemoryBudgetBytes;
+
     @AfterEach
     private void unitTestCleanUp() {
+        DataStore.shuffleMemoryBudgetBytes = defaultShuffleMemoryBudgetBytes;
         cleanUp(zkHost, zkPort);
     }
 
@@ -127,4 +137,117 @@ public class TableTests {
         coordinator.stopServing();
         broker.shutdown();
     }
+
+
+    // Gathers with the buffered gather, for comparison.
+    private static class BufferedMostFrequent extends TableReadMostFrequent {
+        BufferedMostFrequent(String table) {
+            super(table);
+        }
+
+        @Override
+        public Optional<IncrementalGather> startGather(Map<String, TableShard> ephemeralShards) {
+            return Optional.empty();
+        }
+    }
+
+    @Test
+    public void testIncrementalGather() {
+        logger.info("testIncrementalGather");
+        int numShards = 4;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        assertTrue(coordinator.startServing());
+        int numDataStores = 4;
+        List<DataStore<TableRow, TableShard>> dataStores = new ArrayList<>();
+        for (int i = 0; i < numDataStores; i++) {
+            DataStore<TableRow, TableShard>  dataStore = new DataStore<>(null,
+                    new TableShardFactory(), Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8200 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            assertTrue(dataStore.startServing());
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new TableQueryEngine());
+        assertTrue(broker.createTable("table1", numShards));
+
+        List<TableRow> rows = new ArrayList<>();
+        for (int k = 0; k < 50; k++) {
+            for (int v = 0; v < k % 10 + 1; v++) {
+                rows.add(new TableRow(Map.of("k", k, "v", v + k / 10), k));
+            }
+        }
+        assertTrue(broker.writeQuery(new TableWriteInsert("table1"), rows));
+
+        // Shuffled data is consumed as it arrives, with the same result as gathering it all at once.
+        Pair<Integer, QueryTrace> profile = broker.profileShuffleReadQuery(new TableReadMostFrequent("table1"));
+        assertEquals(4, profile.getValue0());
+        assertTrue(profile.getValue1().breakdown().keySet().stream().anyMatch(s -> s.endsWith(" gather chunk")));
+        profile = broker.profileShuffleReadQuery(new BufferedMostFrequent("table1"));
+        assertEquals(4, profile.getValue0());
+        assertTrue(profile.getValue1().breakdown().keySet().stream().noneMatch(s -> s.endsWith(" gather chunk")));
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
+    @Test
+    public void testShuffleSpill() {
+        logger.info("testShuffleSpill");
+        DataStore.shuffleMemoryBudgetBytes = 1;
+        int numShards = 4;
+        Coordinator coordinator = new Coordinator(null, new DefaultLoadBalancer(), new DefaultAutoScaler(), zkHost, zkPort, "127.0.0.1", 7777);
+        coordinator.runLoadBalancerDaemon = false;
+        assertTrue(coordinator.startServing());
+        int numDataStores = 4;
+        List<DataStore<TableRow, TableShard>> dataStores = new ArrayList<>();
+        for (int i = 0; i < numDataStores; i++) {
+            DataStore<TableRow, TableShard>  dataStore = new DataStore<>(null,
+                    new TableShardFactory(), Path.of(String.format("/var/tmp/KVUniserve%d", i)), zkHost, zkPort, "127.0.0.1", 8200 + i, -1, false
+            );
+            dataStore.runPingDaemon = false;
+            assertTrue(dataStore.startServing());
+            dataStores.add(dataStore);
+        }
+        Broker broker = new Broker(zkHost, zkPort, new TableQueryEngine());
+        assertTrue(broker.createTable("peopleTable", numShards));
+        assertTrue(broker.createTable("stateTable", numShards));
+
+        int numStates = 10;
+        List<TableRow> rows = new ArrayList<>();
+        List<Integer> cities = new ArrayList<>();
+        for (int state = 0; state < numStates; state++) {
+            for (int city = state * numStates; city <= state * numStates + state; city++) {
+                rows.add(new TableRow(Map.of("city", city, "state", state), state));
+                cities.add(city);
+            }
+        }
+        assertTrue(broker.writeQuery(new TableWriteInsert("stateTable"), rows));
+        rows.clear();
+        for(int i = 0; i < cities.size(); i++) {
+            rows.add(new TableRow(Map.of("person", i, "city", cities.get(i)), i));
+        }
+        assertTrue(broker.writeQuery(new TableWriteInsert("peopleTable"), rows));
+
+        // Every scattered partition is spilled, then read back from disk.
+        ShuffleReadQueryPlan<TableShard, Integer> r = new TableReadPopularState("peopleTable", "stateTable");
+        assertEquals(9, broker.shuffleReadQuery(r));
+        assertEquals(9, broker.shuffleReadQuery(r));
+        String metrics = dataStores.stream().map(d -> d.metrics.render()).collect(Collectors.joining());
+        assertTrue(metrics.matches("(?s).*uniserve_shuffle_spilled_bytes_total [1-9].*"));
+        // Fetched partitions are deleted.
+        for (DataStore<TableRow, TableShard> dataStore: dataStores) {
+            String m = dataStore.metrics.render();
+            assertTrue(m.contains("uniserve_shuffle_buffered_bytes{location=\"disk\"} 0\n"));
+            assertTrue(m.contains("uniserve_shuffle_buffered_bytes{location=\"memory\"} 0\n"));
+        }
+        for (int i = 0; i < numDataStores; i++) {
+            File[] spills = Path.of(String.format("/var/tmp/KVUniserve%d", i), "shuffle", Integer.toString(8200 + i)).toFile().listFiles();
+            assertTrue(spills == null || spills.length == 0);
+        }
+
+        dataStores.forEach(DataStore::shutDown);
+        coordinator.stopServing();
+        broker.shutdown();
+    }
 }
@@ -0,0 +1,22 @@
+package edu.stanford.futuredata.uniserve.kvmockinterface;
+
+import edu.stanford.futuredata.uniserve.interfaces.RowCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class KVRowCodec implements RowCodec<KVRow> {
+    @Override
+    public void writeRow(KVRow row, DataOutput out) throws IOException {
+        out.writeInt(row.getKey());
+        out.writeInt(row.getValue());
+    }
+
+    @Override
+    public KVRow readRow(DataInput in) throws IOException {
+        int key = in.readInt();
+        int value = in.readInt();
+        return new KVRow(key, value);
+    }
+}
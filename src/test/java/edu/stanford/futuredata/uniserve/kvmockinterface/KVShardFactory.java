@@ -30,4 +30,11 @@ public class KVShardFactory implements ShardFactory<KVShard> {
             return Optional.empty();
         }
     }
+
+    @Override
+    public Optional<KVShard> cloneShard(KVShard shard, Path clonePath, int shardNum) {
+        Optional<KVShard> clone = createNewShard(clonePath, shardNum);
+        clone.ifPresent(c -> c.KVMap.putAll(shard.KVMap));
+        return clone;
+    }
 }
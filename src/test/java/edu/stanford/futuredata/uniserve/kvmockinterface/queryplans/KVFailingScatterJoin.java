@@ -0,0 +1,25 @@
+package edu.stanford.futuredata.uniserve.kvmockinterface.queryplans;
+
+import com.google.protobuf.ByteString;
+import edu.stanford.futuredata.uniserve.kvmockinterface.KVShard;
+
+import java.util.List;
+import java.util.Map;
+
+public class KVFailingScatterJoin extends KVPseudoBroadcastJoin {
+
+    private final int failKey;
+
+    public KVFailingScatterJoin(String tableOne, String tableTwo, int failKey) {
+        super(tableOne, tableTwo);
+        this.failKey = failKey;
+    }
+
+    @Override
+    public Map<Integer, List<ByteString>> scatter(KVShard shard, Map<Integer, List<Integer>> partitionKeys) {
+        if (shard.KVMap.containsKey(failKey)) {
+            throw new IllegalStateException(String.format("Scatter of key %d failed", failKey));
+        }
+        return super.scatter(shard, partitionKeys);
+    }
+}
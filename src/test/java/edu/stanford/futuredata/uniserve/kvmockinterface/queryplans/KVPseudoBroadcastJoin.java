@@ -2,6 +2,7 @@ package edu.stanford.futuredata.uniserve.kvmockinterface.queryplans;
 
 import com.google.protobuf.ByteString;
 import edu.stanford.futuredata.uniserve.interfaces.AnchoredReadQueryPlan;
+import edu.stanford.futuredata.uniserve.interfaces.IncrementalGather;
 import edu.stanford.futuredata.uniserve.kvmockinterface.KVShard;
 import edu.stanford.futuredata.uniserve.utilities.Utilities;
 
@@ -9,6 +10,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class KVPseudoBroadcastJoin implements AnchoredReadQueryPlan<KVShard, Integer> {
@@ -64,6 +66,34 @@ public class KVPseudoBroadcastJoin implements AnchoredReadQueryPlan<KVShard, Int
         return Utilities.objectToByteString(sum);
     }
 
+    @Override
+    public Optional<IncrementalGather> startGather(KVShard localShard, Map<String, KVShard> ephemeralShards) {
+        return Optional.of(new IncrementalGather() {
+            int sum = 0;
+
+            @Override
+            public void gatherChunk(String tableName, ByteString chunk) {
+                Map<Integer, Integer> KVMapTwo = (Map<Integer, Integer>) Utilities.byteStringToObject(chunk);
+                for (Map.Entry<Integer, Integer> e : KVMapTwo.entrySet()) {
+                    Integer v = localShard.KVMap.get(e.getKey());
+                    if (v != null) {
+                        sum += v + e.getValue();
+                    }
+                }
+            }
+
+            @Override
+            public ByteString finishGather() {
+                return Utilities.objectToByteString(sum);
+            }
+        });
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public Integer combine(List<ByteString> shardQueryResults) {
         return shardQueryResults.stream().map(i -> (Integer) Utilities.byteStringToObject(i)).mapToInt(i -> i).sum();
@@ -1,6 +1,7 @@
 package edu.stanford.futuredata.uniserve.tablemockinterface.queryplans;
 
 import com.google.protobuf.ByteString;
+import edu.stanford.futuredata.uniserve.interfaces.IncrementalGather;
 import edu.stanford.futuredata.uniserve.interfaces.ShuffleReadQueryPlan;
 import edu.stanford.futuredata.uniserve.tablemockinterface.TableShard;
 import edu.stanford.futuredata.uniserve.utilities.ConsistentHash;
@@ -49,14 +50,38 @@ public class TableReadMostFrequent implements ShuffleReadQueryPlan<TableShard, I
     public ByteString gather(Map<String, List<ByteString>> ephemeralData, Map<String, TableShard> ephemeralShards) {
         Map<Integer, Integer> frequencies = new HashMap<>();
         for (ByteString b: ephemeralData.get(tables.get(0))) {
-            if (!b.isEmpty()) {
-                List<Map<String, Integer>> table = (List<Map<String, Integer>>) Utilities.byteStringToObject(b);
-                for (Map<String, Integer> row : table) {
-                    Integer val = row.get("v");
-                    frequencies.merge(val, 1, Integer::sum);
-                }
+            countFrequencies(b, frequencies);
+        }
+        return mostFrequent(frequencies);
+    }
+
+    @Override
+    public Optional<IncrementalGather> startGather(Map<String, TableShard> ephemeralShards) {
+        Map<Integer, Integer> frequencies = new HashMap<>();
+        return Optional.of(new IncrementalGather() {
+            @Override
+            public void gatherChunk(String tableName, ByteString chunk) {
+                countFrequencies(chunk, frequencies);
+            }
+
+            @Override
+            public ByteString finishGather() {
+                return mostFrequent(frequencies);
+            }
+        });
+    }
+
+    private static void countFrequencies(ByteString b, Map<Integer, Integer> frequencies) {
+        if (!b.isEmpty()) {
+            List<Map<String, Integer>> table = (List<Map<String, Integer>>) Utilities.byteStringToObject(b);
+            for (Map<String, Integer> row : table) {
+                Integer val = row.get("v");
+                frequencies.merge(val, 1, Integer::sum);
             }
         }
+    }
+
+    private static ByteString mostFrequent(Map<Integer, Integer> frequencies) {
         Optional<Map.Entry<Integer, Integer>> maxEntry =
                 frequencies.entrySet().stream().max((entry1, entry2) -> entry1.getValue() > entry2.getValue() ? 1 : -1);
         if (maxEntry.isPresent()) {